@@ -1,14 +1,31 @@
 package com.github.delaymsg;
 
 import com.github.delaymsg.constant.DelayConst;
-import com.github.delaymsg.dao.DelayMsgDao;
+import com.github.delaymsg.dao.DelayStore;
+import com.github.delaymsg.dao.Resharder;
+import com.github.delaymsg.dao.StoreEngine;
 import com.github.delaymsg.kafka.KafkaListener;
 import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.task.Changelog;
+import com.github.delaymsg.task.KeyOrderedExecutor;
 import com.github.delaymsg.task.MsgStoreTask;
+import com.github.delaymsg.task.NearTermWheel;
 import com.github.delaymsg.task.MsgTransferTask;
+import com.github.delaymsg.task.PartitionShards;
+import com.github.delaymsg.task.PriorityLanes;
+import com.github.delaymsg.task.TopicRateLimiter;
+import com.github.delaymsg.task.TriggerSignal;
+import org.apache.kafka.common.KafkaException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -17,9 +34,10 @@ import java.util.concurrent.TimeUnit;
  * kafka 延时消息程序
  * 逻辑：
  * 1、业务系统先发延时消息到统一延时消息topic
- * 2、当前程序读取 topic 消息，保存于本地，提交偏移量
+ * 2、当前程序读取 topic 消息，保存于本地，提交偏移量[已到期的消息直接转发，发送成功后提交偏移量]
  * 3、扫描到达延时期限的消息，转发到实际业务topic
  * 4、删除本地延时消息
+ * 本地存储按 kafka 分区分片，每个分片一个转发线程，见 {@link PartitionShards}
  *
  * @author yhh 2021-11-28 13:15:30
  **/
@@ -27,19 +45,94 @@ public class DelayMsgApp {
 
     private static final Logger log = LoggerFactory.getLogger(DelayMsgApp.class);
 
+    /**
+     * 输出发送统计的间隔
+     */
+    private static final long METRICS_INTERVAL_SECONDS = 60L;
+
     public static void main(String[] args) {
         int workers = Integer.parseInt(DelayConst.WORKERS);
-        int workSum = workers * 2;
-        KafkaSender kafkaSender = KafkaSender.of(DelayConst.KAFKA_URL);
-        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(workSum, workSum,
-                0L, TimeUnit.MILLISECONDS, new SynchronousQueue<>());
+        long wheelSeconds = Long.parseLong(DelayConst.WHEEL_SECONDS);
+        StoreEngine storeEngine = StoreEngine.of(DelayConst.STORE_ENGINE);
+        KafkaSender kafkaSender = KafkaSender.of(DelayConst.KAFKA_URL, Integer.parseInt(DelayConst.SENDER_PRODUCERS),
+                Long.parseLong(DelayConst.SENDER_BUFFER_MB) << 20);
+        // 消费线程固定，转发线程随打开的分片增加
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(workers, Integer.MAX_VALUE,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>());
+        Changelog changelog = DelayConst.CHANGELOG_TOPIC.isEmpty() ? null
+                : Changelog.of(DelayConst.KAFKA_URL, DelayConst.CHANGELOG_TOPIC, Boolean.parseBoolean(DelayConst.CHANGELOG_STANDBY));
+        // changelog 只复制默认通道，同时配置了优先级通道时拒绝启动
+        PriorityLanes lanes = PriorityLanes.fromConfig();
+        // 本地已有的分片先打开[每个通道]，分片数变化时在开始转发前重新分片
+        List<Map<Integer, DelayStore>> laneOpened = new ArrayList<>(lanes.size());
+        for (int lane = 0; lane < lanes.size(); lane++) {
+            laneOpened.add(new ConcurrentHashMap<>());
+        }
+        for (int partition : storeEngine.existing()) {
+            for (int lane = 0; lane < lanes.size(); lane++) {
+                laneOpened.get(lane).put(partition, storeEngine.open(partition, lanes.storeLane(lane)));
+            }
+        }
+        Map<Integer, DelayStore> opened = laneOpened.get(0);
+        int partitionCount = partitionCount(kafkaSender);
+        if (partitionCount > 0) {
+            if (changelog == null) {
+                Resharder.reshardIfChanged(DelayConst.STORE_PATH, laneOpened, partitionCount,
+                        (partition, lane) -> storeEngine.open(partition, lanes.storeLane(lane)));
+            } else {
+                // 移动消息不会发布到 changelog ，分区数变化时拒绝启动
+                Resharder.requireUnchanged(DelayConst.STORE_PATH, partitionCount);
+            }
+        }
+        int inFlight = Integer.parseInt(DelayConst.TRANSFER_IN_FLIGHT);
+        // 限流、发送线程都是整个节点共用
+        TopicRateLimiter rateLimiter = TopicRateLimiter.fromConfig();
+        KeyOrderedExecutor sendExecutor = KeyOrderedExecutor.fromConfig();
+        PartitionShards shards = new PartitionShards((partition, lane) -> {
+            DelayStore opening = laneOpened.get(lane).remove(partition);
+            DelayStore delayStore = opening == null ? storeEngine.open(partition, lanes.storeLane(lane)) : opening;
+            log.info("本地存储[{}]打开成功 || partition : {} || lane : {} || {}", storeEngine, partition, lanes.name(lane),
+                    delayStore.stats());
+            return delayStore;
+        }, (delayStore, lane) -> {
+            TriggerSignal triggerSignal = new TriggerSignal();
+            NearTermWheel nearTermWheel = new NearTermWheel(delayStore, wheelSeconds);
+            Future<?> task = threadPool.submit(new MsgTransferTask(delayStore, kafkaSender, triggerSignal, nearTermWheel,
+                    lanes.inFlight(lane, inFlight), rateLimiter, sendExecutor));
+            return new PartitionShards.Transfer(triggerSignal, nearTermWheel, task);
+        }, changelog, lanes);
+        for (int partition : new ArrayList<>(opened.keySet())) {
+            shards.shard(partition);
+        }
+        if (changelog != null) {
+            threadPool.execute(changelog);
+        }
         for (int i = 0; i < workers; i++) {
-            DelayMsgDao delayDao = new DelayMsgDao(i);
             KafkaListener kafkaListener = KafkaListener.of(DelayConst.KAFKA_URL, DelayConst.KAFKA_GROUP_ID);
-            threadPool.execute(new MsgStoreTask(delayDao, kafkaListener));
-            threadPool.execute(new MsgTransferTask(delayDao, kafkaSender));
+            threadPool.execute(new MsgStoreTask(shards, kafkaListener, kafkaSender));
+        }
+        log.info("kafka 延时消息程序启动成功 || shards : {}", shards.size());
+        // ioRatio 接近 1 说明 producer 的 io 线程已饱和，增加 kafka.delay.sender.producers 可以提高吞吐量
+        ScheduledExecutorService metricsLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sender-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metricsLogger.scheduleAtFixedRate(() -> log.info("发送统计 || {}", kafkaSender.metrics()),
+                METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 延时消息 topic 的分区数，集群不可用时返回 -1 ，本次启动不重新分片，已有分片照常打开、转发
+     */
+    private static int partitionCount(KafkaSender kafkaSender) {
+        try {
+            return kafkaSender.partitionCount(DelayConst.DELAY_TOPIC);
+        } catch (KafkaException e) {
+            log.warn("查询延时消息 topic 分区数失败，本次启动不检查分片数 || topic : {} || exception : {}",
+                    DelayConst.DELAY_TOPIC, e.toString());
+            return -1;
         }
-        log.info("kafka 延时消息程序启动成功");
     }
 
 }
@@ -25,19 +25,201 @@ public final class DelayConst {
      */
     public static final String STORE_PATH = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.store.path", "/var/delay_message/db");
 
+    /**
+     * 本地存储引擎。
+     * rocksdb : 默认，保存在 {@link #STORE_PATH} 目录下
+     * segment : 按触发时间分段的内存映射文件，保存在 {@link #STORE_PATH}/segment 目录下
+     * memory : 纯内存，程序重启后消息丢失，只适用于测试、可以容忍丢消息的小规模部署
+     */
+    public static final String STORE_ENGINE = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.store.engine", "rocksdb");
+
+    /**
+     * segment 存储引擎的时间桶宽度，单位秒。同一时间桶的消息写入同一组段文件，全部转发后删除文件
+     */
+    public static final String SEGMENT_BUCKET_SECONDS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.segment.bucket.seconds", "60");
+
+    /**
+     * rocksdb 存储引擎的时间桶宽度，单位分钟。大于 0 时每个时间桶一个列族，转发完毕后整个删除；0 表示不分桶。
+     * 开启后不能关闭、不能修改
+     */
+    public static final String ROCKSDB_BUCKET_MINUTES = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.rocksdb.bucket.minutes", "0");
+
+    /**
+     * rocksdb 存储引擎是否所有处理流程共用一个数据库[{@link #STORE_PATH}/shared]，每个处理流程一个列族。
+     * 开启后启动时自动迁移原有的独立数据库
+     */
+    public static final String ROCKSDB_SHARED = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.rocksdb.shared", "false");
+
+    /**
+     * 共用数据库的内存上限，单位 mb 。block cache 与 memtable 共用该额度，memtable 最多占一半
+     */
+    public static final String ROCKSDB_MEMORY_MB = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.rocksdb.memory.mb", "256");
+
+    /**
+     * 共用数据库的后台合并、刷盘线程数上限
+     */
+    public static final String ROCKSDB_BACKGROUND_JOBS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.rocksdb.background.jobs", "4");
+
     /**
      * 统一延时消息topic
      */
     public static final String DELAY_TOPIC = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.topic", "common_delay_msg");
 
     /**
-     * 并发处理数。
-     * 每个处理流程都会创建一个kafka消费者，sqlite数据库。
+     * 消费线程数。
+     * 每个消费线程创建一个kafka消费者，本地存储按 topic 分区分片，所有消费线程共用。
      * 配置大一些可以提高处理速度，但注意不要超过topic的分区数，否则超出部分不会接受延时消息。
      * 需要自行测试合适的并发处理数，磁盘io、网络io达到上限后，再添加也是无效的。
      */
     public static final String WORKERS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.workers", "2");
 
+    /**
+     * 每个处理流程的消息解析线程数。
+     * 解析 json 、校验、序列化由多个线程并行处理，写入本地数据库由单独的线程批量执行。
+     */
+    public static final String STORE_PARSERS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.store.parsers", "2");
+
+    /**
+     * 快速通道提前量，单位毫秒。
+     * 触发时间不晚于 当前时间 + 该值 的消息不写入本地数据库，直接转发，发送成功后才提交偏移量；
+     * 默认 0 ，只有已到期的消息走快速通道；小于 0 时不启用。
+     * 快速通道的消息不经过时间轮，可能早于同一个 messageKey 已保存在本地、还未转发的消息。
+     */
+    public static final String FAST_PATH_MS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.fastpath.ms", "0");
+
+    /**
+     * 本地数据库写入的持久化方式，写入返回后才会提交 kafka 偏移量。
+     * async : 写入 WAL 后立即返回，断电可能丢失最近写入的消息[默认]；
+     * group : 组提交，所有处理流程的写入按时间窗口合并成一次 fsync ，落盘后返回；segment 引擎没有 WAL ，group 与 sync 相同；
+     * sync : 每批写入单独 fsync 后返回。
+     */
+    public static final String DURABILITY = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.durability", "async");
+
+    /**
+     * 组提交的时间窗口，单位毫秒。
+     * 收到第一个写入后，最多再等待该时长收集更多写入，再统一落盘；
+     * 0 表示不额外等待，落盘期间到达的写入自动合并到下一次落盘[默认]。
+     */
+    public static final String DURABILITY_GROUP_MS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.durability.group.ms", "0");
+
+    /**
+     * 组提交等待落盘的记录数达到该值时，不等时间窗口结束立即落盘
+     */
+    public static final String DURABILITY_GROUP_SIZE = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.durability.group.size", "10000");
+
+    /**
+     * 触发时间精度。
+     * s : 业务方传入秒级时间戳[默认]；
+     * ms : 业务方传入毫秒级时间戳，同时兼容秒级时间戳，同一秒内到期的消息按毫秒分散转发。
+     * 本地存储统一使用毫秒，两种模式可以随时切换。
+     */
+    public static final String TIME_PRECISION = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.time.precision", "s");
+
+    /**
+     * 时间轮预读时长，单位秒。
+     * 大于 0 时，提前把该时长内到期的消息读入内存时间轮，到期时直接转发，提高转发时间精度；
+     * 等于 0 时，到期后再读取本地数据库转发。
+     */
+    public static final String WHEEL_SECONDS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.wheel.seconds", "0");
+
+    /**
+     * 每个处理流程同时在途[已发送、未收到发送结果]的最大消息数。
+     * 不等待上一批的发送结果即可继续发送，超出该值后暂停读取，等待发送结果。
+     */
+    public static final String TRANSFER_IN_FLIGHT = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.transfer.inflight", "20000");
+
+    /**
+     * 转发使用的发送线程数，所有分片共用，不大于 1 时由各分片的转发线程直接发送[默认]。
+     * 同一个 messageKey 的消息由同一个线程按时间轮到期的顺序发送；追赶模式、快速通道、失败重试的消息不保证顺序，见 {@link com.github.delaymsg.task.KeyOrderedExecutor}
+     */
+    public static final String TRANSFER_SEND_THREADS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.transfer.send.threads", "1");
+
+    /**
+     * 转发使用的 kafka producer 数量。
+     * 单个 producer 只有一个 io 线程，多核机器上可以调大；消息按 key 分配 producer ，同一个 key 的消息保持顺序
+     */
+    public static final String SENDER_PRODUCERS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.sender.producers", "1");
+
+    /**
+     * 每个 producer 的发送缓存大小，单位 mb
+     */
+    public static final String SENDER_BUFFER_MB = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.sender.buffer.mb", "128");
+
+    /**
+     * 转发失败后第一次重试的退避时间，单位：毫秒。之后每次失败翻倍，见 {@link com.github.delaymsg.task.RetryPolicy}
+     */
+    public static final String RETRY_BACKOFF_MS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.retry.backoff.ms", "1000");
+
+    /**
+     * 转发失败后的最长退避时间，单位：毫秒
+     */
+    public static final String RETRY_BACKOFF_MAX_MS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.retry.backoff.max.ms", "300000");
+
+    /**
+     * 连续转发失败多少次后，改为发送到死信 topic
+     */
+    public static final String RETRY_MAX_ATTEMPTS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.retry.max.attempts", "10");
+
+    /**
+     * 死信 topic ，为空时不启用[默认]，转发失败的消息按最长退避时间一直重试
+     */
+    public static final String DEAD_LETTER_TOPIC = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.dead.letter.topic", "");
+
+    /**
+     * 按业务 topic 限制每秒转发条数，为空时不限制[默认]。
+     * 格式 topic:每秒条数，多个以 , 分割，* 表示未单独配置的 topic ，eg : order_timeout:2000,*:10000 。
+     * 见 {@link com.github.delaymsg.task.TopicRateLimiter}
+     */
+    public static final String TOPIC_RATE_LIMIT = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.topic.rate.limit", "");
+
+    /**
+     * 限流时每个业务 topic 允许的最大延迟，单位：毫秒，格式同 {@link #TOPIC_RATE_LIMIT} 。
+     * 超过触发时间 + 最大延迟的消息不再等待限流；最大延迟小的 topic 优先转发
+     */
+    public static final String TOPIC_MAX_LATENESS_MS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.topic.max.lateness.ms", "*:60000");
+
+    /**
+     * 优先级通道及权重，为空时只有默认通道[default]。
+     * 格式 通道名:权重，多个以 , 分割，eg : critical:4,default:1 。每个通道一个本地存储、一个转发线程，在途额度按权重分配，
+     * 见 {@link com.github.delaymsg.task.PriorityLanes}
+     */
+    public static final String LANE_WEIGHTS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.lane.weights", "");
+
+    /**
+     * 业务 topic 对应的优先级通道，格式 topic:通道名，多个以 , 分割。消息里指定了 priority 时以消息为准
+     */
+    public static final String LANE_TOPICS = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.lane.topics", "");
+
+    /**
+     * 追赶模式阈值，不大于 0 时不启用[默认]。
+     * 转发线程定时检查，已到期、时间轮还未预读的消息数[估算]达到该值时，先并发转发全部已到期的消息，见 {@link com.github.delaymsg.task.CatchUpDrainer}
+     */
+    public static final String CATCH_UP_BACKLOG = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.catchup.backlog", "0");
+
+    /**
+     * 追赶模式每个转发线程并发扫描、发送的线程数
+     */
+    public static final String CATCH_UP_PARALLELISM = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.catchup.parallelism", "4");
+
+    /**
+     * 追赶模式每个转发线程同时在途的最大消息数
+     */
+    public static final String CATCH_UP_IN_FLIGHT = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.catchup.inflight", "100000");
+
+    /**
+     * 分片 changelog topic ，为空时不启用[默认]。
+     * 启用后写入、删除同步发布到该 topic ，其它节点据此维护热备份，节点宕机后秒级接管。
+     * 需提前创建，cleanup.policy=compact ，分区数与 {@link #DELAY_TOPIC} 相同。
+     * 只复制默认通道，不能与优先级通道 {@link #LANE_WEIGHTS} 同时配置，否则拒绝启动
+     */
+    public static final String CHANGELOG_TOPIC = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.changelog.topic", "");
+
+    /**
+     * 启用 changelog 时，是否持续备份其它节点的分区。
+     * true : 热备份，接管时只需追上少量尾部数据[默认]；false : 不备份，接管时从头读取 changelog 重建
+     */
+    public static final String CHANGELOG_STANDBY = PropertyUtils.getConfig(CONFIG_FILE, "kafka.delay.changelog.standby", "true");
+
     private DelayConst() {
     }
 
@@ -0,0 +1,116 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * 把写入、删除同步发布到 changelog topic 的本地存储，changelog 的分区号等于分片号。
+ * <pre>
+ * 1. batchStore 先写本地，再等待 changelog 写入成功后返回，之后才会提交偏移量：本机磁盘损坏时，消息仍可从 changelog 恢复
+ * 2. batchDelete 发送 key 对应的墓碑消息[value 为 null]，不等待结果；丢失时备份节点接管后会重复转发，不会丢消息
+ * 3. changelog topic 需配置 cleanup.policy=compact ，只保留未转发的消息，恢复耗时取决于积压量而不是历史总量
+ * </pre>
+ * 线程安全性与被包装的存储相同，kafka 生产者是线程安全的。
+ *
+ * @author HuaHui Yu 2026-10-18 21:32:06
+ **/
+public class ChangelogDelayStore implements DelayStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ChangelogDelayStore.class);
+
+    private final DelayStore delayStore;
+
+    private final Producer<byte[], byte[]> producer;
+
+    private final String topic;
+
+    private final int partition;
+
+    private final Callback logFailure;
+
+    /**
+     * @param delayStore 本地存储
+     * @param producer   changelog 生产者，所有分片共用
+     * @param topic      changelog topic
+     * @param partition  分片号
+     */
+    public ChangelogDelayStore(DelayStore delayStore, Producer<byte[], byte[]> producer, String topic, int partition) {
+        this.delayStore = delayStore;
+        this.producer = producer;
+        this.topic = topic;
+        this.partition = partition;
+        logFailure = (metadata, exception) -> {
+            if (exception != null) {
+                log.warn("changelog 墓碑消息发送失败，接管后会重复转发 || topic : {} || partition : {}", topic, partition, exception);
+            }
+        };
+    }
+
+    @Override
+    public void batchStore(List<byte[]> keys, List<byte[]> values) {
+        delayStore.batchStore(keys, values);
+        List<Future<RecordMetadata>> futures = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            futures.add(producer.send(new ProducerRecord<>(topic, partition, keys.get(i), values.get(i))));
+        }
+        try {
+            for (Future<RecordMetadata> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to write changelog: " + topic + "-" + partition, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing changelog: " + topic + "-" + partition, e);
+        }
+    }
+
+    @Override
+    public List<DelayDto> scanTodoMsg() {
+        return delayStore.scanTodoMsg();
+    }
+
+    @Override
+    public List<DelayDto> scanRange(byte[] fromKey, byte[] toKey, int limit) {
+        return delayStore.scanRange(fromKey, toKey, limit);
+    }
+
+    @Override
+    public long peekEarliestTriggerTime() {
+        return delayStore.peekEarliestTriggerTime();
+    }
+
+    @Override
+    public long peekEarliestTriggerTime(byte[] fromKey) {
+        return delayStore.peekEarliestTriggerTime(fromKey);
+    }
+
+    @Override
+    public void batchDelete(List<byte[]> keys) {
+        delayStore.batchDelete(keys);
+        for (byte[] key : keys) {
+            producer.send(new ProducerRecord<>(topic, partition, key, null), logFailure);
+        }
+    }
+
+    @Override
+    public StoreStats stats() {
+        return delayStore.stats();
+    }
+
+    @Override
+    public long estimateCount(byte[] fromKey, byte[] toKey, long limit) {
+        return delayStore.estimateCount(fromKey, toKey, limit);
+    }
+
+}
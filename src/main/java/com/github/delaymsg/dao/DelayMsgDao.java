@@ -2,102 +2,977 @@ package com.github.delaymsg.dao;
 
 import com.github.delaymsg.constant.DelayConst;
 import com.github.delaymsg.dto.DelayDto;
-import com.github.delaymsg.utils.FstUtils;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
 import com.github.delaymsg.utils.TimeUtil;
 import org.rocksdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
 /**
+ * rocksdb 存储引擎，每个处理流程一个数据库目录。
+ * <pre>
+ * 配置了时间桶[kafka.delay.rocksdb.bucket.minutes]时，按触发时间把消息写入各自时间桶的列族[按需创建]：
+ * 1. 已过结束时间的时间桶转发、删除完毕后，直接 dropColumnFamily 删除整个列族，
+ *    逐条删除留下的墓碑随列族一起删除，不需要等待合并，磁盘空间立即回收
+ * 2. 远期时间桶短期内不会读取，使用压缩率更高的 zstd
+ * 3. 开启前默认列族里的消息，启动时迁移到时间桶；开启后不能关闭、不能修改桶宽度
+ * </pre>
+ * 配置了共用数据库[kafka.delay.rocksdb.shared]时，所有处理流程共用一个 {@link SharedRocksDB} ，每个处理流程一个分片列族，
+ * 时间桶列族名称加上分片前缀；启动时把该处理流程的独立数据库迁移到分片列族。
+ * 多线程安全：删除持有 cursorLock ，扫描持有 handleLock 读锁，追赶模式的多个线程可以与转发线程同时扫描、删除。
+ *
  * @author yhh 2021-12-22 22:02:18
  **/
-public class DelayMsgDao {
+public class DelayMsgDao implements DelayStore {
 
     private static final Logger log = LoggerFactory.getLogger(DelayMsgDao.class);
 
+    /**
+     * 单次扫描、迁移的最大记录数
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * 范围删除的最短连续段，更短的逐条删除，避免产生大量零碎的范围墓碑
+     */
+    private static final int RANGE_DELETE_MIN = 16;
+
+    /**
+     * 时间桶列族的名称前缀，后接桶的起始时间[毫秒]
+     */
+    private static final String BUCKET_PREFIX = "bucket-";
+
+    /**
+     * 共用数据库里分片列族的名称前缀，后接分片号
+     */
+    static final String SHARD_PREFIX = "shard-";
+
+    /**
+     * 起始时间晚于 当前时间 + 该值 的时间桶视为远期时间桶
+     */
+    private static final long COLD_AFTER_MS = TimeUnit.DAYS.toMillis(1L);
+
+    /**
+     * 导入用的 sst 文件编号，共用数据库时各分片的文件放在同一个目录
+     */
+    private static final AtomicLong INGEST_FILE_ID = new AtomicLong();
+
     private final RocksDB rocksDB;
 
+    /**
+     * 共用数据库，独立数据库时为 null
+     */
+    private final SharedRocksDB shared;
+
+    /**
+     * 不分桶时写入的列族：共用数据库的分片列族，独立数据库时为 null[默认列族]
+     */
+    private final ColumnFamilyHandle baseHandle;
+
+    /**
+     * 时间桶列族的名称前缀
+     */
+    private final String bucketPrefix;
+
+    private final Durability durability;
+
+    /**
+     * 时间桶宽度，毫秒；0 表示不分桶，全部写入默认列族
+     */
+    private final long bucketMs;
+
+    /**
+     * 时间桶列族，按起始时间排序。在 cursorLock 内创建、删除
+     */
+    private final ConcurrentSkipListMap<Long, ColumnFamilyHandle> buckets = new ConcurrentSkipListMap<>();
+
+    /**
+     * 读取列族时持有读锁；已删除列族的句柄持有写锁关闭，避免关闭正在读取的句柄
+     */
+    private final ReadWriteLock handleLock = new ReentrantReadWriteLock();
+
+    /**
+     * WAL 组提交，{@link Durability#GROUP} 时使用
+     */
+    private final WalSyncer walSyncer;
+
+    /**
+     * 保护游标，并保证删除前的检查与并发写入的先后顺序
+     */
+    private final Object cursorLock = new Object();
+
+    /**
+     * 扫描游标，该 key 之前的消息都已转发、删除
+     */
+    private byte[] cursor = KeyUtils.lowerBound(0L);
+
     public DelayMsgDao(RocksDB rocksDB) {
+        this(rocksDB, Durability.ASYNC, null);
+    }
+
+    public DelayMsgDao(RocksDB rocksDB, Durability durability, WalSyncer walSyncer) {
         this.rocksDB = rocksDB;
+        this.shared = null;
+        this.baseHandle = null;
+        this.bucketPrefix = BUCKET_PREFIX;
+        this.durability = durability;
+        this.walSyncer = walSyncer;
+        this.bucketMs = 0L;
     }
 
     public DelayMsgDao(int dbId) {
-        String dbDir = DelayConst.STORE_PATH + "/" + dbId;
-        File dir = new File(dbDir);
-        dir.mkdirs();
+        this(dbId, null);
+    }
+
+    /**
+     * 分片 dbId 的一个优先级通道，见 {@link StoreEngine#open(int, String)}
+     *
+     * @param lane 优先级通道，为 null 时为默认通道
+     */
+    public DelayMsgDao(int dbId, String lane) {
+        this(DelayConst.STORE_PATH + "/" + StoreEngine.storeName(dbId, lane),
+                TimeUnit.MINUTES.toMillis(Long.parseLong(DelayConst.ROCKSDB_BUCKET_MINUTES)),
+                Durability.of(DelayConst.DURABILITY));
+        Runtime.getRuntime().addShutdownHook(new Thread(rocksDB::close));
+    }
+
+    /**
+     * @param dbDir      数据库目录
+     * @param bucketMs   时间桶宽度，毫秒；0 表示不分桶
+     * @param durability 持久化方式
+     */
+    public DelayMsgDao(String dbDir, long bucketMs, Durability durability) {
+        this.shared = null;
+        this.baseHandle = null;
+        this.bucketPrefix = BUCKET_PREFIX;
+        this.bucketMs = bucketMs;
+        this.durability = durability;
+        this.walSyncer = durability == Durability.GROUP ? SharedSyncer.INSTANCE : null;
+        new File(dbDir).mkdirs();
         RocksDB.loadLibrary();
-        try (Options options = new Options()) {
-            options.setCreateIfMissing(true);
+        List<ColumnFamilyHandle> handles = new ArrayList<>();
+        List<Long> starts = new ArrayList<>();
+        try (Options options = new Options(); DBOptions dbOptions = new DBOptions()) {
+            dbOptions.setCreateIfMissing(true);
+            List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+            descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY));
+            for (byte[] name : RocksDB.listColumnFamilies(options, dbDir)) {
+                if (!Arrays.equals(name, RocksDB.DEFAULT_COLUMN_FAMILY)) {
+                    long start = checkBucket(new String(name, StandardCharsets.UTF_8), dbDir);
+                    descriptors.add(new ColumnFamilyDescriptor(name, bucketOptions(start)));
+                    starts.add(start);
+                }
+            }
             // 根据业务场景，优化数据库配置
-            rocksDB = RocksDB.open(options, dbDir);
+            rocksDB = RocksDB.open(dbOptions, dbDir, descriptors, handles);
         } catch (RocksDBException e) {
             log.error("RocksDbHelper[初始化失败] || dbDir : {} ", dbDir, e);
             throw new IllegalStateException("Failed to initialize RocksDB at path: " + dbDir, e);
         }
-        Runtime.getRuntime().addShutdownHook(new Thread(rocksDB::close));
+        for (int i = 0; i < starts.size(); i++) {
+            buckets.put(starts.get(i), handles.get(i + 1));
+        }
+        migrateLegacyKeys();
+        migrateSecondKeys();
+        if (bucketMs > 0) {
+            migrateToBuckets();
+        }
+    }
+
+    /**
+     * 共用数据库里的一个分片
+     *
+     * @param shared     共用数据库
+     * @param shardId    分片号
+     * @param bucketMs   时间桶宽度，毫秒；0 表示不分桶
+     * @param durability 持久化方式
+     */
+    public DelayMsgDao(SharedRocksDB shared, int shardId, long bucketMs, Durability durability) {
+        this(shared, SHARD_PREFIX + shardId, bucketMs, durability);
+    }
+
+    /**
+     * @param shardName 分片的列族名称[shard-分片号 或 shard-分片号-通道名]
+     */
+    private DelayMsgDao(SharedRocksDB shared, String shardName, long bucketMs, Durability durability) {
+        this.rocksDB = shared.db();
+        this.shared = shared;
+        this.bucketPrefix = shardName + "-" + BUCKET_PREFIX;
+        this.bucketMs = bucketMs;
+        this.durability = durability;
+        this.walSyncer = durability == Durability.GROUP ? SharedSyncer.INSTANCE : null;
+        try {
+            baseHandle = shared.takeOrCreate(shardName);
+        } catch (RocksDBException e) {
+            log.error("DelayMsgDao[创建分片列族失败] || shard : {} ", shardName, e);
+            throw new IllegalStateException("Failed to create column family: " + shardName, e);
+        }
+        for (Map.Entry<String, ColumnFamilyHandle> entry : shared.takeHandles(bucketPrefix).entrySet()) {
+            buckets.put(checkBucket(entry.getKey(), shardName), entry.getValue());
+        }
+        if (bucketMs > 0) {
+            migrateToBuckets();
+        }
+    }
+
+    /**
+     * 打开共用数据库里处理流程 dbId 的分片，并迁移该处理流程原有的独立数据库
+     */
+    public static DelayMsgDao openShard(int dbId) {
+        return openShard(dbId, null);
+    }
+
+    /**
+     * 打开共用数据库里分片 dbId 的一个优先级通道，并迁移原有的独立数据库
+     *
+     * @param lane 优先级通道，为 null 时为默认通道
+     */
+    public static DelayMsgDao openShard(int dbId, String lane) {
+        String name = StoreEngine.storeName(dbId, lane);
+        DelayMsgDao dao = new DelayMsgDao(SharedRocksDB.instance(), SHARD_PREFIX + name,
+                TimeUnit.MINUTES.toMillis(Long.parseLong(DelayConst.ROCKSDB_BUCKET_MINUTES)),
+                Durability.of(DelayConst.DURABILITY));
+        dao.migrateStandalone(DelayConst.STORE_PATH + "/" + name);
+        return dao;
     }
 
     /**
-     * 扫描到达延期时限的消息
+     * 扫描到达延期时限的消息。
+     * 从游标位置开始扫描，上界为当前时间，不会再访问游标之前已转发、删除的数据[墓碑]。
      *
      * @return
      */
+    @Override
     public List<DelayDto> scanTodoMsg() {
-        long unixTime = TimeUtil.unixTime();
+        long now = System.currentTimeMillis();
+        byte[] from;
+        synchronized (cursorLock) {
+            from = cursor;
+        }
+        return scanRange(from, KeyUtils.lowerBound(now + 1), BATCH_SIZE);
+    }
+
+    /**
+     * 扫描 [fromKey, toKey) 区间内的消息，不影响扫描游标。
+     * 用于转发线程按区间依次预读，前一批消息还在发送时即可继续读取下一批。
+     *
+     * @param fromKey 起始 key[包含]
+     * @param toKey   结束 key[不包含]
+     * @param limit   最大记录数
+     */
+    @Override
+    public List<DelayDto> scanRange(byte[] fromKey, byte[] toKey, int limit) {
         List<DelayDto> list = new ArrayList<>();
-        try (RocksIterator iterator = rocksDB.newIterator()) {
-            int i = 0;
-            for (iterator.seekToFirst(); iterator.isValid() && i < 10000; iterator.next(), i++) {
-                byte[] key1 = iterator.key();
-                long triggerTime = TimeUtil.extractTriggerTime(new String(key1));
-                if (triggerTime > unixTime) {
+        handleLock.readLock().lock();
+        try (
+                Slice lowerBound = new Slice(fromKey);
+                Slice upperBound = new Slice(toKey);
+                ReadOptions readOptions = new ReadOptions()
+                        .setIterateLowerBound(lowerBound)
+                        .setIterateUpperBound(upperBound)
+        ) {
+            for (ColumnFamilyHandle handle : handles(fromKey, toKey)) {
+                try (RocksIterator iterator = newIterator(handle, readOptions)) {
+                    for (iterator.seek(fromKey); iterator.isValid() && list.size() < limit; iterator.next()) {
+                        byte[] key1 = iterator.key();
+                        byte[] value1 = iterator.value();
+                        DelayDto dto = DelayDtoCodec.read(value1);
+                        dto.setKey(key1);
+                        list.add(dto);
+                    }
+                }
+                if (list.size() >= limit) {
                     break;
                 }
-                byte[] value1 = iterator.value();
-                DelayDto dto = FstUtils.read(value1);
-                list.add(dto);
             }
+        } finally {
+            handleLock.readLock().unlock();
         }
         return list;
     }
 
     /**
-     * 批量存储延时消息到本地数据库
+     * 查询最早一条消息的触发时间
+     *
+     * @return 没有消息时返回 -1
+     */
+    @Override
+    public long peekEarliestTriggerTime() {
+        byte[] from;
+        synchronized (cursorLock) {
+            from = cursor;
+        }
+        return peekEarliestTriggerTime(from);
+    }
+
+    /**
+     * 查询 fromKey 及之后最早一条消息的触发时间
+     *
+     * @return 没有消息时返回 -1
      */
-    public void batchStore(List<String> keys, List<byte[]> values) {
+    @Override
+    public long peekEarliestTriggerTime(byte[] fromKey) {
+        byte[] key = firstKey(fromKey);
+        return key == null ? -1L : KeyUtils.extractTriggerTime(key);
+    }
+
+    private byte[] firstKey(byte[] fromKey) {
+        handleLock.readLock().lock();
         try (
-                WriteOptions writeOptions = new WriteOptions();
+                Slice lowerBound = new Slice(fromKey);
+                ReadOptions readOptions = new ReadOptions().setIterateLowerBound(lowerBound)
+        ) {
+            for (ColumnFamilyHandle handle : handles(fromKey, null)) {
+                try (RocksIterator iterator = newIterator(handle, readOptions)) {
+                    iterator.seek(fromKey);
+                    if (iterator.isValid()) {
+                        return iterator.key();
+                    }
+                }
+            }
+            return null;
+        } finally {
+            handleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 批量存储延时消息到本地数据库，按 {@link Durability} 落盘后才返回
+     */
+    @Override
+    public void batchStore(List<byte[]> keys, List<byte[]> values) {
+        try (
+                WriteOptions writeOptions = new WriteOptions().setSync(durability == Durability.SYNC);
                 WriteBatch writeBatch = new WriteBatch()
         ) {
-            for (int i = 0, recordsSize = values.size(); i < recordsSize; i++) {
-                String k = keys.get(i);
-                writeBatch.put(k.getBytes(), values.get(i));
+            // 时间桶列族在锁内获取，保证写入前不会被删除
+            byte[] minKey = bucketMs > 0 ? null : fillBatch(writeBatch, keys, values);
+            synchronized (cursorLock) {
+                if (bucketMs > 0) {
+                    minKey = fillBatch(writeBatch, keys, values);
+                }
+                rocksDB.write(writeOptions, writeBatch);
+                if (minKey != null) {
+                    // 已到期的消息可能写在游标前面，回退游标，保证能扫描到
+                    cursor = KeyUtils.min(cursor, minKey);
+                }
+            }
+            if (durability == Durability.GROUP) {
+                walSyncer.awaitSync(rocksDB, values.size());
+            }
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 每个时间桶[不分桶时整体]写成一个 sst 文件，直接导入对应的列族
+     */
+    @Override
+    public void ingest(List<byte[]> keys, List<byte[]> values) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        try (
+                EnvOptions envOptions = new EnvOptions();
+                Options options = new Options();
+                IngestExternalFileOptions ingestOptions = new IngestExternalFileOptions().setMoveFiles(true)
+        ) {
+            synchronized (cursorLock) {
+                for (int from = 0, to; from < keys.size(); from = to) {
+                    to = bucketMs > 0 ? bucketEnd(keys, from) : keys.size();
+                    ColumnFamilyHandle handle = bucketMs > 0 ? bucketHandle(keys.get(from)) : baseHandle;
+                    File sstFile = new File(rocksDB.getName(), "ingest-" + INGEST_FILE_ID.incrementAndGet() + ".sst");
+                    try (SstFileWriter writer = new SstFileWriter(envOptions, options)) {
+                        writer.open(sstFile.getAbsolutePath());
+                        for (int i = from; i < to; i++) {
+                            writer.put(keys.get(i), values.get(i));
+                        }
+                        writer.finish();
+                    }
+                    List<String> files = Collections.singletonList(sstFile.getAbsolutePath());
+                    if (handle == null) {
+                        rocksDB.ingestExternalFile(files, ingestOptions);
+                    } else {
+                        rocksDB.ingestExternalFile(handle, files, ingestOptions);
+                    }
+                    sstFile.delete();
+                }
+                // 已到期的消息可能导入在游标前面，回退游标，保证能扫描到
+                cursor = KeyUtils.min(cursor, keys.get(0));
             }
-            rocksDB.write(writeOptions, writeBatch);
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private byte[] fillBatch(WriteBatch writeBatch, List<byte[]> keys, List<byte[]> values) throws RocksDBException {
+        byte[] minKey = null;
+        for (int i = 0, recordsSize = values.size(); i < recordsSize; i++) {
+            byte[] key = keys.get(i);
+            put(writeBatch, bucketMs > 0 ? bucketHandle(key) : baseHandle, key, values.get(i));
+            minKey = KeyUtils.min(minKey, key);
+        }
+        return minKey;
+    }
+
     /**
-     * 批量删除本地延时消息
+     * 批量删除本地延时消息。
+     * 按 key 顺序检查本地数据库：中间没有夹杂其它存活消息的连续一段，用一个范围删除清理掉，零散的 key 逐条删除。
+     * 检查和删除期间持有锁，扫描之后并发写入的消息会打断连续段，不会被误删。
+     * 如果游标和第一段之间已没有存活消息，范围删除从游标开始，顺带清理遗留的墓碑，并把游标移到这一段之后。
+     * 分桶时按时间桶分别处理，已转发完毕的时间桶整个删除。
+     *
+     * @param keys 转发成功的消息 key ，不要求有序，可以跨越多次扫描
      */
-    public void batchDelete(List<String> keys) {
+    @Override
+    public void batchDelete(List<byte[]> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<byte[]> sorted = new ArrayList<>(keys);
+        sorted.sort(KeyUtils::compare);
+        List<ColumnFamilyHandle> dropped = Collections.emptyList();
         try (
                 WriteOptions writeOptions = new WriteOptions();
                 WriteBatch writeBatch = new WriteBatch()
         ) {
-            for (String key : keys) {
-                writeBatch.delete(key.getBytes());
+            synchronized (cursorLock) {
+                for (int from = 0, to; from < sorted.size(); from = to) {
+                    to = bucketMs > 0 ? bucketEnd(sorted, from) : sorted.size();
+                    ColumnFamilyHandle handle = bucketMs > 0 ? buckets.get(bucketStart(sorted.get(from))) : baseHandle;
+                    if (bucketMs <= 0 || handle != null) {
+                        deleteBucket(handle, sorted.subList(from, to), writeBatch);
+                    }
+                }
+                if (writeBatch.count() > 0) {
+                    rocksDB.write(writeOptions, writeBatch);
+                }
+                if (bucketMs > 0) {
+                    dropped = dropDrainedBuckets();
+                }
+            }
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            closeHandles(dropped);
+        }
+    }
+
+    /**
+     * 生成同一列族内的删除操作
+     *
+     * @param handle 时间桶列族或 {@link #baseHandle}
+     * @param sorted 属于该列族的 key ，有序
+     */
+    private void deleteBucket(ColumnFamilyHandle handle, List<byte[]> sorted, WriteBatch writeBatch)
+            throws RocksDBException {
+        byte[] first = sorted.get(0);
+        try (
+                Slice lowerBound = new Slice(first);
+                Slice upperBound = new Slice(KeyUtils.successor(sorted.get(sorted.size() - 1)));
+                ReadOptions readOptions = new ReadOptions()
+                        .setIterateLowerBound(lowerBound)
+                        .setIterateUpperBound(upperBound)
+        ) {
+            byte[] head = firstKey(cursor);
+            boolean fromCursor = head != null && KeyUtils.compare(head, first) == 0;
+            try (RocksIterator iterator = newIterator(handle, readOptions)) {
+                deleteRuns(iterator, handle, sorted, fromCursor, writeBatch);
+            }
+        }
+    }
+
+    /**
+     * 按连续段生成删除操作，已不存在的 key 直接跳过
+     *
+     * @param fromCursor 第一段是否紧接游标
+     */
+    private void deleteRuns(RocksIterator iterator, ColumnFamilyHandle handle, List<byte[]> sorted, boolean fromCursor,
+                            WriteBatch writeBatch) throws RocksDBException {
+        int i = 0;
+        int runStart = -1;
+        for (iterator.seek(sorted.get(0)); iterator.isValid(); iterator.next()) {
+            byte[] key = iterator.key();
+            while (i < sorted.size() && KeyUtils.compare(sorted.get(i), key) < 0) {
+                i++;
+            }
+            if (i < sorted.size() && KeyUtils.compare(sorted.get(i), key) == 0) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+                i++;
+                continue;
+            }
+            // 夹杂了未转发的消息，结束当前段
+            if (runStart >= 0) {
+                deleteRun(handle, sorted.subList(runStart, i), fromCursor, writeBatch);
+                runStart = -1;
+            }
+            fromCursor = false;
+        }
+        if (runStart >= 0) {
+            deleteRun(handle, sorted.subList(runStart, i), fromCursor, writeBatch);
+        }
+    }
+
+    private void deleteRun(ColumnFamilyHandle handle, List<byte[]> run, boolean fromCursor, WriteBatch writeBatch)
+            throws RocksDBException {
+        byte[] rangeEnd = KeyUtils.successor(run.get(run.size() - 1));
+        if (fromCursor) {
+            deleteRange(writeBatch, handle, cursor, rangeEnd);
+            cursor = rangeEnd;
+        } else if (run.size() >= RANGE_DELETE_MIN) {
+            deleteRange(writeBatch, handle, run.get(0), rangeEnd);
+        } else {
+            for (byte[] key : run) {
+                delete(writeBatch, handle, key);
+            }
+        }
+    }
+
+    private static void put(WriteBatch writeBatch, ColumnFamilyHandle handle, byte[] key, byte[] value)
+            throws RocksDBException {
+        if (handle == null) {
+            writeBatch.put(key, value);
+        } else {
+            writeBatch.put(handle, key, value);
+        }
+    }
+
+    private static void delete(WriteBatch writeBatch, ColumnFamilyHandle handle, byte[] key) throws RocksDBException {
+        if (handle == null) {
+            writeBatch.delete(key);
+        } else {
+            writeBatch.delete(handle, key);
+        }
+    }
+
+    private static void deleteRange(WriteBatch writeBatch, ColumnFamilyHandle handle, byte[] from, byte[] to)
+            throws RocksDBException {
+        if (handle == null) {
+            writeBatch.deleteRange(from, to);
+        } else {
+            writeBatch.deleteRange(handle, from, to);
+        }
+    }
+
+    /**
+     * 删除已转发完毕的时间桶，调用方持有 cursorLock 。
+     * 游标之前的消息都已删除，游标之后第一条存活消息之前也没有消息，结束时间不晚于该消息的时间桶已经清空；
+     * 只删除已过结束时间的时间桶，避免当前时间桶反复创建、删除。之后再写入该时间段的消息会重新创建列族
+     *
+     * @return 已删除列族的句柄，由调用方在锁外关闭
+     */
+    private List<ColumnFamilyHandle> dropDrainedBuckets() throws RocksDBException {
+        List<ColumnFamilyHandle> dropped = new ArrayList<>();
+        byte[] head = firstKey(cursor);
+        long drainedTo = System.currentTimeMillis();
+        if (head != null) {
+            drainedTo = Math.min(drainedTo, KeyUtils.extractTriggerTime(head));
+        }
+        Iterator<Map.Entry<Long, ColumnFamilyHandle>> iterator =
+                buckets.headMap(drainedTo - bucketMs, true).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, ColumnFamilyHandle> entry = iterator.next();
+            rocksDB.dropColumnFamily(entry.getValue());
+            iterator.remove();
+            dropped.add(entry.getValue());
+            log.info("dropDrainedBuckets[时间桶已转发完毕，删除列族] || bucket : {}", entry.getKey());
+        }
+        return dropped;
+    }
+
+    /**
+     * 等待正在读取的线程结束后，关闭已删除列族的句柄，释放列族占用的文件
+     */
+    private void closeHandles(List<ColumnFamilyHandle> handles) {
+        if (handles.isEmpty()) {
+            return;
+        }
+        handleLock.writeLock().lock();
+        try {
+            handles.forEach(ColumnFamilyHandle::close);
+        } finally {
+            handleLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * rocksdb 估算的消息数[不扣除范围删除的消息]、存活数据大小
+     */
+    @Override
+    public StoreStats stats() {
+        handleLock.readLock().lock();
+        try {
+            long count = property(baseHandle, "rocksdb.estimate-num-keys");
+            long bytes = property(baseHandle, "rocksdb.estimate-live-data-size");
+            for (ColumnFamilyHandle handle : buckets.values()) {
+                count += property(handle, "rocksdb.estimate-num-keys");
+                bytes += property(handle, "rocksdb.estimate-live-data-size");
+            }
+            return new StoreStats(count, bytes);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            handleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 按 rocksdb 估算的区间大小[含 memtable] / 平均每条消息的大小估算，不逐条扫描
+     */
+    @Override
+    public long estimateCount(byte[] fromKey, byte[] toKey, long limit) {
+        handleLock.readLock().lock();
+        try (
+                Slice from = new Slice(fromKey);
+                Slice to = new Slice(toKey);
+                Slice first = new Slice(KeyUtils.lowerBound(0L));
+                Slice last = new Slice(KeyUtils.lowerBound(-1L))
+        ) {
+            long rangeBytes = 0;
+            for (ColumnFamilyHandle handle : handles(fromKey, toKey)) {
+                rangeBytes += approximateSize(handle, new Range(from, to));
+            }
+            long totalBytes = 0;
+            long totalCount = 0;
+            for (ColumnFamilyHandle handle : handles(KeyUtils.lowerBound(0L), null)) {
+                totalBytes += approximateSize(handle, new Range(first, last));
+                totalCount += property(handle, "rocksdb.estimate-num-keys");
+            }
+            if (totalBytes <= 0 || totalCount <= 0) {
+                return 0L;
             }
-            rocksDB.write(writeOptions, writeBatch);
+            return (long) ((double) rangeBytes / totalBytes * totalCount);
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
+        } finally {
+            handleLock.readLock().unlock();
+        }
+    }
+
+    private long approximateSize(ColumnFamilyHandle handle, Range range) {
+        List<Range> ranges = Collections.singletonList(range);
+        long[] sizes = handle == null
+                ? rocksDB.getApproximateSizes(ranges, SizeApproximationFlag.INCLUDE_FILES, SizeApproximationFlag.INCLUDE_MEMTABLES)
+                : rocksDB.getApproximateSizes(handle, ranges, SizeApproximationFlag.INCLUDE_FILES, SizeApproximationFlag.INCLUDE_MEMTABLES);
+        return sizes.length == 0 ? 0L : sizes[0];
+    }
+
+    private long property(ColumnFamilyHandle handle, String name) throws RocksDBException {
+        return handle == null ? rocksDB.getLongProperty(name) : rocksDB.getLongProperty(handle, name);
+    }
+
+    /**
+     * 把旧版本 "triggerTime#id" 格式的字符串 key 迁移为二进制 key ，value 保持不变。
+     * 迁移后的触发时间仍是秒级时间戳，由 {@link #migrateSecondKeys()} 继续换算为毫秒。
+     * 旧格式 key 都排在新格式 key 后面，直接定位到旧格式 key 的起始位置即可，没有旧数据时只是一次 seek 。
+     */
+    void migrateLegacyKeys() {
+        int migrated = 0;
+        try (
+                ReadOptions readOptions = new ReadOptions();
+                RocksIterator iterator = newIterator(baseHandle, readOptions);
+                WriteOptions writeOptions = new WriteOptions();
+                WriteBatch writeBatch = new WriteBatch()
+        ) {
+            for (iterator.seek(KeyUtils.LEGACY_KEY_START); iterator.isValid(); iterator.next()) {
+                byte[] legacyKey = iterator.key();
+                if (!KeyUtils.isLegacyKey(legacyKey)) {
+                    break;
+                }
+                byte[] key;
+                try {
+                    key = KeyUtils.fromLegacyKey(legacyKey);
+                } catch (IllegalArgumentException e) {
+                    log.warn("migrateLegacyKeys[忽略无法识别的旧版本 key] || key : {}", new String(legacyKey), e);
+                    continue;
+                }
+                put(writeBatch, baseHandle, key, iterator.value());
+                delete(writeBatch, baseHandle, legacyKey);
+                if (++migrated % BATCH_SIZE == 0) {
+                    rocksDB.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+            }
+            if (writeBatch.count() > 0) {
+                rocksDB.write(writeOptions, writeBatch);
+            }
+        } catch (RocksDBException e) {
+            log.error("migrateLegacyKeys[迁移旧版本 key 失败]", e);
+            throw new IllegalStateException("Failed to migrate legacy keys", e);
+        }
+        if (migrated > 0) {
+            log.info("migrateLegacyKeys[旧版本 key 迁移完成] || migrated : {}", migrated);
+        }
+    }
+
+    /**
+     * 把触发时间为秒级时间戳的 key 迁移为毫秒时间戳，value 保持不变。
+     * 秒级 key 的触发时间都小于 {@link TimeUtil#SECONDS_THRESHOLD} ，排在毫秒级 key 前面，只需扫描该区间。
+     */
+    void migrateSecondKeys() {
+        int migrated = 0;
+        try (
+                Slice upperBound = new Slice(KeyUtils.lowerBound(TimeUtil.SECONDS_THRESHOLD));
+                ReadOptions readOptions = new ReadOptions().setIterateUpperBound(upperBound);
+                RocksIterator iterator = newIterator(baseHandle, readOptions);
+                WriteOptions writeOptions = new WriteOptions();
+                WriteBatch writeBatch = new WriteBatch()
+        ) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                byte[] secondKey = iterator.key();
+                long triggerTime = TimeUtil.toTriggerMillis(KeyUtils.extractTriggerTime(secondKey), false);
+                put(writeBatch, baseHandle, KeyUtils.buildKey(triggerTime, KeyUtils.extractSequence(secondKey)),
+                        iterator.value());
+                delete(writeBatch, baseHandle, secondKey);
+                if (++migrated % BATCH_SIZE == 0) {
+                    rocksDB.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+            }
+            if (writeBatch.count() > 0) {
+                rocksDB.write(writeOptions, writeBatch);
+            }
+        } catch (RocksDBException e) {
+            log.error("migrateSecondKeys[迁移秒级 key 失败]", e);
+            throw new IllegalStateException("Failed to migrate second-precision keys", e);
+        }
+        if (migrated > 0) {
+            log.info("migrateSecondKeys[秒级 key 迁移完成] || migrated : {}", migrated);
+        }
+    }
+
+    /**
+     * 把默认列族[分片列族]里的消息迁移到时间桶列族，开启时间桶前写入的消息只需迁移一次
+     */
+    void migrateToBuckets() {
+        int migrated = 0;
+        try (
+                ReadOptions readOptions = new ReadOptions();
+                RocksIterator iterator = newIterator(baseHandle, readOptions);
+                WriteOptions writeOptions = new WriteOptions();
+                WriteBatch writeBatch = new WriteBatch()
+        ) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                byte[] key = iterator.key();
+                writeBatch.put(bucketHandle(key), key, iterator.value());
+                delete(writeBatch, baseHandle, key);
+                if (++migrated % BATCH_SIZE == 0) {
+                    rocksDB.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+            }
+            if (writeBatch.count() > 0) {
+                rocksDB.write(writeOptions, writeBatch);
+            }
+        } catch (RocksDBException e) {
+            log.error("migrateToBuckets[迁移到时间桶失败]", e);
+            throw new IllegalStateException("Failed to migrate keys to time buckets", e);
+        }
+        if (migrated > 0) {
+            log.info("migrateToBuckets[迁移到时间桶完成] || migrated : {} || buckets : {}", migrated, buckets.size());
+        }
+    }
+
+    /**
+     * 把独立数据库里的消息迁移到共用数据库的分片列族，迁移完成后删除独立数据库目录。
+     * 先写入分片列族、再从独立数据库删除，中途退出时重启后继续迁移，最多重复发送，不会丢失
+     *
+     * @param dbDir 独立数据库目录
+     */
+    void migrateStandalone(String dbDir) {
+        File dir = new File(dbDir);
+        if (!new File(dir, "CURRENT").exists()) {
+            return;
+        }
+        DelayMsgDao standalone = new DelayMsgDao(dbDir, bucketMs, Durability.ASYNC);
+        int migrated = 0;
+        try {
+            byte[] from = KeyUtils.lowerBound(0L);
+            byte[] to = KeyUtils.lowerBound(Long.MAX_VALUE);
+            for (List<DelayDto> list = standalone.scanRange(from, to, BATCH_SIZE); !list.isEmpty();
+                 list = standalone.scanRange(from, to, BATCH_SIZE)) {
+                List<byte[]> keys = new ArrayList<>(list.size());
+                List<byte[]> values = new ArrayList<>(list.size());
+                for (DelayDto dto : list) {
+                    keys.add(dto.getKey());
+                    values.add(DelayDtoCodec.write(dto));
+                }
+                batchStore(keys, values);
+                standalone.batchDelete(keys);
+                from = KeyUtils.successor(keys.get(keys.size() - 1));
+                migrated += keys.size();
+            }
+            rocksDB.syncWal();
+        } catch (RocksDBException e) {
+            log.error("migrateStandalone[迁移独立数据库失败] || dbDir : {}", dbDir, e);
+            throw new IllegalStateException("Failed to migrate standalone database: " + dbDir, e);
+        } finally {
+            standalone.close();
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            log.warn("migrateStandalone[删除独立数据库目录失败] || dbDir : {}", dbDir, e);
+        }
+        log.info("migrateStandalone[独立数据库迁移完成] || dbDir : {} || migrated : {}", dbDir, migrated);
+    }
+
+    /**
+     * 关闭独立数据库，迁移完成后使用
+     */
+    void close() {
+        buckets.values().forEach(ColumnFamilyHandle::close);
+        rocksDB.close();
+    }
+
+    /**
+     * 读取 [fromKey, toKey) 需要访问的列族，调用方持有 handleLock 读锁
+     *
+     * @param toKey null 表示不限
+     * @return 不分桶时返回 {@link #baseHandle}
+     */
+    private List<ColumnFamilyHandle> handles(byte[] fromKey, byte[] toKey) {
+        if (bucketMs <= 0) {
+            return Collections.singletonList(baseHandle);
+        }
+        long to = toKey == null ? Long.MAX_VALUE : bucketStart(toKey);
+        return new ArrayList<>(buckets.subMap(bucketStart(fromKey), true, to, true).values());
+    }
+
+    private RocksIterator newIterator(ColumnFamilyHandle handle, ReadOptions readOptions) {
+        return handle == null ? rocksDB.newIterator(readOptions) : rocksDB.newIterator(handle, readOptions);
+    }
+
+    /**
+     * key 所在时间桶的列族，不存在时创建
+     */
+    private ColumnFamilyHandle bucketHandle(byte[] key) throws RocksDBException {
+        long start = bucketStart(key);
+        ColumnFamilyHandle handle = buckets.get(start);
+        if (handle == null) {
+            byte[] name = (bucketPrefix + start).getBytes(StandardCharsets.UTF_8);
+            handle = rocksDB.createColumnFamily(new ColumnFamilyDescriptor(name, bucketOptions(start)));
+            buckets.put(start, handle);
+        }
+        return handle;
+    }
+
+    /**
+     * sorted 里从 from 开始、与 from 属于同一时间桶的最后位置[不包含]
+     */
+    private int bucketEnd(List<byte[]> sorted, int from) {
+        long start = bucketStart(sorted.get(from));
+        int to = from + 1;
+        while (to < sorted.size() && bucketStart(sorted.get(to)) == start) {
+            to++;
+        }
+        return to;
+    }
+
+    private long bucketStart(byte[] key) {
+        long triggerTime = KeyUtils.extractTriggerTime(key);
+        return triggerTime - triggerTime % bucketMs;
+    }
+
+    /**
+     * 校验已有的时间桶列族与当前配置一致
+     *
+     * @param where 数据库目录或分片，用于提示
+     * @return 时间桶的起始时间
+     */
+    private long checkBucket(String name, String where) {
+        long start;
+        try {
+            if (!name.startsWith(bucketPrefix)) {
+                throw new NumberFormatException(name);
+            }
+            start = Long.parseLong(name.substring(bucketPrefix.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("无法识别的列族 : " + name + " || " + where, e);
+        }
+        if (bucketMs <= 0 || start % bucketMs != 0) {
+            throw new IllegalStateException("本地数据库已按时间桶保存，不能关闭时间桶或修改桶宽度，需先转发完毕 || column family : "
+                    + name + " || " + where);
+        }
+        return start;
+    }
+
+    private ColumnFamilyOptions bucketOptions(long start) {
+        boolean cold = isCold(start);
+        if (shared != null) {
+            return shared.options(cold);
+        }
+        return cold ? BucketOptions.COLD : BucketOptions.HOT;
+    }
+
+    private static boolean isCold(long bucketStart) {
+        return bucketStart > System.currentTimeMillis() + COLD_AFTER_MS;
+    }
+
+    /**
+     * 列族是否为远期时间桶，打开数据库时选择列族配置
+     */
+    static boolean isColdBucket(String name) {
+        int index = name.lastIndexOf(BUCKET_PREFIX);
+        if (index < 0) {
+            return false;
+        }
+        try {
+            return isCold(Long.parseLong(name.substring(index + BUCKET_PREFIX.length())));
+        } catch (NumberFormatException e) {
+            return false;
         }
     }
 
+    /**
+     * 时间桶列族的配置，所有本地数据库共用，第一次使用时创建
+     */
+    private static final class BucketOptions {
+
+        /**
+         * 近期到期的时间桶，使用默认配置
+         */
+        private static final ColumnFamilyOptions HOT = new ColumnFamilyOptions();
+
+        /**
+         * 远期时间桶，短期内不会读取，使用压缩率更高的 zstd
+         */
+        private static final ColumnFamilyOptions COLD = new ColumnFamilyOptions()
+                .setCompressionType(CompressionType.ZSTD_COMPRESSION);
+
+    }
+
+    /**
+     * 所有本地数据库共用的 WAL 组提交，第一次使用时创建
+     */
+    private static final class SharedSyncer {
+
+        private static final WalSyncer INSTANCE = new WalSyncer(Long.parseLong(DelayConst.DURABILITY_GROUP_MS),
+                Integer.parseInt(DelayConst.DURABILITY_GROUP_SIZE));
+
+    }
+
 }
@@ -0,0 +1,104 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.KeyUtils;
+
+import java.util.List;
+
+/**
+ * 延时消息本地存储，一个分片[kafka 分区]对应一个。
+ * 消息按 key[触发时间 + 序号，见 {@link com.github.delaymsg.utils.KeyUtils}] 有序保存，value 为序列化后的消息。
+ * <pre>
+ * 实现要求：
+ * 1. 保存线程调用 batchStore ，转发线程调用其余方法，两个线程并发访问；changelog 备份线程只在不转发时调用 batchStore 、batchDelete ；
+ *    追赶模式期间，另有多个追赶线程与转发线程同时调用 scanRange 、batchDelete ，见 {@link com.github.delaymsg.task.CatchUpDrainer} ，
+ *    扫描、删除都必须是线程安全的，不能依赖调用方只有一个线程
+ * 2. batchStore 返回后，后续的扫描必须能读到这批消息[时间轮的预读依赖这一点]
+ * 3. batchStore 返回即视为写入成功，随后会提交 kafka 偏移量
+ * </pre>
+ * 存储引擎通过 kafka.delay.store.engine 配置，见 {@link StoreEngine} 。
+ *
+ * @author HuaHui Yu 2026-10-18 18:02:44
+ **/
+public interface DelayStore {
+
+    /**
+     * 批量保存延时消息，写入成功后才返回，失败时抛出异常
+     *
+     * @param keys   存储 key
+     * @param values 序列化后的消息
+     */
+    void batchStore(List<byte[]> keys, List<byte[]> values);
+
+    /**
+     * 批量导入按 key 升序排列、不重复的消息，用于重新分片，写入成功后才返回。
+     * 默认与 batchStore 相同；rocksdb 引擎生成 sst 文件直接导入，不经过 WAL 和 memtable
+     *
+     * @param keys   存储 key ，升序
+     * @param values 序列化后的消息
+     */
+    default void ingest(List<byte[]> keys, List<byte[]> values) {
+        batchStore(keys, values);
+    }
+
+    /**
+     * 扫描已到期的消息，按 key 顺序返回，单次数量有上限
+     */
+    List<DelayDto> scanTodoMsg();
+
+    /**
+     * 按 key 顺序扫描 [fromKey, toKey) 区间内的消息
+     *
+     * @param fromKey 起始 key[包含]
+     * @param toKey   结束 key[不包含]
+     * @param limit   最大记录数
+     */
+    List<DelayDto> scanRange(byte[] fromKey, byte[] toKey, int limit);
+
+    /**
+     * 查询最早一条消息的触发时间
+     *
+     * @return 没有消息时返回 -1
+     */
+    long peekEarliestTriggerTime();
+
+    /**
+     * 查询 fromKey 及之后最早一条消息的触发时间
+     *
+     * @return 没有消息时返回 -1
+     */
+    long peekEarliestTriggerTime(byte[] fromKey);
+
+    /**
+     * 批量删除已转发的消息，已不存在的 key 直接跳过
+     *
+     * @param keys 不要求有序
+     */
+    void batchDelete(List<byte[]> keys);
+
+    /**
+     * 存储统计信息，允许是估算值
+     */
+    StoreStats stats();
+
+    /**
+     * 估算 [fromKey, toKey) 区间内的消息数，用于判断积压量，允许有较大误差。
+     * 默认逐条扫描计数，数到 limit 为止
+     *
+     * @param limit 达到该值后可以不再计数
+     */
+    default long estimateCount(byte[] fromKey, byte[] toKey, long limit) {
+        long count = 0;
+        byte[] cursor = fromKey;
+        while (count < limit) {
+            List<DelayDto> list = scanRange(cursor, toKey, (int) Math.min(limit - count, 10000));
+            count += list.size();
+            if (list.isEmpty() || count >= limit) {
+                break;
+            }
+            cursor = KeyUtils.successor(list.get(list.size() - 1).getKey());
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.github.delaymsg.dao;
+
+/**
+ * 本地数据库写入的持久化方式。
+ * 写入返回后才会提交 kafka 偏移量，三种方式的区别在于写入返回时数据是否已经落盘。
+ *
+ * @author HuaHui Yu 2026-10-18 16:20:53
+ **/
+public enum Durability {
+
+    /**
+     * 写入 WAL 后立即返回，不等待落盘[默认]。
+     * 进程崩溃不会丢数据，但断电、系统崩溃可能丢失最近写入、且已提交偏移量的消息。
+     */
+    ASYNC,
+
+    /**
+     * 组提交：多个本地数据库的写入合并，由 {@link WalSyncer} 按时间窗口、记录数统一落盘，落盘后写入才返回。
+     */
+    GROUP,
+
+    /**
+     * 每批写入都单独落盘后才返回
+     */
+    SYNC;
+
+    /**
+     * @param mode async / group / sync ，不区分大小写
+     * @throws IllegalArgumentException 无法识别的配置
+     */
+    public static Durability of(String mode) {
+        return valueOf(mode.trim().toUpperCase());
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 纯内存的延时消息存储，使用跳表按 key 排序。
+ * 没有磁盘读写，吞吐量只受 cpu 、内存限制；但程序重启、崩溃后消息全部丢失，且写入后就会提交偏移量，无法重新消费。
+ * 适用于单元测试、存储引擎对比测试、可以容忍丢消息的小规模部署。
+ * value 与 rocksdb 一样保存序列化后的消息，内存占用和扫描开销与实际场景一致。
+ * 多线程安全。
+ *
+ * @author HuaHui Yu 2026-10-18 18:11:26
+ **/
+public class MemoryDelayStore implements DelayStore {
+
+    /**
+     * 单次扫描的最大记录数
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    private static final byte[] FIRST_KEY = KeyUtils.lowerBound(0L);
+
+    private final ConcurrentSkipListMap<byte[], byte[]> messages = new ConcurrentSkipListMap<>(KeyUtils::compare);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public void batchStore(List<byte[]> keys, List<byte[]> values) {
+        for (int i = 0, size = values.size(); i < size; i++) {
+            byte[] key = keys.get(i);
+            byte[] value = values.get(i);
+            byte[] old = messages.put(key, value);
+            if (old == null) {
+                count.incrementAndGet();
+                bytes.addAndGet(key.length + value.length);
+            } else {
+                bytes.addAndGet(value.length - old.length);
+            }
+        }
+    }
+
+    @Override
+    public List<DelayDto> scanTodoMsg() {
+        return scanRange(FIRST_KEY, KeyUtils.lowerBound(System.currentTimeMillis() + 1), BATCH_SIZE);
+    }
+
+    @Override
+    public List<DelayDto> scanRange(byte[] fromKey, byte[] toKey, int limit) {
+        List<DelayDto> list = new ArrayList<>();
+        if (KeyUtils.compare(fromKey, toKey) >= 0) {
+            return list;
+        }
+        for (Map.Entry<byte[], byte[]> entry : messages.subMap(fromKey, true, toKey, false).entrySet()) {
+            if (list.size() >= limit) {
+                break;
+            }
+            DelayDto dto = DelayDtoCodec.read(entry.getValue());
+            dto.setKey(entry.getKey());
+            list.add(dto);
+        }
+        return list;
+    }
+
+    @Override
+    public long peekEarliestTriggerTime() {
+        return peekEarliestTriggerTime(FIRST_KEY);
+    }
+
+    @Override
+    public long peekEarliestTriggerTime(byte[] fromKey) {
+        byte[] key = messages.ceilingKey(fromKey);
+        return key == null ? -1L : KeyUtils.extractTriggerTime(key);
+    }
+
+    @Override
+    public void batchDelete(List<byte[]> keys) {
+        for (byte[] key : keys) {
+            byte[] old = messages.remove(key);
+            if (old != null) {
+                count.decrementAndGet();
+                bytes.addAndGet(-(key.length + old.length));
+            }
+        }
+    }
+
+    @Override
+    public long estimateCount(byte[] fromKey, byte[] toKey, long limit) {
+        if (KeyUtils.compare(fromKey, toKey) >= 0) {
+            return 0L;
+        }
+        long count = 0;
+        Iterator<byte[]> iterator = messages.subMap(fromKey, true, toKey, false).keySet().iterator();
+        while (count < limit && iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public StoreStats stats() {
+        return new StoreStats(count.get(), bytes.get());
+    }
+
+}
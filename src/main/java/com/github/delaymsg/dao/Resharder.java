@@ -0,0 +1,218 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+
+/**
+ * 重新分片：分片数[延时消息 topic 的分区数]变化，或从按处理流程划分的旧版本升级后，把本地所有待转发的消息重新分配到新的分片。
+ * 分片 p 保存分区 p 的消息，本地不保存延时消息 topic 上的原始 key ，按 messageKey 以 kafka 默认分区器的算法计算目标分片：
+ * 业务方以 messageKey 作为延时消息的 key 发送时，与新的分区完全一致；否则同一个 messageKey 的消息至少落在同一个分片，由同一个转发线程按顺序转发。
+ * 没有 messageKey 的消息按序号均匀打散。
+ * <pre>
+ * 1. 每个源分片一个线程并行处理，按 key 顺序分批读取，每批按目标分片分组后批量导入，rocksdb 引擎生成 sst 文件直接导入
+ * 2. 先导入目标分片，再从源分片删除，中途退出时重启后继续，最多重复发送，不会丢失
+ * 3. 本地存储目录下的 {@link #LAYOUT_FILE} 记录当前分片数，分片数不变时不再处理
+ * 4. 配置了优先级通道时每个通道单独重新分片，消息留在原来的通道，分片号与默认通道一致；只处理当前配置的通道
+ * </pre>
+ * 需要在分片开始转发之前执行。
+ *
+ * @author HuaHui Yu 2026-10-18 22:41:17
+ **/
+public final class Resharder {
+
+    private static final Logger log = LoggerFactory.getLogger(Resharder.class);
+
+    /**
+     * 记录分片数的文件
+     */
+    static final String LAYOUT_FILE = "shards";
+
+    private static final int BATCH_SIZE = 10000;
+
+    private Resharder() {
+    }
+
+    /**
+     * 本地记录的分片数与 shardCount 不同[包括没有记录]时重新分片，完成后记录新的分片数
+     *
+     * @param storePath  本地存储目录
+     * @param stores     已打开的分片，分片号 -> 存储，缺少的目标分片打开后加入
+     * @param shardCount 新的分片数，目标分片为 [0, shardCount)
+     * @param opener     打开分片
+     * @return 移动的消息数
+     */
+    public static long reshardIfChanged(String storePath, Map<Integer, DelayStore> stores, int shardCount,
+                                        IntFunction<DelayStore> opener) {
+        return reshardIfChanged(storePath, Collections.singletonList(stores), shardCount, (id, lane) -> opener.apply(id));
+    }
+
+    /**
+     * 本地记录的分片数与 shardCount 不同[包括没有记录]时逐个通道重新分片，全部完成后记录新的分片数
+     *
+     * @param storePath  本地存储目录
+     * @param laneStores 各优先级通道已打开的分片，0 为默认通道，分片号 -> 存储，缺少的目标分片打开后加入
+     * @param shardCount 新的分片数，目标分片为 [0, shardCount)
+     * @param opener     打开分片的一个通道，参数为分片号、通道
+     * @return 移动的消息数
+     */
+    public static long reshardIfChanged(String storePath, List<Map<Integer, DelayStore>> laneStores, int shardCount,
+                                        BiFunction<Integer, Integer, DelayStore> opener) {
+        File layout = new File(storePath, LAYOUT_FILE);
+        if (Integer.toString(shardCount).equals(readLayout(layout))) {
+            return 0L;
+        }
+        long moved = 0L;
+        for (int lane = 0; lane < laneStores.size(); lane++) {
+            Map<Integer, DelayStore> stores = laneStores.get(lane);
+            int current = lane;
+            moved += stores.isEmpty() ? 0L : reshard(stores, shardCount, id -> opener.apply(id, current));
+        }
+        writeLayout(layout, shardCount);
+        return moved;
+    }
+
+    /**
+     * 启用 changelog 时不能重新分片：移动消息不会发布到 changelog ，备份节点与 changelog 会不一致。
+     * 本地记录的分片数与 shardCount 不同时抛出异常，需要先转发完本地消息、清空 changelog 后再修改分区数；没有记录时记录 shardCount
+     *
+     * @param storePath  本地存储目录
+     * @param shardCount 延时消息 topic 的分区数
+     */
+    public static void requireUnchanged(String storePath, int shardCount) {
+        File layout = new File(storePath, LAYOUT_FILE);
+        String recorded = readLayout(layout);
+        if (recorded == null) {
+            writeLayout(layout, shardCount);
+        } else if (!Integer.toString(shardCount).equals(recorded)) {
+            throw new IllegalStateException("Shard count changed from " + recorded + " to " + shardCount
+                    + " while a changelog is configured, resharding would leave the changelog stale; "
+                    + "drain the local stores and recreate the changelog topic before changing the partition count");
+        }
+    }
+
+    /**
+     * 把所有分片的消息重新分配到 [0, shardCount) ，见 {@link #shardOf(DelayDto, int)}
+     */
+    static long reshard(Map<Integer, DelayStore> stores, int shardCount, IntFunction<DelayStore> opener) {
+        List<DelayStore> targets = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            targets.add(stores.computeIfAbsent(i, opener::apply));
+        }
+        log.info("reshard[开始重新分片] || sources : {} || shardCount : {}", stores.keySet(), shardCount);
+        long start = System.currentTimeMillis();
+        AtomicLong moved = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(stores.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<Integer, DelayStore> entry : stores.entrySet()) {
+                futures.add(executor.submit(() -> moved.addAndGet(move(entry.getKey(), entry.getValue(), targets))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to reshard into " + shardCount + " shards", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resharding", e);
+        } finally {
+            executor.shutdown();
+        }
+        log.info("reshard[重新分片完成] || shardCount : {} || moved : {} || costMs : {}",
+                shardCount, moved.get(), System.currentTimeMillis() - start);
+        return moved.get();
+    }
+
+    /**
+     * 把源分片里不属于自己的消息移到目标分片
+     */
+    private static long move(int shardId, DelayStore source, List<DelayStore> targets) {
+        long moved = 0L;
+        byte[] from = KeyUtils.lowerBound(0L);
+        byte[] to = KeyUtils.lowerBound(Long.MAX_VALUE);
+        for (List<DelayDto> list = source.scanRange(from, to, BATCH_SIZE); !list.isEmpty();
+             list = source.scanRange(from, to, BATCH_SIZE)) {
+            List<List<byte[]>> keys = new ArrayList<>(targets.size());
+            List<List<byte[]>> values = new ArrayList<>(targets.size());
+            for (int i = 0; i < targets.size(); i++) {
+                keys.add(new ArrayList<>());
+                values.add(new ArrayList<>());
+            }
+            List<byte[]> movedKeys = new ArrayList<>();
+            for (DelayDto dto : list) {
+                int target = shardOf(dto, targets.size());
+                if (target != shardId) {
+                    // 按 key 顺序读取，每个目标分片的 key 同样有序
+                    keys.get(target).add(dto.getKey());
+                    values.get(target).add(DelayDtoCodec.write(dto));
+                    movedKeys.add(dto.getKey());
+                }
+            }
+            for (int i = 0; i < targets.size(); i++) {
+                if (!keys.get(i).isEmpty()) {
+                    targets.get(i).ingest(keys.get(i), values.get(i));
+                }
+            }
+            if (!movedKeys.isEmpty()) {
+                source.batchDelete(movedKeys);
+            }
+            moved += movedKeys.size();
+            from = KeyUtils.successor(list.get(list.size() - 1).getKey());
+        }
+        return moved;
+    }
+
+    /**
+     * 目标分片：有 messageKey 时与 kafka 默认分区器一致，没有时按序号散列，序号连续递增时同样均匀
+     */
+    static int shardOf(DelayDto dto, int shardCount) {
+        String messageKey = dto.getMessageKey();
+        if (messageKey != null) {
+            return Utils.toPositive(Utils.murmur2(messageKey.getBytes(StandardCharsets.UTF_8))) % shardCount;
+        }
+        long hash = KeyUtils.extractSequence(dto.getKey()) * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(hash >>> 32, (long) shardCount);
+    }
+
+    private static void writeLayout(File layout, int shardCount) {
+        try {
+            layout.getParentFile().mkdirs();
+            Files.write(layout.toPath(), Integer.toString(shardCount).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("reshard[记录分片数失败，下次启动会重新检查] || file : {}", layout, e);
+        }
+    }
+
+    private static String readLayout(File layout) {
+        if (!layout.exists()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(layout.toPath()), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            log.warn("reshard[读取分片数失败] || file : {}", layout, e);
+            return null;
+        }
+    }
+
+}
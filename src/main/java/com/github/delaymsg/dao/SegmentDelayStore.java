@@ -0,0 +1,663 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.constant.DelayConst;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 按触发时间分段的追加写存储引擎。
+ * 延时消息写入一次、到期后读取一次，大致按时间顺序批量删除，适合按时间分段的追加写文件，没有 LSM 树的合并、墓碑开销。
+ * <pre>
+ * 1. 按触发时间把消息分到时间桶，每个桶追加写入自己的段文件[桶号-文件号.seg]，段文件通过内存映射读写，写满后换新文件
+ * 2. 段文件记录格式：状态[1 字节] | value 长度[4 字节] | key[16 字节] | value | crc32[4 字节，覆盖长度、key、value]
+ *    状态最后写入：0 未写完，1 存活，2 已删除
+ * 3. 删除消息只修改状态字节；段文件里的消息全部删除后，删除整个文件
+ * 4. 内存索引：每个桶一组数组[触发时间、序号、位置]，每条消息 24 字节，新写入的消息在扫描前排序、合并
+ * 5. 启动时顺序扫描段文件重建索引，遇到未写完或校验失败的记录即视为文件末尾，截断后继续追加
+ * </pre>
+ * 持久化：async 只写入内存映射[进程崩溃不丢数据，断电可能丢失]；sync 每批写入后把内存映射刷到磁盘。
+ * group 组提交基于 rocksdb 的 WAL ，本引擎没有 WAL ，group 与 sync 相同：每批写入单独刷盘，不与其它分片合并。
+ * 所有操作持有同一把锁，读取时只在锁内复制 value ，反序列化在锁外进行。
+ *
+ * @author HuaHui Yu 2026-10-18 19:03:37
+ **/
+public class SegmentDelayStore implements DelayStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentDelayStore.class);
+
+    /**
+     * 单次扫描的最大记录数
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * 段文件的默认最大字节数
+     */
+    private static final int MAX_SEGMENT_BYTES = 64 << 20;
+
+    /**
+     * 新段文件的初始映射大小，写满后成倍扩大，直到 maxSegmentBytes
+     */
+    private static final int INITIAL_MAPPING = 64 << 10;
+
+    private static final byte STATUS_LIVE = 1;
+
+    private static final byte STATUS_DELETED = 2;
+
+    private static final int HEADER = 1 + 4 + KeyUtils.KEY_LENGTH;
+
+    private static final int TRAILER = 4;
+
+    private static final String SUFFIX = ".seg";
+
+    private static final byte[] FIRST_KEY = KeyUtils.lowerBound(0L);
+
+    private final File dir;
+
+    private final long bucketMs;
+
+    private final int maxSegmentBytes;
+
+    private final Durability durability;
+
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+
+    private long nextFileId;
+
+    /**
+     * 存活的消息数
+     */
+    private long count;
+
+    /**
+     * 段文件已写入的字节数
+     */
+    private long bytes;
+
+    public SegmentDelayStore(int dbId) {
+        this(dbId, null);
+    }
+
+    /**
+     * 分片 dbId 的一个优先级通道，见 {@link StoreEngine#open(int, String)}
+     *
+     * @param lane 优先级通道，为 null 时为默认通道
+     */
+    public SegmentDelayStore(int dbId, String lane) {
+        this(new File(DelayConst.STORE_PATH + "/segment/" + StoreEngine.storeName(dbId, lane)),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(DelayConst.SEGMENT_BUCKET_SECONDS)),
+                MAX_SEGMENT_BYTES, Durability.of(DelayConst.DURABILITY));
+    }
+
+    /**
+     * @param dir             段文件目录
+     * @param bucketMs        时间桶宽度，毫秒
+     * @param maxSegmentBytes 单个段文件的最大字节数
+     * @param durability      持久化方式
+     */
+    public SegmentDelayStore(File dir, long bucketMs, int maxSegmentBytes, Durability durability) {
+        this.dir = dir;
+        this.bucketMs = bucketMs;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.durability = durability;
+        dir.mkdirs();
+        try {
+            recover();
+        } catch (IOException e) {
+            log.error("SegmentDelayStore[初始化失败] || dir : {} ", dir, e);
+            throw new IllegalStateException("Failed to recover segments at path: " + dir, e);
+        }
+    }
+
+    @Override
+    public synchronized void batchStore(List<byte[]> keys, List<byte[]> values) {
+        // 已追加的记录在索引里的位置，批内不会排序、合并索引，位置保持不变
+        List<Bucket> appendedBuckets = new ArrayList<>(keys.size());
+        int[] appendedIndexes = new int[keys.size()];
+        List<Segment> touched = new ArrayList<>();
+        try {
+            for (int i = 0, size = values.size(); i < size; i++) {
+                byte[] key = keys.get(i);
+                long triggerTime = KeyUtils.extractTriggerTime(key);
+                Bucket bucket = buckets.computeIfAbsent(bucketOf(triggerTime), Bucket::new);
+                Segment segment = bucket.active();
+                int offset = segment == null ? -1 : segment.append(key, values.get(i));
+                if (offset < 0) {
+                    segment = newSegment(bucket);
+                    offset = segment.append(key, values.get(i));
+                }
+                bucket.add(triggerTime, KeyUtils.extractSequence(key), location(bucket.segments.size() - 1, offset));
+                segment.live++;
+                count++;
+                appendedIndexes[appendedBuckets.size()] = bucket.size - 1;
+                appendedBuckets.add(bucket);
+                if (touched.isEmpty() || touched.get(touched.size() - 1) != segment) {
+                    touched.add(segment);
+                }
+            }
+            if (durability != Durability.ASYNC) {
+                for (Segment segment : touched) {
+                    segment.buffer.force();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 撤销这一批已追加的记录，重试时不会重复
+            for (int i = appendedBuckets.size() - 1; i >= 0; i--) {
+                delete(appendedBuckets.get(i), appendedIndexes[i]);
+            }
+            throw new IllegalStateException("写入段文件失败 || dir : " + dir, e);
+        }
+    }
+
+    @Override
+    public List<DelayDto> scanTodoMsg() {
+        return scanRange(FIRST_KEY, KeyUtils.lowerBound(System.currentTimeMillis() + 1), BATCH_SIZE);
+    }
+
+    @Override
+    public List<DelayDto> scanRange(byte[] fromKey, byte[] toKey, int limit) {
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        synchronized (this) {
+            long fromBucket = bucketOf(KeyUtils.extractTriggerTime(fromKey));
+            long toBucket = bucketOf(KeyUtils.extractTriggerTime(toKey));
+            if (fromBucket <= toBucket) {
+                for (Bucket bucket : buckets.subMap(fromBucket, true, toBucket, true).values()) {
+                    bucket.ensureSorted();
+                    for (int i = bucket.lowerBound(fromKey); i < bucket.size && keys.size() < limit; i++) {
+                        if (compareToBound(bucket.triggers[i], bucket.seqs[i], toKey) >= 0) {
+                            break;
+                        }
+                        long location = bucket.locations[i];
+                        if (location >= 0) {
+                            keys.add(KeyUtils.buildKey(bucket.triggers[i], bucket.seqs[i]));
+                            values.add(bucket.segments.get(segmentOf(location)).read(offsetOf(location)));
+                        }
+                    }
+                    if (keys.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+        }
+        List<DelayDto> list = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            DelayDto dto = DelayDtoCodec.read(values.get(i));
+            dto.setKey(keys.get(i));
+            list.add(dto);
+        }
+        return list;
+    }
+
+    @Override
+    public long peekEarliestTriggerTime() {
+        return peekEarliestTriggerTime(FIRST_KEY);
+    }
+
+    @Override
+    public synchronized long peekEarliestTriggerTime(byte[] fromKey) {
+        for (Bucket bucket : buckets.tailMap(bucketOf(KeyUtils.extractTriggerTime(fromKey)), true).values()) {
+            bucket.ensureSorted();
+            for (int i = bucket.lowerBound(fromKey); i < bucket.size; i++) {
+                if (bucket.locations[i] >= 0) {
+                    return bucket.triggers[i];
+                }
+            }
+        }
+        return -1L;
+    }
+
+    @Override
+    public synchronized void batchDelete(List<byte[]> keys) {
+        for (byte[] key : keys) {
+            long triggerTime = KeyUtils.extractTriggerTime(key);
+            long sequence = KeyUtils.extractSequence(key);
+            Bucket bucket = buckets.get(bucketOf(triggerTime));
+            if (bucket == null) {
+                continue;
+            }
+            bucket.ensureSorted();
+            int i = bucket.lowerBound(key);
+            if (i < bucket.size && bucket.triggers[i] == triggerTime && bucket.seqs[i] == sequence
+                    && bucket.locations[i] >= 0) {
+                delete(bucket, i);
+            }
+        }
+    }
+
+    /**
+     * 按时间桶的存活消息数估算，区间两端的时间桶整桶计入
+     */
+    @Override
+    public synchronized long estimateCount(byte[] fromKey, byte[] toKey, long limit) {
+        long fromBucket = bucketOf(KeyUtils.extractTriggerTime(fromKey));
+        long toBucket = bucketOf(KeyUtils.extractTriggerTime(toKey));
+        long estimate = 0;
+        if (fromBucket <= toBucket) {
+            for (Bucket bucket : buckets.subMap(fromBucket, true, toBucket, true).values()) {
+                estimate += bucket.live;
+            }
+        }
+        return estimate;
+    }
+
+    @Override
+    public synchronized StoreStats stats() {
+        return new StoreStats(count, bytes);
+    }
+
+    /**
+     * 删除索引第 i 条消息。段文件里的消息全部删除、且不再追加时删除文件；整个桶都删除后移除该桶
+     */
+    private void delete(Bucket bucket, int i) {
+        long location = bucket.locations[i];
+        Segment segment = bucket.segments.get(segmentOf(location));
+        segment.buffer.put(offsetOf(location), STATUS_DELETED);
+        bucket.locations[i] = -1L;
+        bucket.live--;
+        segment.live--;
+        count--;
+        if (bucket.live == 0) {
+            for (int j = 0; j < bucket.segments.size(); j++) {
+                removeSegment(bucket, j);
+            }
+            buckets.remove(bucket.id);
+        } else if (segment.live == 0 && segment != bucket.active()) {
+            removeSegment(bucket, segmentOf(location));
+        }
+    }
+
+    private void removeSegment(Bucket bucket, int index) {
+        Segment segment = bucket.segments.get(index);
+        if (segment == null) {
+            return;
+        }
+        bucket.segments.set(index, null);
+        bytes -= segment.position;
+        unmap(segment.buffer);
+        if (!segment.file.delete()) {
+            log.warn("删除段文件失败 || file : {}", segment.file);
+        }
+    }
+
+    private Segment newSegment(Bucket bucket) throws IOException {
+        Segment segment = new Segment(new File(dir, bucket.id + "-" + nextFileId++ + SUFFIX));
+        segment.remap(INITIAL_MAPPING);
+        bucket.segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * 按文件号顺序扫描段文件，重建内存索引
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("无法读取目录 : " + dir);
+        }
+        Arrays.sort(files, Comparator.comparingLong(file -> parseName(file)[1]));
+        for (File file : files) {
+            long[] name = parseName(file);
+            nextFileId = Math.max(nextFileId, name[1] + 1);
+            Bucket bucket = buckets.computeIfAbsent(name[0], Bucket::new);
+            recoverSegment(file, bucket);
+            if (bucket.live == 0) {
+                buckets.remove(bucket.id);
+            }
+        }
+        if (count > 0) {
+            log.info("SegmentDelayStore[段文件加载完成] || dir : {} || buckets : {} || count : {}", dir, buckets.size(), count);
+        }
+    }
+
+    private void recoverSegment(File file, Bucket bucket) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int segmentIndex = bucket.segments.size();
+        int position = 0;
+        int live = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER + TRAILER <= data.length) {
+            byte status = data[position];
+            int length = buffer.getInt(position + 1);
+            if ((status != STATUS_LIVE && status != STATUS_DELETED)
+                    || length < 0 || length > data.length - position - HEADER - TRAILER) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, position + 1, HEADER - 1 + length);
+            if ((int) crc.getValue() != buffer.getInt(position + HEADER + length)) {
+                break;
+            }
+            if (status == STATUS_LIVE) {
+                bucket.add(buffer.getLong(position + 5), buffer.getLong(position + 13), location(segmentIndex, position));
+                live++;
+            }
+            position += HEADER + length + TRAILER;
+        }
+        if (live == 0) {
+            // 已全部转发，上次删除文件前程序退出
+            Files.delete(file.toPath());
+            return;
+        }
+        if (position < data.length && data[position] != 0) {
+            log.warn("段文件末尾有未写完的记录，已截断 || file : {} || position : {} || length : {}", file, position, data.length);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(position);
+        }
+        Segment segment = new Segment(file);
+        segment.position = position;
+        segment.live = live;
+        segment.remap(capacityFor(position));
+        bucket.segments.add(segment);
+        count += live;
+        bytes += position;
+    }
+
+    private int capacityFor(long size) {
+        long capacity = INITIAL_MAPPING;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        return (int) Math.min(capacity, Math.max(maxSegmentBytes, size));
+    }
+
+    private long bucketOf(long triggerTime) {
+        return triggerTime / bucketMs;
+    }
+
+    private static long[] parseName(File file) {
+        String name = file.getName();
+        int split = name.indexOf('-');
+        return new long[]{Long.parseLong(name.substring(0, split)),
+                Long.parseLong(name.substring(split + 1, name.length() - SUFFIX.length()))};
+    }
+
+    private static long location(int segmentIndex, int offset) {
+        return ((long) segmentIndex << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static int compareKey(long trigger1, long seq1, long trigger2, long seq2) {
+        int cmp = Long.compareUnsigned(trigger1, trigger2);
+        return cmp != 0 ? cmp : Long.compareUnsigned(seq1, seq2);
+    }
+
+    /**
+     * 按字节序比较索引里的 key 与扫描边界，边界可以是 {@link KeyUtils#successor(byte[])} 生成的 17 字节 key
+     */
+    private static int compareToBound(long triggerTime, long sequence, byte[] bound) {
+        int cmp = compareKey(triggerTime, sequence, KeyUtils.extractTriggerTime(bound), KeyUtils.extractSequence(bound));
+        return cmp != 0 ? cmp : KeyUtils.KEY_LENGTH - bound.length;
+    }
+
+    /**
+     * 尽快释放内存映射，删除的段文件才能立即释放磁盘空间；jdk 8 以外的版本等待 gc 回收
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("释放内存映射失败，等待 gc 回收", e);
+        }
+    }
+
+    /**
+     * 段文件，只追加写入
+     */
+    private final class Segment {
+
+        private final File file;
+
+        private MappedByteBuffer buffer;
+
+        /**
+         * 下一条记录的写入位置
+         */
+        private int position;
+
+        /**
+         * 存活的消息数
+         */
+        private int live;
+
+        private Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return 记录的起始位置，文件已写满时返回 -1
+         */
+        private int append(byte[] key, byte[] value) throws IOException {
+            int size = HEADER + value.length + TRAILER;
+            if ((long) position + size > buffer.capacity()) {
+                if ((long) position + size > maxSegmentBytes) {
+                    if (position == 0) {
+                        throw new IllegalArgumentException("消息超过段文件大小上限 || size : " + size);
+                    }
+                    return -1;
+                }
+                remap(capacityFor((long) position + size));
+            }
+            int offset = position;
+            buffer.putInt(offset + 1, value.length);
+            ByteBuffer record = buffer.duplicate();
+            ((Buffer) record).position(offset + 5);
+            record.put(key);
+            record.put(value);
+            ((Buffer) record).limit(offset + HEADER + value.length).position(offset + 1);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            buffer.putInt(offset + HEADER + value.length, (int) crc.getValue());
+            // 状态最后写入，崩溃时未写完的记录状态为 0
+            buffer.put(offset, STATUS_LIVE);
+            position += size;
+            bytes += size;
+            return offset;
+        }
+
+        private byte[] read(int offset) {
+            byte[] value = new byte[buffer.getInt(offset + 1)];
+            ByteBuffer record = buffer.duplicate();
+            ((Buffer) record).position(offset + HEADER);
+            record.get(value);
+            return value;
+        }
+
+        private void remap(int capacity) throws IOException {
+            MappedByteBuffer old = buffer;
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            if (old != null) {
+                unmap(old);
+            }
+        }
+
+    }
+
+    /**
+     * 时间桶，索引覆盖桶内所有段文件。
+     * 新写入的消息追加在末尾，[0, sorted) 有序；扫描、删除前把新消息排序后合并，同时清理已删除的条目
+     */
+    private static final class Bucket {
+
+        private final long id;
+
+        /**
+         * 按文件号排列，最后一个是正在追加的文件；已删除的文件置为 null ，保持索引里的位置不变
+         */
+        private final List<Segment> segments = new ArrayList<>();
+
+        private long[] triggers = new long[16];
+
+        private long[] seqs = new long[16];
+
+        /**
+         * 段文件序号[高 32 位] + 文件内位置[低 32 位]，已删除为 -1
+         */
+        private long[] locations = new long[16];
+
+        private int size;
+
+        private int sorted;
+
+        private int live;
+
+        private Bucket(long id) {
+            this.id = id;
+        }
+
+        private Segment active() {
+            return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+
+        private void add(long triggerTime, long sequence, long location) {
+            if (size == triggers.length) {
+                int capacity = size << 1;
+                triggers = Arrays.copyOf(triggers, capacity);
+                seqs = Arrays.copyOf(seqs, capacity);
+                locations = Arrays.copyOf(locations, capacity);
+            }
+            triggers[size] = triggerTime;
+            seqs[size] = sequence;
+            locations[size] = location;
+            size++;
+            live++;
+        }
+
+        /**
+         * 第一条不小于 key 的条目
+         */
+        private int lowerBound(byte[] key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareToBound(triggers[mid], seqs[mid], key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private void ensureSorted() {
+            if (sorted == size && size - live <= size >> 1) {
+                return;
+            }
+            sort(sorted, size);
+            long[] mergedTriggers = new long[Math.max(16, live)];
+            long[] mergedSeqs = new long[mergedTriggers.length];
+            long[] mergedLocations = new long[mergedTriggers.length];
+            int n = 0;
+            int i = 0;
+            int j = sorted;
+            while (i < sorted || j < size) {
+                int next;
+                if (j >= size || (i < sorted && compareKey(triggers[i], seqs[i], triggers[j], seqs[j]) <= 0)) {
+                    next = i++;
+                } else {
+                    next = j++;
+                }
+                if (locations[next] >= 0) {
+                    mergedTriggers[n] = triggers[next];
+                    mergedSeqs[n] = seqs[next];
+                    mergedLocations[n] = locations[next];
+                    n++;
+                }
+            }
+            triggers = mergedTriggers;
+            seqs = mergedSeqs;
+            locations = mergedLocations;
+            size = n;
+            sorted = n;
+        }
+
+        /**
+         * 对 [low, high) 排序
+         */
+        private void sort(int low, int high) {
+            while (high - low > 16) {
+                int mid = (low + high) >>> 1;
+                long pivotTrigger = triggers[mid];
+                long pivotSeq = seqs[mid];
+                int i = low;
+                int j = high - 1;
+                while (i <= j) {
+                    while (compareKey(triggers[i], seqs[i], pivotTrigger, pivotSeq) < 0) {
+                        i++;
+                    }
+                    while (compareKey(triggers[j], seqs[j], pivotTrigger, pivotSeq) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // 先递归较短的一段，控制递归深度
+                if (j - low < high - i) {
+                    sort(low, j + 1);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j + 1;
+                }
+            }
+            for (int i = low + 1; i < high; i++) {
+                for (int j = i; j > low && compareKey(triggers[j - 1], seqs[j - 1], triggers[j], seqs[j]) > 0; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            long trigger = triggers[i];
+            triggers[i] = triggers[j];
+            triggers[j] = trigger;
+            long seq = seqs[i];
+            seqs[i] = seqs[j];
+            seqs[j] = seq;
+            long location = locations[i];
+            locations[i] = locations[j];
+            locations[j] = location;
+        }
+
+    }
+
+}
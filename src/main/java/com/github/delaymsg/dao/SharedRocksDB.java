@@ -0,0 +1,163 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.constant.DelayConst;
+import org.rocksdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 所有处理流程共用的 rocksdb 实例，每个分片一个列族[shard-分片号]，见 {@link DelayMsgDao#openShard(int)} 。
+ * <pre>
+ * 独立数据库的 WAL 、memtable 、block cache 、后台线程都按处理流程数线性增长，共用一个实例后：
+ * 1. 所有列族共用一个 LRU block cache ，memtable 通过 WriteBufferManager 计入同一个 cache ，内存总量不超过 kafka.delay.rocksdb.memory.mb
+ * 2. 索引、过滤器也放入 block cache ，打开的文件数不影响内存上限
+ * 3. 后台合并、刷盘线程数统一由 kafka.delay.rocksdb.background.jobs 限制
+ * 4. 所有分片共用一个 WAL ，group 持久化方式一次 fsync 覆盖所有分片
+ * </pre>
+ *
+ * @author HuaHui Yu 2026-10-18 20:26:45
+ **/
+public final class SharedRocksDB {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedRocksDB.class);
+
+    private static SharedRocksDB instance;
+
+    private final RocksDB rocksDB;
+
+    private final Cache blockCache;
+
+    private final WriteBufferManager writeBufferManager;
+
+    private final ColumnFamilyOptions hotOptions;
+
+    private final ColumnFamilyOptions coldOptions;
+
+    /**
+     * 打开时已存在、还没有被分片取走的列族
+     */
+    private final Map<String, ColumnFamilyHandle> opened = new HashMap<>();
+
+    /**
+     * 进程内唯一的实例，保存在 {@link DelayConst#STORE_PATH}/shared 目录下，第一次使用时打开
+     */
+    public static synchronized SharedRocksDB instance() {
+        if (instance == null) {
+            instance = new SharedRocksDB(DelayConst.STORE_PATH + "/shared",
+                    Long.parseLong(DelayConst.ROCKSDB_MEMORY_MB) << 20,
+                    Integer.parseInt(DelayConst.ROCKSDB_BACKGROUND_JOBS));
+            Runtime.getRuntime().addShutdownHook(new Thread(instance.rocksDB::close));
+        }
+        return instance;
+    }
+
+    /**
+     * @param dbDir          数据库目录
+     * @param memoryBytes    block cache 容量，memtable 占用的内存也计入其中
+     * @param backgroundJobs 后台合并、刷盘的最大线程数
+     */
+    public SharedRocksDB(String dbDir, long memoryBytes, int backgroundJobs) {
+        new File(dbDir).mkdirs();
+        RocksDB.loadLibrary();
+        blockCache = new LRUCache(memoryBytes);
+        // memtable 最多占用一半内存
+        writeBufferManager = new WriteBufferManager(memoryBytes / 2, blockCache);
+        BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+                .setBlockCache(blockCache)
+                .setCacheIndexAndFilterBlocks(true);
+        hotOptions = new ColumnFamilyOptions().setTableFormatConfig(tableConfig);
+        coldOptions = new ColumnFamilyOptions().setTableFormatConfig(tableConfig)
+                .setCompressionType(CompressionType.ZSTD_COMPRESSION);
+        List<ColumnFamilyHandle> handles = new ArrayList<>();
+        List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        try (Options options = new Options(); DBOptions dbOptions = new DBOptions()) {
+            dbOptions.setCreateIfMissing(true)
+                    .setWriteBufferManager(writeBufferManager)
+                    .setMaxBackgroundJobs(backgroundJobs);
+            descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, hotOptions));
+            for (byte[] name : RocksDB.listColumnFamilies(options, dbDir)) {
+                if (!Arrays.equals(name, RocksDB.DEFAULT_COLUMN_FAMILY)) {
+                    boolean cold = DelayMsgDao.isColdBucket(new String(name, StandardCharsets.UTF_8));
+                    descriptors.add(new ColumnFamilyDescriptor(name, options(cold)));
+                }
+            }
+            rocksDB = RocksDB.open(dbOptions, dbDir, descriptors, handles);
+        } catch (RocksDBException e) {
+            log.error("SharedRocksDB[初始化失败] || dbDir : {} ", dbDir, e);
+            throw new IllegalStateException("Failed to initialize RocksDB at path: " + dbDir, e);
+        }
+        for (int i = 1; i < handles.size(); i++) {
+            opened.put(new String(descriptors.get(i).getName(), StandardCharsets.UTF_8), handles.get(i));
+        }
+        log.info("SharedRocksDB[初始化完成] || dbDir : {} || columnFamilies : {} || memoryBytes : {}",
+                dbDir, handles.size(), memoryBytes);
+    }
+
+    public RocksDB db() {
+        return rocksDB;
+    }
+
+    /**
+     * 新建列族的配置，共用 block cache
+     *
+     * @param cold 是否为远期时间桶，使用压缩率更高的 zstd
+     */
+    public ColumnFamilyOptions options(boolean cold) {
+        return cold ? coldOptions : hotOptions;
+    }
+
+    /**
+     * 取走打开时已存在的列族，不存在时创建，之后由调用方管理
+     */
+    public synchronized ColumnFamilyHandle takeOrCreate(String name) throws RocksDBException {
+        ColumnFamilyHandle handle = opened.remove(name);
+        if (handle == null) {
+            handle = rocksDB.createColumnFamily(
+                    new ColumnFamilyDescriptor(name.getBytes(StandardCharsets.UTF_8), hotOptions));
+        }
+        return handle;
+    }
+
+    /**
+     * 打开时已存在、还没有被取走的分片列族的分片号
+     */
+    public synchronized Set<Integer> shardIds() {
+        Set<Integer> shardIds = new TreeSet<>();
+        for (String name : opened.keySet()) {
+            if (name.matches(DelayMsgDao.SHARD_PREFIX + "\\d+")) {
+                shardIds.add(Integer.parseInt(name.substring(DelayMsgDao.SHARD_PREFIX.length())));
+            }
+        }
+        return shardIds;
+    }
+
+    /**
+     * 取走打开时已存在、名称以 prefix 开头的列族，之后由调用方管理
+     *
+     * @return 列族名称 -> 句柄
+     */
+    public synchronized Map<String, ColumnFamilyHandle> takeHandles(String prefix) {
+        Map<String, ColumnFamilyHandle> taken = new HashMap<>();
+        Iterator<Map.Entry<String, ColumnFamilyHandle>> iterator = opened.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ColumnFamilyHandle> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                taken.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+        return taken;
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.constant.DelayConst;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 本地存储引擎
+ *
+ * @author HuaHui Yu 2026-10-18 18:07:31
+ **/
+public enum StoreEngine {
+
+    /**
+     * rocksdb[默认]，每个分片一个数据库目录，见 {@link DelayMsgDao} ；
+     * 配置了 kafka.delay.rocksdb.shared=true 时所有分片共用一个数据库，见 {@link SharedRocksDB}
+     */
+    ROCKSDB {
+        @Override
+        public DelayStore open(int dbId, String lane) {
+            if (Boolean.parseBoolean(DelayConst.ROCKSDB_SHARED)) {
+                return DelayMsgDao.openShard(dbId, lane);
+            }
+            return new DelayMsgDao(dbId, lane);
+        }
+
+        @Override
+        public Set<Integer> existing() {
+            Set<Integer> dbIds = listIds(new File(DelayConst.STORE_PATH), "CURRENT");
+            if (Boolean.parseBoolean(DelayConst.ROCKSDB_SHARED)) {
+                dbIds.addAll(SharedRocksDB.instance().shardIds());
+            }
+            return dbIds;
+        }
+    },
+
+    /**
+     * 按触发时间分段的内存映射文件，见 {@link SegmentDelayStore}
+     */
+    SEGMENT {
+        @Override
+        public DelayStore open(int dbId, String lane) {
+            return new SegmentDelayStore(dbId, lane);
+        }
+
+        @Override
+        public Set<Integer> existing() {
+            return listIds(new File(DelayConst.STORE_PATH, "segment"), null);
+        }
+    },
+
+    /**
+     * 纯内存，见 {@link MemoryDelayStore} 。程序重启后消息丢失，只适用于测试、可以容忍丢消息的小规模部署
+     */
+    MEMORY {
+        @Override
+        public DelayStore open(int dbId, String lane) {
+            return new MemoryDelayStore();
+        }
+
+        @Override
+        public Set<Integer> existing() {
+            return Collections.emptySet();
+        }
+    };
+
+    /**
+     * 打开分片 dbId 的本地存储
+     */
+    public DelayStore open(int dbId) {
+        return open(dbId, null);
+    }
+
+    /**
+     * 打开分片 dbId 的一个优先级通道，每个通道是一个独立的本地存储，见 {@link #storeName(int, String)}
+     *
+     * @param lane 优先级通道，为 null 时为默认通道，即 {@link #open(int)}
+     */
+    public abstract DelayStore open(int dbId, String lane);
+
+    /**
+     * 本地已有数据的分片，启动时全部打开，转发上次运行遗留的消息。
+     * 只包含默认通道，其它优先级通道随分片一起打开、一起重新分片
+     */
+    public abstract Set<Integer> existing();
+
+    /**
+     * @param engine rocksdb / segment / memory ，不区分大小写
+     * @throws IllegalArgumentException 无法识别的配置
+     */
+    public static StoreEngine of(String engine) {
+        return valueOf(engine.trim().toUpperCase());
+    }
+
+    /**
+     * 本地存储的目录、列族名称：默认通道为分片号，其它通道为 分片号-通道名
+     */
+    public static String storeName(int dbId, String lane) {
+        return lane == null ? String.valueOf(dbId) : dbId + "-" + lane;
+    }
+
+    /**
+     * dir 下以分片号命名的子目录
+     *
+     * @param marker 子目录下必须存在的文件，为 null 时不检查
+     */
+    private static Set<Integer> listIds(File dir, String marker) {
+        Set<Integer> dbIds = new TreeSet<>();
+        File[] files = dir.listFiles(File::isDirectory);
+        if (files == null) {
+            return dbIds;
+        }
+        for (File file : files) {
+            if (file.getName().matches("\\d+") && (marker == null || new File(file, marker).exists())) {
+                dbIds.add(Integer.parseInt(file.getName()));
+            }
+        }
+        return dbIds;
+    }
+
+}
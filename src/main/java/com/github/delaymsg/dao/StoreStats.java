@@ -0,0 +1,38 @@
+package com.github.delaymsg.dao;
+
+/**
+ * 本地存储统计信息，部分存储引擎只能给出估算值
+ *
+ * @author HuaHui Yu 2026-10-18 18:05:12
+ **/
+public final class StoreStats {
+
+    /**
+     * 消息数
+     */
+    private final long count;
+
+    /**
+     * 占用的字节数
+     */
+    private final long bytes;
+
+    public StoreStats(long count, long bytes) {
+        this.count = count;
+        this.bytes = bytes;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "count : " + count + " || bytes : " + bytes;
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.github.delaymsg.dao;
+
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * WAL 组提交，所有本地数据库共用一个。
+ * 写入线程写完 WAL 后登记并等待；同步线程收到第一个写入后，再等待 windowMs 或者等待落盘的记录数达到 groupSize ，
+ * 对这期间有写入的数据库统一执行一次 fsync ，然后唤醒这一组的所有写入线程。
+ * 落盘期间到达的写入合并到下一次落盘，fsync 越慢，每组合并的写入越多，一次 fsync 的开销由所有数据库的写入分摊。
+ * 每一轮同步的结果单独记录，写入线程只检查自己所在轮次的结果，不会因为后续轮次的结果漏掉失败。
+ *
+ * @author HuaHui Yu 2026-10-18 16:31:07
+ **/
+public class WalSyncer {
+
+    private static final Logger log = LoggerFactory.getLogger(WalSyncer.class);
+
+    private final long windowMs;
+
+    private final int groupSize;
+
+    private final Object lock = new Object();
+
+    /**
+     * 等待落盘的数据库
+     */
+    private Set<RocksDB> dirty = new HashSet<>();
+
+    /**
+     * 等待落盘的记录数
+     */
+    private int pending;
+
+    /**
+     * 下一轮同步，新的写入都加入这一轮
+     */
+    private Round next = new Round();
+
+    /**
+     * @param windowMs  时间窗口，毫秒
+     * @param groupSize 等待落盘的记录数达到该值时，不等时间窗口结束立即同步
+     */
+    public WalSyncer(long windowMs, int groupSize) {
+        this.windowMs = windowMs;
+        this.groupSize = groupSize;
+        Thread thread = new Thread(this::syncLoop, "wal-syncer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 等待 rocksDB 已写入的 WAL 落盘
+     *
+     * @param rocksDB 刚写入的数据库
+     * @param records 写入的记录数
+     * @throws RocksDBException 落盘失败
+     */
+    public void awaitSync(RocksDB rocksDB, int records) throws RocksDBException {
+        synchronized (lock) {
+            boolean first = dirty.isEmpty();
+            dirty.add(rocksDB);
+            pending += records;
+            // 下一轮同步一定包含这次写入
+            Round round = next;
+            if (first || pending >= groupSize) {
+                lock.notifyAll();
+            }
+            try {
+                while (!round.completed) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待 WAL 落盘时线程中断", e);
+            }
+            if (round.failure != null) {
+                throw round.failure;
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Set<RocksDB> toSync;
+            Round round;
+            synchronized (lock) {
+                try {
+                    awaitGroup();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                toSync = dirty;
+                dirty = new HashSet<>();
+                pending = 0;
+                round = next;
+                next = new Round();
+            }
+            RocksDBException error = sync(toSync);
+            synchronized (lock) {
+                round.completed = true;
+                round.failure = error;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 等待第一次写入，再等到时间窗口结束或者记录数达到 groupSize ，调用时持有 lock
+     */
+    private void awaitGroup() throws InterruptedException {
+        while (dirty.isEmpty()) {
+            lock.wait();
+        }
+        long deadline = System.currentTimeMillis() + windowMs;
+        long waitMs;
+        while (pending < groupSize && (waitMs = deadline - System.currentTimeMillis()) > 0) {
+            lock.wait(waitMs);
+        }
+    }
+
+    private RocksDBException sync(Set<RocksDB> toSync) {
+        RocksDBException error = null;
+        for (RocksDB rocksDB : toSync) {
+            try {
+                rocksDB.syncWal();
+            } catch (RocksDBException e) {
+                log.error("WAL 落盘失败", e);
+                error = e;
+            }
+        }
+        return error;
+    }
+
+    /**
+     * 一轮同步，只在持有 lock 时访问
+     */
+    private static final class Round {
+
+        private boolean completed;
+
+        /**
+         * 落盘失败时的异常，成功时为 null
+         */
+        private RocksDBException failure;
+
+    }
+
+}
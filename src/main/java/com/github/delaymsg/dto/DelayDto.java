@@ -1,11 +1,14 @@
 package com.github.delaymsg.dto;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.github.delaymsg.constant.DelayConst;
 import com.github.delaymsg.utils.TimeUtil;
+import org.nustaq.serialization.annotations.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
 /**
  * @author yhh 2021-12-19 22:17:59
@@ -17,10 +20,23 @@ public class DelayDto implements Serializable {
     private static final long serialVersionUID = 1L;
 
     /**
-     * 唯一id
+     * 是否为毫秒精度模式，见 {@link DelayConst#TIME_PRECISION}
      */
+    private static final boolean MILLIS_PRECISION = "ms".equalsIgnoreCase(DelayConst.TIME_PRECISION);
+
+    /**
+     * 旧版本的唯一id["triggerTime#id" 格式的存储 key]。
+     * 存储 key 已改为二进制格式，见 {@link #key} ，该字段仅为兼容已存储的 fst 数据而保留
+     */
+    @Deprecated
     private String id;
 
+    /**
+     * 存储 key ，见 {@link com.github.delaymsg.utils.KeyUtils} 。
+     * 扫描时从 rocksdb 的 key 读取，不写入 value
+     */
+    private transient byte[] key;
+
     /**
      * 实际业务topic
      */
@@ -32,22 +48,44 @@ public class DelayDto implements Serializable {
     private String messageKey;
 
     /**
-     * 待转发的消息【json字符串】
+     * 旧版本保存的待转发消息。
+     * 消息体已改为原始字节，见 {@link #payload} ，该字段仅为兼容已存储的 fst 数据而保留
      */
+    @Deprecated
     private String message;
 
     /**
-     * 延时触发时间点.时间戳[精准到秒级别]
+     * 待转发的消息【业务方传入的 message ，utf-8 编码的原始字节，不解码、原样转发】
+     */
+    @Version(1)
+    private byte[] payload;
+
+    /**
+     * 延时触发时间点.时间戳。
+     * 业务方传入秒级时间戳，毫秒精度模式下也可以传入毫秒级时间戳；保存到本地时统一换算为毫秒
      */
     private Long triggerTime;
 
-    public String getId() {
-        return id;
+    /**
+     * 已转发失败的次数，见 {@link com.github.delaymsg.task.RetryPolicy} 。
+     * 只写入新的存储格式，不接受业务方传入
+     */
+    private transient int attempts;
+
+    /**
+     * 优先级通道，可以不传，见 {@link com.github.delaymsg.task.PriorityLanes} 。
+     * 决定保存到哪个本地存储，不写入 value
+     */
+    private transient String priority;
+
+    @JsonIgnore
+    public byte[] getKey() {
+        return key;
     }
 
     @JsonIgnore
-    public void setId(String id) {
-        this.id = id;
+    public void setKey(byte[] key) {
+        this.key = key;
     }
 
     public String getTopic() {
@@ -66,12 +104,18 @@ public class DelayDto implements Serializable {
         this.messageKey = messageKey;
     }
 
-    public String getMessage() {
-        return message;
+    /**
+     * 待转发的消息，旧版本保存的消息按 utf-8 编码
+     */
+    public byte[] getPayload() {
+        if (payload == null && message != null) {
+            return message.getBytes(StandardCharsets.UTF_8);
+        }
+        return payload;
     }
 
-    public void setMessage(String message) {
-        this.message = message;
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
     }
 
     public Long getTriggerTime() {
@@ -82,8 +126,33 @@ public class DelayDto implements Serializable {
         this.triggerTime = triggerTime;
     }
 
+    @JsonIgnore
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @JsonIgnore
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * 把业务方传入的触发时间换算为毫秒时间戳
+     */
+    public static long toTriggerMillis(long triggerTime) {
+        return TimeUtil.toTriggerMillis(triggerTime, MILLIS_PRECISION);
+    }
+
     public boolean checkFormat() {
-        if (triggerTime == null || triggerTime <= 0L || triggerTime > TimeUtil.getUnixTimeAfter3Year()) {
+        if (triggerTime == null || triggerTime <= 0L || toTriggerMillis(triggerTime) > TimeUtil.getMillisAfter3Year()) {
             log.warn("triggerTime[{}] 异常", triggerTime);
             return false;
         }
@@ -91,7 +160,7 @@ public class DelayDto implements Serializable {
             log.warn("topic 不能为空");
             return false;
         }
-        if (message == null || message.isEmpty()) {
+        if (payload == null || payload.length == 0) {
             log.warn("message 不能为空");
             return false;
         }
@@ -1,25 +1,31 @@
 package com.github.delaymsg.kafka;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.TopicPartition;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * kafka消费者助手，不是线程安全的对象，不要在多线程环境使用。
+ * key 、value 都以原始字节返回，不做解码，由业务处理按需解析。
  * 使用案例：
  * <pre>
  *         KafkaListener listener = KafkaListener.of("127.0.0.1:9092", "sit_tester");
  *         listener.subscribe("test_topic", records -> {
- *             for (ConsumerRecord<String, String> record : records) {
+ *             for (ConsumerRecord<byte[], byte[]> record : records) {
  *                 String topic = record.topic();
  *                 int partition = record.partition();
- *                 String msg = record.value();
+ *                 byte[] msg = record.value();
  *                 //业务处理
  *             }
  *         });
@@ -37,9 +43,24 @@ public class KafkaListener {
      */
     private static final long LONG_POLL_MS = 5000L;
 
-    private final KafkaConsumer<String, String> kafkaConsumer;
+    /**
+     * 异步处理时的长轮询时限，没有新消息时也要及时提交已处理完的偏移量
+     */
+    private static final long COMMIT_POLL_MS = 1000L;
+
+    private static final ConsumerRebalanceListener IGNORE_REBALANCE = new ConsumerRebalanceListener() {
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+        }
+    };
+
+    private final KafkaConsumer<byte[], byte[]> kafkaConsumer;
 
-    public KafkaListener(KafkaConsumer<String, String> kafkaConsumer) {
+    public KafkaListener(KafkaConsumer<byte[], byte[]> kafkaConsumer) {
         this.kafkaConsumer = kafkaConsumer;
     }
 
@@ -67,7 +88,7 @@ public class KafkaListener {
      * @param topicName     话题【 * 可模糊匹配】
      * @param recordHandler 消息处理器
      */
-    public void subscribe(String topicName, Consumer<ConsumerRecords<String, String>> recordHandler) {
+    public void subscribe(String topicName, Consumer<ConsumerRecords<byte[], byte[]>> recordHandler) {
         subscribe(Collections.singleton(topicName), recordHandler);
     }
 
@@ -78,9 +99,9 @@ public class KafkaListener {
      * @param topicNames    消息队列【 * 可模糊匹配】
      * @param recordHandler 消息处理器
      */
-    public void subscribe(Collection<String> topicNames, Consumer<ConsumerRecords<String, String>> recordHandler) {
+    public void subscribe(Collection<String> topicNames, Consumer<ConsumerRecords<byte[], byte[]>> recordHandler) {
         kafkaConsumer.subscribe(topicNames);
-        ConsumerRecords<String, String> records;
+        ConsumerRecords<byte[], byte[]> records;
         Thread currentThread = Thread.currentThread();
         while (!currentThread.isInterrupted()) {
             records = kafkaConsumer.poll(LONG_POLL_MS);
@@ -93,6 +114,62 @@ public class KafkaListener {
         }
     }
 
+    /**
+     * 异步处理订阅消费。recordHandler 只负责把消息交给其它线程处理，处理完成的偏移量通过 committable 返回，
+     * 由当前线程在下一轮拉取后异步提交[kafka 消费者不是线程安全的]。
+     * 业务处理注意保持幂等性，会有重复消费的可能。
+     *
+     * @param topicNames    消息队列【 * 可模糊匹配】
+     * @param recordHandler 消息分发器
+     * @param committable   已处理完、可以提交的偏移量[下一条待消费消息的偏移量]
+     */
+    public void subscribe(Collection<String> topicNames, Consumer<ConsumerRecords<byte[], byte[]>> recordHandler,
+                          Supplier<Map<TopicPartition, OffsetAndMetadata>> committable) {
+        subscribe(topicNames, recordHandler, committable, IGNORE_REBALANCE);
+    }
+
+    /**
+     * 异步处理订阅消费，分区分配变化时通知 rebalanceListener 。
+     * 分区收回时先调用 {@link ConsumerRebalanceListener#onPartitionsRevoked}[可在其中等待处理完已拉取的消息]，
+     * 再同步提交 committable 返回的偏移量，之后才交出分区，新的消费者从提交位置继续消费。
+     *
+     * @param topicNames        消息队列【 * 可模糊匹配】
+     * @param recordHandler     消息分发器
+     * @param committable       已处理完、可以提交的偏移量[下一条待消费消息的偏移量]
+     * @param rebalanceListener 分区分配变化的监听器，在当前线程调用
+     */
+    public void subscribe(Collection<String> topicNames, Consumer<ConsumerRecords<byte[], byte[]>> recordHandler,
+                          Supplier<Map<TopicPartition, OffsetAndMetadata>> committable,
+                          ConsumerRebalanceListener rebalanceListener) {
+        kafkaConsumer.subscribe(topicNames, new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                rebalanceListener.onPartitionsRevoked(partitions);
+                Map<TopicPartition, OffsetAndMetadata> offsets = committable.get();
+                if (!offsets.isEmpty()) {
+                    kafkaConsumer.commitSync(offsets);
+                }
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                rebalanceListener.onPartitionsAssigned(partitions);
+            }
+        });
+        ConsumerRecords<byte[], byte[]> records;
+        Thread currentThread = Thread.currentThread();
+        while (!currentThread.isInterrupted()) {
+            records = kafkaConsumer.poll(COMMIT_POLL_MS);
+            if (!records.isEmpty()) {
+                recordHandler.accept(records);
+            }
+            Map<TopicPartition, OffsetAndMetadata> offsets = committable.get();
+            if (!offsets.isEmpty()) {
+                kafkaConsumer.commitAsync(offsets, IGNORE_RESPONSE);
+            }
+        }
+    }
+
     private Properties buildProperties(String bootstrapServers, String groupId) {
         Properties properties = new Properties();
         properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
@@ -111,8 +188,8 @@ public class KafkaListener {
         // properties.put(ConsumerConfig.HEARTBEAT_INTERVAL_MS_CONFIG, "10000");
         // properties.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, "30000");
         // properties.put(ConsumerConfig.REQUEST_TIMEOUT_MS_CONFIG, "305000");
-        properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
-        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringDeserializer");
+        properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArrayDeserializer");
         return properties;
     }
 
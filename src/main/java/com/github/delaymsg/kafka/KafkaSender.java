@@ -2,18 +2,37 @@ package com.github.delaymsg.kafka;
 
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * kafka消息发送助手。多线程安全，建议设计为单例模式。
+ * 消息体以原始字节发送，不做编码转换。
  * 如果有特殊需求，也可以创建多个发送助手，并发发送，可以提高发送效率。
+ * <p>
+ * 单个 KafkaProducer 只有一个 io 线程，压缩、发送都在这个线程里执行，多核机器上容易先于磁盘、网络达到瓶颈。
+ * 可以通过 {@link #of(String, int, long)} 创建多个 producer ，按消息 key 分配：同一个 key 的消息始终由同一个 producer 按顺序发送，
+ * 不查询 topic 元数据，集群不可用时不会阻塞调用方；每个 producer 有独立的发送缓存。{@link #metrics()} 输出各 producer 的吞吐量和 io 线程繁忙程度。
+ * <p>
+ * 发送失败[kafka 自带重试机制也无法解决的异常]直接回调给调用方，不在 io 线程里立即重发：
+ * 业务 topic 异常时，立即重发会占满发送缓存、阻塞其它消息。延时消息的重试见 {@link com.github.delaymsg.task.RetryPolicy} 。
  * 使用案例：
  * <pre>
  * KafkaSender kafkaSender = KafkaSender.of("127.0.0.1:9092");
@@ -26,17 +45,35 @@ public class KafkaSender {
 
     private static final Logger log = LoggerFactory.getLogger(KafkaSender.class);
 
-    private final KafkaProducer<String, String> kafkaProducer;
+    /**
+     * 默认的发送缓存大小，单位：字节
+     */
+    private static final long DEFAULT_BUFFER_BYTES = 128 << 20;
+
+    private final List<? extends Producer<String, byte[]>> producers;
+
+    /**
+     * 没有 key 的消息轮流分配
+     */
+    private final AtomicInteger roundRobin = new AtomicInteger();
 
-    public KafkaSender(KafkaProducer<String, String> kafkaProducer) {
-        this.kafkaProducer = kafkaProducer;
+    public KafkaSender(KafkaProducer<String, byte[]> kafkaProducer) {
+        this(Collections.singletonList(kafkaProducer));
     }
 
-    private KafkaSender(String bootstrapServers) {
+    public KafkaSender(List<? extends Producer<String, byte[]>> producers) {
+        this.producers = producers;
+    }
+
+    private KafkaSender(String bootstrapServers, int producerCount, long bufferBytes) {
         int flight = Runtime.getRuntime().availableProcessors() * 2;
-        Properties properties = createProducerProperties(bootstrapServers, flight);
-        kafkaProducer = new KafkaProducer<>(properties);
-        Runtime.getRuntime().addShutdownHook(new Thread(kafkaProducer::close));
+        List<KafkaProducer<String, byte[]>> list = new ArrayList<>(producerCount);
+        for (int i = 0; i < producerCount; i++) {
+            KafkaProducer<String, byte[]> kafkaProducer = new KafkaProducer<>(createProducerProperties(bootstrapServers, flight, bufferBytes));
+            Runtime.getRuntime().addShutdownHook(new Thread(kafkaProducer::close));
+            list.add(kafkaProducer);
+        }
+        producers = list;
     }
 
     /**
@@ -46,11 +83,22 @@ public class KafkaSender {
      * @return
      */
     public static KafkaSender of(String bootstrapServers) {
-        return new KafkaSender(bootstrapServers);
+        return new KafkaSender(bootstrapServers, 1, DEFAULT_BUFFER_BYTES);
     }
 
     /**
-     * 异步发送消息。如果遇到可重试异常，最多重试100次。
+     * 创建使用多个 producer 的kafka消息发送助手
+     *
+     * @param bootstrapServers 服务器地址，eg : ip:port,ip:port……
+     * @param producerCount    producer 数量
+     * @param bufferBytes      每个 producer 的发送缓存大小，单位：字节
+     */
+    public static KafkaSender of(String bootstrapServers, int producerCount, long bufferBytes) {
+        return new KafkaSender(bootstrapServers, producerCount, bufferBytes);
+    }
+
+    /**
+     * 异步发送消息，失败时回调
      *
      * @param topic    话题
      * @param msgKey   消息的key
@@ -59,10 +107,83 @@ public class KafkaSender {
      */
     public void send(String topic, String msgKey, String msg, Callback callback) {
         log.debug("topic: {} || msgKey : {}|| msg : {}", topic, msgKey, msg);
-        trySend(topic, msgKey, msg, callback, new AtomicInteger(100));
+        doSend(new ProducerRecord<>(topic, msgKey, msg.getBytes(StandardCharsets.UTF_8)), callback);
+    }
+
+    /**
+     * 异步发送预先构建好的消息，失败时回调
+     *
+     * @param record   待发送的消息[utf-8 编码的消息体]，只会发送一次
+     * @param callback 回调处理对象
+     */
+    public void send(ProducerRecord<String, byte[]> record, Callback callback) {
+        if (log.isDebugEnabled()) {
+            log.debug("topic: {} || msgKey : {}|| msg : {}", record.topic(), record.key(), toText(record.value()));
+        }
+        doSend(record, callback);
+    }
+
+    /**
+     * 查询 topic 的分区数，topic 不存在且允许自动创建时会创建
+     */
+    public int partitionCount(String topic) {
+        List<PartitionInfo> partitions = producers.get(0).partitionsFor(topic);
+        if (partitions == null || partitions.isEmpty()) {
+            throw new KafkaException("topic 没有分区信息 : " + topic);
+        }
+        return partitions.size();
+    }
+
+    /**
+     * 各 producer 的发送统计：每秒发送条数、每秒发送字节数、io 线程繁忙比例[接近 1 说明 io 线程已饱和，增加 producer 可以提高吞吐量]、剩余发送缓存
+     */
+    public String metrics() {
+        StringBuilder builder = new StringBuilder();
+        double totalRate = 0;
+        for (int i = 0; i < producers.size(); i++) {
+            Map<MetricName, ? extends Metric> metrics = producers.get(i).metrics();
+            double sendRate = metric(metrics, "record-send-rate");
+            totalRate += sendRate;
+            builder.append("producer-").append(i)
+                    .append("{sendRate=").append(String.format("%.1f", sendRate))
+                    .append(", byteRate=").append(String.format("%.0f", metric(metrics, "outgoing-byte-rate")))
+                    .append(", ioRatio=").append(String.format("%.2f", metric(metrics, "io-ratio")))
+                    .append(", bufferAvailable=").append(String.format("%.0f", metric(metrics, "buffer-available-bytes")))
+                    .append("} ");
+        }
+        return builder.append("|| totalSendRate : ").append(String.format("%.1f", totalRate)).toString();
+    }
+
+    private static double metric(Map<MetricName, ? extends Metric> metrics, String name) {
+        for (Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+            if (entry.getKey().name().equals(name) && "producer-metrics".equals(entry.getKey().group())) {
+                Object value = entry.getValue().metricValue();
+                return value instanceof Number ? ((Number) value).doubleValue() : 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 选择 producer ：有 key 时按 key 散列，同一个 key 的消息始终由同一个 producer 发送；指定了分区时按分区；都没有时轮流分配。
+     * 不查询 topic 元数据，集群不可用时也不会阻塞发送线程
+     */
+    Producer<String, byte[]> producerFor(ProducerRecord<String, byte[]> record) {
+        if (producers.size() == 1) {
+            return producers.get(0);
+        }
+        int hash;
+        if (record.key() != null) {
+            hash = Utils.murmur2(record.key().getBytes(StandardCharsets.UTF_8));
+        } else if (record.partition() != null) {
+            hash = 31 * record.topic().hashCode() + record.partition();
+        } else {
+            hash = roundRobin.getAndIncrement();
+        }
+        return producers.get(Utils.toPositive(hash) % producers.size());
     }
 
-    private static Properties createProducerProperties(String bootstrapServers, int flight) {
+    private static Properties createProducerProperties(String bootstrapServers, int flight, long bufferBytes) {
         Properties properties = new Properties();
         // 多个以 , 分割
         properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
@@ -77,51 +198,45 @@ public class KafkaSender {
         // 发送间隙少于多少毫秒，则合并入一个批次
         properties.put(ProducerConfig.LINGER_MS_CONFIG, 50);
         // 消息缓存区大小，单位：字节。默认值 32MB
-        properties.put(ProducerConfig.BUFFER_MEMORY_CONFIG, 128 << 20);
+        properties.put(ProducerConfig.BUFFER_MEMORY_CONFIG, bufferBytes);
         properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
-        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
+        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArraySerializer");
         properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
         return properties;
     }
 
     /**
-     * 尽量发送消息，如果是可重试异常，可以最多重试retry次。
-     * 主要解决 kafka 自带重试机制无法解决的异常：
-     * 1、超过 request.timeout.ms 未发送的消息[kafka节点异常]
-     * 2、获取 metadata 失败[kafka节点异常]
-     *
-     * @param retry 重试次数
+     * 发送一次，失败时记录日志后回调。
+     * kafka 自带重试机制无法解决的异常[超过 request.timeout.ms 未发送、获取 metadata 失败等]由调用方决定何时重试
      */
-    private void trySend(String topic, String msgKey, String msg, Callback callback, AtomicInteger retry) {
-        // 一定要新建一个 ProducerRecord ，发送超时后，ProducerRecord会被设置为 null
-        ProducerRecord<String, String> record = new ProducerRecord<>(topic, msgKey, msg);
-        kafkaProducer.send(record, (recordMetadata, exception) -> {
-            if (exception == null) {
-                // 成功发送消息，回调处理
-                if (callback != null) {
-                    callback.onCompletion(recordMetadata, null);
+    private void doSend(ProducerRecord<String, byte[]> record, Callback callback) {
+        try {
+            producerFor(record).send(record, (recordMetadata, exception) -> {
+                if (exception != null) {
+                    String type = exception instanceof RetriableException ? "可重试的异常" : "不可恢复的异常";
+                    log.error("kafka producer 发送消息失败[{}] || exception : {} || topic : {} || msgKey : {} || msg : {} ",
+                            type, exception, record.topic(), record.key(), toText(record.value()));
                 }
-                return;
-            }
-            // 不可重试异常处理
-            if (!(exception instanceof RetriableException)) {
-                log.error("kafka producer 发送消息失败[不可恢复的异常]。 exception : {} || topic : {} || msgKey : {} || msg : {} ", exception, topic, msgKey, msg);
                 if (callback != null) {
                     callback.onCompletion(recordMetadata, exception);
                 }
-                return;
+            });
+        } catch (RuntimeException e) {
+            // 分配发送缓存超时、序列化失败等同步抛出的异常，与异步失败一样回调给调用方
+            log.error("kafka producer 发送消息失败[同步异常] || exception : {} || topic : {} || msgKey : {}",
+                    e.toString(), record.topic(), record.key());
+            if (callback == null) {
+                throw e;
             }
-            // 可重试异常处理
-            if (retry.getAndDecrement() == 0) {
-                log.error("kafka producer 发送消息失败[达到重试次数上限，仍未恢复正常] || exception : {} || topic : {} || msgKey : {} || msg : {} ", exception, topic, msgKey, msg);
-                if (callback != null) {
-                    callback.onCompletion(recordMetadata, exception);
-                }
-                return;
-            }
-            log.warn("kafka producer 发送消息失败，准备重试 || 剩余重试次数 : {} || exception : {} || topic : {} || msgKey : {} || msg : {} ", retry.get(), exception, topic, msgKey, msg);
-            trySend(topic, msgKey, msg, callback, retry);
-        });
+            callback.onCompletion(null, e);
+        }
+    }
+
+    /**
+     * 只在输出日志时解码消息体
+     */
+    private static String toText(byte[] msg) {
+        return msg == null ? null : new String(msg, StandardCharsets.UTF_8);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,376 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.constant.DelayConst;
+import com.github.delaymsg.dao.DelayStore;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 追赶模式，一个本地数据库对应一个。
+ * 停机数小时后重启、或者 kafka 故障恢复后，分片积压了大量已到期的消息，时间轮逐批预读、转发需要很长时间。
+ * 转发线程定时检查时间轮还未预读的已到期消息数，达到 backlogThreshold 时在后台线程进入追赶模式：
+ * <pre>
+ * 1. 把 [最早触发时间, 当前时间) 按触发时间切成多段，parallelism 个线程从队列里领取、并发扫描和发送
+ * 2. 同时在途的消息数不超过 maxInFlight ，发送成功的消息由扫描线程批量删除
+ * 3. 定时输出已转发数、进度、剩余积压数和预计完成时间[按已扫描的时间范围估算]
+ * 4. 发送失败、已失败过的消息留在本地数据库，追赶完成后由时间轮按重试策略转发
+ * </pre>
+ * 与时间轮的配合：追赶 [时间轮还未预读的起始 key, 当前时间) ，跳过已在时间轮里的消息；
+ * 追赶期间转发线程照常运行，时间轮从追赶范围的上界继续预读、转发新到期的消息，处理发送结果；
+ * 追赶范围内保存线程交给时间轮的消息推迟到追赶完成后处理，见 {@link NearTermWheel#catchUp(byte[], byte[])} 。
+ * 追赶完成后时间轮回到追赶范围的起点重新预读，剩余的消息由时间轮转发。
+ * 各段并发发送，不同时间段之间不保证转发顺序，同一个 messageKey 的消息也可能乱序。
+ *
+ * @author HuaHui Yu 2026-10-18 23:47:36
+ **/
+public class CatchUpDrainer {
+
+    private static final Logger log = LoggerFactory.getLogger(CatchUpDrainer.class);
+
+    /**
+     * 单次扫描的最大记录数
+     */
+    private static final int SCAN_BATCH = 10000;
+
+    /**
+     * 每个线程平均分到的时间段数，时间段多于线程数，消息集中在少数时间点时也能均匀分配
+     */
+    private static final int SLICES_PER_WORKER = 4;
+
+    /**
+     * 输出进度的间隔
+     */
+    private static final long PROGRESS_INTERVAL_MS = 10_000L;
+
+    /**
+     * 检查积压量的间隔
+     */
+    private static final long CHECK_INTERVAL_MS = 10_000L;
+
+    private final DelayStore delayStore;
+
+    private final KafkaSender kafkaSender;
+
+    private final long backlogThreshold;
+
+    private final int parallelism;
+
+    private final int maxInFlight;
+
+    private long nextCheckAt;
+
+    /**
+     * 正在后台执行的追赶，只在转发线程访问
+     */
+    private Future<?> running;
+
+    private byte[] runningFrom;
+
+    private ExecutorService coordinator;
+
+    /**
+     * @param backlogThreshold 已到期、未预读的消息数达到该值时进入追赶模式
+     * @param parallelism      并发扫描、发送的线程数
+     * @param maxInFlight      同时在途的最大消息数
+     */
+    public CatchUpDrainer(DelayStore delayStore, KafkaSender kafkaSender, long backlogThreshold, int parallelism,
+                          int maxInFlight) {
+        this.delayStore = delayStore;
+        this.kafkaSender = kafkaSender;
+        this.backlogThreshold = backlogThreshold;
+        this.parallelism = parallelism;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * 按配置文件创建
+     *
+     * @return 没有开启追赶模式时返回 null
+     */
+    public static CatchUpDrainer fromConfig(DelayStore delayStore, KafkaSender kafkaSender) {
+        long backlog = Long.parseLong(DelayConst.CATCH_UP_BACKLOG);
+        if (backlog <= 0) {
+            return null;
+        }
+        return new CatchUpDrainer(delayStore, kafkaSender, backlog,
+                Integer.parseInt(DelayConst.CATCH_UP_PARALLELISM), Integer.parseInt(DelayConst.CATCH_UP_IN_FLIGHT));
+    }
+
+    /**
+     * 转发线程每一轮调用，每 {@link #CHECK_INTERVAL_MS} 检查一次积压量。
+     * 时间轮还未预读的已到期消息数达到阈值时，在后台转发 nowMs 之前到期、不在时间轮里的全部消息，立即返回；
+     * 后台追赶完成后由下一轮调用通知时间轮
+     *
+     * @param done 后台追赶完成时调用，唤醒转发线程
+     * @return 是否开始了一次追赶
+     */
+    public boolean drainIfBehind(long nowMs, NearTermWheel nearTermWheel, Runnable done) {
+        if (running != null) {
+            if (!running.isDone()) {
+                return false;
+            }
+            running = null;
+            nearTermWheel.drained(runningFrom);
+            nextCheckAt = nowMs + CHECK_INTERVAL_MS;
+        }
+        if (nowMs < nextCheckAt) {
+            return false;
+        }
+        nextCheckAt = nowMs + CHECK_INTERVAL_MS;
+        byte[] from = nearTermWheel.unloadedFrom();
+        byte[] to = KeyUtils.lowerBound(nowMs);
+        if (KeyUtils.compare(from, to) >= 0) {
+            return false;
+        }
+        long earliest = delayStore.peekEarliestTriggerTime(from);
+        if (earliest < 0 || earliest >= nowMs) {
+            return false;
+        }
+        long backlog = delayStore.estimateCount(from, to, backlogThreshold);
+        if (backlog < backlogThreshold) {
+            return false;
+        }
+        log.info("积压的到期消息超过阈值，进入追赶模式 || earliest : {} || backlog : {} || {}",
+                earliest, backlog, delayStore.stats());
+        Drain drain = new Drain(earliest, nowMs, nearTermWheel.catchUp(from, to));
+        if (coordinator == null) {
+            coordinator = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "catch-up");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        runningFrom = from;
+        running = coordinator.submit(() -> {
+            try {
+                drain.run();
+            } catch (RuntimeException e) {
+                log.error("追赶模式异常退出，剩余消息由时间轮转发", e);
+            } finally {
+                done.run();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 是否正在后台追赶
+     */
+    public boolean isRunning() {
+        return running != null && !running.isDone();
+    }
+
+    /**
+     * 一次追赶
+     */
+    private final class Drain {
+
+        private final long fromMs;
+
+        private final long toMs;
+
+        /**
+         * 追赶开始时已在时间轮里的消息，由时间轮转发
+         */
+        private final Set<ByteBuffer> inWheel;
+
+        private final List<Slice> slices = new ArrayList<>();
+
+        private final ConcurrentLinkedQueue<Slice> unclaimed = new ConcurrentLinkedQueue<>();
+
+        private final Semaphore permits = new Semaphore(maxInFlight);
+
+        private final ConcurrentLinkedQueue<byte[]> acked = new ConcurrentLinkedQueue<>();
+
+        private final AtomicLong sent = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private final AtomicLong skipped = new AtomicLong();
+
+        private Drain(long fromMs, long toMs, Set<ByteBuffer> inWheel) {
+            this.fromMs = fromMs;
+            this.toMs = toMs;
+            this.inWheel = inWheel;
+            int sliceCount = parallelism * SLICES_PER_WORKER;
+            long sliceMs = Math.max(1L, (toMs - fromMs + sliceCount - 1) / sliceCount);
+            for (long start = fromMs; start < toMs; start += sliceMs) {
+                Slice slice = new Slice(start, Math.min(start + sliceMs, toMs));
+                slices.add(slice);
+                unclaimed.add(slice);
+            }
+        }
+
+        private void run() {
+            long startedAt = System.currentTimeMillis();
+            AtomicInteger threadId = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism,
+                    r -> new Thread(r, "catch-up-" + threadId.incrementAndGet()));
+            List<Future<?>> futures = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                futures.add(workers.submit(this::work));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    awaitWithProgress(future, startedAt);
+                }
+                // 等待在途消息的发送结果，删除最后一批
+                permits.acquire(maxInFlight);
+                permits.release(maxInFlight);
+                deleteAcked();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("追赶模式被中断，剩余消息由时间轮转发 || sent : {}", sent.get());
+                return;
+            } finally {
+                workers.shutdownNow();
+            }
+            log.info("追赶完成，回到低延迟模式 || sent : {} || failed : {} || skipped : {} || costMs : {} || {}",
+                    sent.get(), failed.get(), skipped.get(), System.currentTimeMillis() - startedAt, delayStore.stats());
+        }
+
+        private void awaitWithProgress(Future<?> future, long startedAt) throws InterruptedException {
+            while (true) {
+                try {
+                    future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    logProgress(startedAt);
+                } catch (ExecutionException e) {
+                    log.error("追赶模式扫描失败，剩余消息由时间轮转发", e.getCause());
+                    return;
+                }
+            }
+        }
+
+        private void work() {
+            Slice slice;
+            try {
+                while (!Thread.currentThread().isInterrupted() && (slice = unclaimed.poll()) != null) {
+                    drain(slice);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void drain(Slice slice) throws InterruptedException {
+            byte[] cursor = KeyUtils.lowerBound(slice.fromMs);
+            byte[] end = KeyUtils.lowerBound(slice.toMs);
+            while (true) {
+                List<DelayDto> list = delayStore.scanRange(cursor, end, SCAN_BATCH);
+                for (DelayDto dto : list) {
+                    if (inWheel.contains(ByteBuffer.wrap(dto.getKey()))) {
+                        // 时间轮负责转发
+                        continue;
+                    }
+                    if (dto.getAttempts() > 0) {
+                        // 失败过的消息按重试策略转发
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    permits.acquire();
+                    send(dto);
+                }
+                deleteAcked();
+                if (list.size() < SCAN_BATCH) {
+                    break;
+                }
+                byte[] last = list.get(list.size() - 1).getKey();
+                slice.position = KeyUtils.extractTriggerTime(last);
+                cursor = KeyUtils.successor(last);
+            }
+            slice.position = slice.toMs;
+        }
+
+        private void send(DelayDto dto) {
+            byte[] key = dto.getKey();
+            // 同步抛出的异常也由 KafkaSender 交给回调，额度总会释放
+            kafkaSender.send(new ProducerRecord<>(dto.getTopic(), dto.getMessageKey(), dto.getPayload()), (metadata, exception) -> {
+                if (exception == null) {
+                    acked.offer(key);
+                    sent.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                permits.release();
+            });
+        }
+
+        private void deleteAcked() {
+            List<byte[]> keys = new ArrayList<>();
+            byte[] key;
+            while ((key = acked.poll()) != null) {
+                keys.add(key);
+                if (keys.size() >= SCAN_BATCH) {
+                    delayStore.batchDelete(keys);
+                    keys = new ArrayList<>();
+                }
+            }
+            if (!keys.isEmpty()) {
+                delayStore.batchDelete(keys);
+            }
+        }
+
+        /**
+         * 按已扫描的时间范围估算进度，积压集中在少数时间点时误差较大
+         */
+        private void logProgress(long startedAt) {
+            long scannedMs = 0;
+            for (Slice slice : slices) {
+                scannedMs += slice.position - slice.fromMs;
+            }
+            double progress = (double) scannedMs / Math.max(1L, toMs - fromMs);
+            long elapsedMs = System.currentTimeMillis() - startedAt;
+            long done = sent.get();
+            long remaining = progress > 0 ? (long) (done * (1 - progress) / progress) : -1L;
+            long etaSeconds = progress > 0 ? (long) (elapsedMs * (1 - progress) / progress / 1000) : -1L;
+            log.info("追赶模式进度 || sent : {} || failed : {} || progress : {}% || rate : {}/s || remaining : {} || etaSeconds : {}",
+                    done, failed.get(), String.format("%.1f", progress * 100), done * 1000 / Math.max(1L, elapsedMs),
+                    remaining, etaSeconds);
+        }
+
+    }
+
+    /**
+     * 一个时间段 [fromMs, toMs)
+     */
+    private static final class Slice {
+
+        private final long fromMs;
+
+        private final long toMs;
+
+        /**
+         * 已扫描到的触发时间
+         */
+        private volatile long position;
+
+        private Slice(long fromMs, long toMs) {
+            this.fromMs = fromMs;
+            this.toMs = toMs;
+            this.position = fromMs;
+        }
+
+    }
+
+}
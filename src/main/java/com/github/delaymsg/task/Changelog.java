@@ -0,0 +1,302 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.ChangelogDelayStore;
+import com.github.delaymsg.dao.DelayStore;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * 分片的 changelog 副本。
+ * <pre>
+ * 1. 主节点：分片存储包装为 {@link ChangelogDelayStore} ，写入、删除发布到 changelog topic 的同号分区
+ * 2. 备份节点：本线程持续读取没有分配给本节点的分区，写入对应分片的本地存储，只备份不转发
+ * 3. 接管：分区分配给本节点时，先读到该分区 changelog 的末尾、停止备份，分片再开始转发；分区被收回时停止转发，改为备份
+ * 4. standby=false 时不维护热备份，接管时从头读取该分区的 changelog 重建
+ * </pre>
+ * 节点宕机后，接管的节点只需追上备份与 changelog 之间的少量差距，秒级恢复转发。
+ * 写入、删除都是幂等的，重复读取 changelog 不影响结果。
+ *
+ * @author HuaHui Yu 2026-10-18 21:47:39
+ **/
+public class Changelog implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(Changelog.class);
+
+    private static final long POLL_MS = 100L;
+
+    /**
+     * 接管时追赶 changelog 的最长时间，超时后直接接管。需小于消费者的 max.poll.interval.ms
+     */
+    static final long CATCH_UP_MS = 60_000L;
+
+    private final Producer<byte[], byte[]> producer;
+
+    private final Consumer<byte[], byte[]> consumer;
+
+    private final String topic;
+
+    /**
+     * 是否持续备份其它节点的分区
+     */
+    private final boolean standby;
+
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 正在备份的分区，只在当前线程访问
+     */
+    private final Set<TopicPartition> followed = new HashSet<>();
+
+    /**
+     * 分区号 -> 分片的本地存储[不发布 changelog]
+     */
+    private volatile IntFunction<DelayStore> localStores;
+
+    private boolean started;
+
+    /**
+     * @param producer 发布 changelog
+     * @param consumer 读取 changelog ，只在当前线程使用
+     * @param topic    changelog topic ，分区数与延时消息 topic 相同
+     * @param standby  是否持续备份其它节点的分区
+     */
+    public Changelog(Producer<byte[], byte[]> producer, Consumer<byte[], byte[]> consumer, String topic, boolean standby) {
+        this.producer = producer;
+        this.consumer = consumer;
+        this.topic = topic;
+        this.standby = standby;
+    }
+
+    /**
+     * @param bootstrapServers kafka节点，eg： ip:port,ip:port……
+     * @param topic            changelog topic
+     * @param standby          是否持续备份其它节点的分区
+     */
+    public static Changelog of(String bootstrapServers, String topic, boolean standby) {
+        Properties producerProperties = new Properties();
+        producerProperties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        // 写入 changelog 成功后才提交延时消息的偏移量，需要所有副本确认
+        producerProperties.put(ProducerConfig.ACKS_CONFIG, "all");
+        producerProperties.put(ProducerConfig.RETRIES_CONFIG, Integer.MAX_VALUE);
+        // 重试时保持同一个 key 的写入、删除顺序
+        producerProperties.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 1);
+        producerProperties.put(ProducerConfig.LINGER_MS_CONFIG, 5);
+        producerProperties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+        producerProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArraySerializer");
+        producerProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArraySerializer");
+        KafkaProducer<byte[], byte[]> producer = new KafkaProducer<>(producerProperties);
+
+        Properties consumerProperties = new Properties();
+        consumerProperties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        // 手动分配分区、自行定位，不提交偏移量
+        consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, "5000");
+        consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+        consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+        KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(consumerProperties);
+        Runtime.getRuntime().addShutdownHook(new Thread(producer::close));
+        return new Changelog(producer, consumer, topic, standby);
+    }
+
+    /**
+     * 包装分片的本地存储，写入、删除发布到 changelog
+     */
+    public DelayStore publishing(int partition, DelayStore local) {
+        return new ChangelogDelayStore(local, producer, topic, partition);
+    }
+
+    /**
+     * 设置备份数据写入的本地存储，启动前调用
+     */
+    void bind(IntFunction<DelayStore> localStores) {
+        this.localStores = localStores;
+    }
+
+    /**
+     * 接管分区：读到该分区 changelog 的末尾后停止备份
+     *
+     * @return 完成时返回是否已追上 changelog 末尾
+     */
+    public CompletableFuture<Boolean> promote(int partition) {
+        Command command = new Command(new TopicPartition(topic, partition), true);
+        commands.add(command);
+        return command.done;
+    }
+
+    /**
+     * 交出分区：standby 时从 changelog 末尾继续备份[本地存储已是最新]
+     */
+    public void demote(int partition) {
+        commands.add(new Command(new TopicPartition(topic, partition), false));
+    }
+
+    @Override
+    public void run() {
+        log.info("备份 changelog[{}] || standby : {}", topic, standby);
+        Thread currentThread = Thread.currentThread();
+        while (!currentThread.isInterrupted()) {
+            try {
+                step();
+            } catch (RuntimeException e) {
+                // 已读取的部分可能没有写入本地，从头重建，写入、删除都是幂等的
+                log.error("changelog 备份写入失败，从头重建备份 || partitions : {}", followed, e);
+                consumer.seekToBeginning(followed);
+                sleep(1000L);
+            }
+        }
+        consumer.close();
+        log.error("Changelog 异常中断，需人工排查");
+    }
+
+    /**
+     * 处理接管、交出请求，读取一批 changelog 写入本地
+     */
+    void step() {
+        if (!started) {
+            started = true;
+            if (standby) {
+                followAll();
+            }
+        }
+        Command command;
+        while ((command = commands.poll()) != null) {
+            if (command.promote) {
+                command.done.complete(catchUp(command.partition));
+            } else if (standby && followed.add(command.partition)) {
+                consumer.assign(followed);
+                consumer.seekToEnd(Collections.singleton(command.partition));
+            }
+        }
+        if (followed.isEmpty()) {
+            sleep(POLL_MS);
+        } else {
+            apply(consumer.poll(POLL_MS));
+        }
+    }
+
+    /**
+     * 启动时从头备份所有分区，分配给本节点的分区随后接管
+     */
+    private void followAll() {
+        for (PartitionInfo info : consumer.partitionsFor(topic)) {
+            followed.add(new TopicPartition(topic, info.partition()));
+        }
+        consumer.assign(followed);
+        consumer.seekToBeginning(followed);
+    }
+
+    /**
+     * 读到分区 changelog 的末尾，停止备份该分区；期间暂停其它分区
+     */
+    private boolean catchUp(TopicPartition partition) {
+        if (followed.add(partition)) {
+            consumer.assign(followed);
+            consumer.seekToBeginning(Collections.singleton(partition));
+        }
+        long end = consumer.endOffsets(Collections.singleton(partition)).get(partition);
+        Set<TopicPartition> others = new HashSet<>(followed);
+        others.remove(partition);
+        consumer.pause(others);
+        long deadline = System.currentTimeMillis() + CATCH_UP_MS;
+        try {
+            while (consumer.position(partition) < end) {
+                if (System.currentTimeMillis() > deadline) {
+                    log.warn("changelog 追赶超时 || partition : {} || position : {} || end : {}",
+                            partition, consumer.position(partition), end);
+                    return false;
+                }
+                apply(consumer.poll(POLL_MS));
+            }
+            log.info("changelog 已追上，接管分区 || partition : {} || end : {}", partition, end);
+            return true;
+        } finally {
+            consumer.resume(others);
+            followed.remove(partition);
+            consumer.assign(followed);
+        }
+    }
+
+    /**
+     * 按顺序写入本地：value 为 null 的墓碑消息表示删除，连续的写入、删除分别合并成一批
+     */
+    private void apply(ConsumerRecords<byte[], byte[]> records) {
+        for (TopicPartition partition : records.partitions()) {
+            DelayStore delayStore = localStores.apply(partition.partition());
+            List<byte[]> keys = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            boolean deleting = false;
+            for (ConsumerRecord<byte[], byte[]> record : records.records(partition)) {
+                boolean tombstone = record.value() == null;
+                if (tombstone != deleting && !keys.isEmpty()) {
+                    write(delayStore, keys, values, deleting);
+                    keys = new ArrayList<>();
+                    values = new ArrayList<>();
+                }
+                deleting = tombstone;
+                keys.add(record.key());
+                if (!tombstone) {
+                    values.add(record.value());
+                }
+            }
+            if (!keys.isEmpty()) {
+                write(delayStore, keys, values, deleting);
+            }
+        }
+    }
+
+    private static void write(DelayStore delayStore, List<byte[]> keys, List<byte[]> values, boolean deleting) {
+        if (deleting) {
+            delayStore.batchDelete(keys);
+        } else {
+            delayStore.batchStore(keys, values);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Command {
+
+        private final TopicPartition partition;
+
+        /**
+         * true : 接管；false : 交出
+         */
+        private final boolean promote;
+
+        private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        private Command(TopicPartition partition, boolean promote) {
+            this.partition = partition;
+            this.promote = promote;
+        }
+
+    }
+
+}
@@ -0,0 +1,557 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
+import com.lmax.disruptor.TimeoutHandler;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 延时消息写入流水线，一个 kafka 消费者对应一个。
+ * <pre>
+ * kafka 消费线程 -> 环形队列 -> 解析线程 * n[消息解析、校验、序列化，按序号分片并行] -> 写入线程[批量写入本地数据库]
+ * </pre>
+ * 拉取消息和磁盘写入互不等待，解析、序列化可以使用多个 cpu 核。
+ * 写入线程把环形队列里已就绪的消息合并成一批写入，写入成功后才登记偏移量，由消费线程提交。
+ * 环形队列写满时，消费线程阻塞，暂停拉取。
+ * <p>
+ * 快速通道：解析时已到期[触发时间不晚于当前时间 + fastPathMs]的消息不写入本地数据库，由写入线程直接发送；
+ * 同一批消息全部发送成功、且其余消息写入成功后，才按顺序登记这一批的偏移量。
+ * 直接发送失败的消息，改为写入本地数据库，由转发线程重试。
+ * <p>
+ * 写入按 kafka 分区分批，每个分区的消息写入该分区的存储分片，见 {@link PartitionShards} 。
+ * <p>
+ * 解析抛出异常的消息按异常消息丢弃；写入失败一直重试；直接发送同步抛出异常时改为写入本地数据库。
+ * 其余未预料的异常会让流水线停止：不再登记偏移量，{@link #publish(ConsumerRecords)} 抛出异常，消费线程退出，
+ * 未提交的消息由其它消费者重新消费。
+ *
+ * @author HuaHui Yu 2026-10-18 15:12:40
+ **/
+public class IngestPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestPipeline.class);
+
+    /**
+     * 环形队列大小，必须是 2 的幂
+     */
+    private static final int RING_SIZE = 8192;
+
+    /**
+     * 单次批量写入的最大记录数
+     */
+    private static final int WRITE_BATCH = 10000;
+
+    /**
+     * 写入失败后的重试间隔
+     */
+    private static final long RETRY_INTERVAL_MS = 1000L;
+
+    /**
+     * 没有新消息时，写入线程处理直接发送结果的间隔
+     */
+    private static final long IDLE_CHECK_MS = 100L;
+
+    private static final AtomicInteger PIPELINE_ID = new AtomicInteger();
+
+    private final Disruptor<IngestEvent> disruptor;
+
+    /**
+     * 已写入本地数据库的最大偏移量，等待消费线程提交
+     */
+    private final Map<TopicPartition, Long> durableOffsets = new ConcurrentHashMap<>();
+
+    private final KafkaSender kafkaSender;
+
+    /**
+     * 快速通道的提前量，毫秒；小于 0 时不启用快速通道
+     */
+    private final long fastPathMs;
+
+    /**
+     * 写入线程已处理完[写入成功、直接发送完成]的最大序号
+     */
+    private volatile long completedSequence = -1L;
+
+    /**
+     * 处理线程的未预料异常，不为 null 时流水线已停止
+     */
+    private volatile Throwable failure;
+
+    /**
+     * @param parser  消息解析、校验，解析失败时返回空
+     * @param writer  批量写入
+     * @param parsers 解析线程数
+     */
+    public IngestPipeline(Function<ConsumerRecord<byte[], byte[]>, Optional<DelayDto>> parser, BatchWriter writer, int parsers) {
+        this(parser, writer, parsers, null, -1L);
+    }
+
+    /**
+     * @param parser      消息解析、校验，解析失败时返回空
+     * @param writer      批量写入
+     * @param parsers     解析线程数
+     * @param kafkaSender 快速通道直接发送
+     * @param fastPathMs  触发时间不晚于当前时间 + fastPathMs 的消息直接发送，小于 0 时不启用
+     */
+    public IngestPipeline(Function<ConsumerRecord<byte[], byte[]>, Optional<DelayDto>> parser, BatchWriter writer, int parsers,
+                          KafkaSender kafkaSender, long fastPathMs) {
+        this.kafkaSender = kafkaSender;
+        this.fastPathMs = fastPathMs;
+        int pipelineId = PIPELINE_ID.getAndIncrement();
+        AtomicInteger threadId = new AtomicInteger();
+        disruptor = new Disruptor<>(IngestEvent::new, RING_SIZE, r -> {
+            Thread thread = new Thread(r, "ingest-" + pipelineId + "-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, ProducerType.SINGLE, new TimeoutBlockingWaitStrategy(IDLE_CHECK_MS, TimeUnit.MILLISECONDS));
+        disruptor.setDefaultExceptionHandler(new FailureHandler());
+        EventHandler<IngestEvent>[] parseHandlers = newHandlers(parsers);
+        for (int i = 0; i < parsers; i++) {
+            parseHandlers[i] = new ParseHandler(parser, i, parsers, fastPathMs);
+        }
+        disruptor.handleEventsWith(parseHandlers).then(new WriteHandler(writer));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static EventHandler<IngestEvent>[] newHandlers(int size) {
+        return new EventHandler[size];
+    }
+
+    public void start() {
+        disruptor.start();
+    }
+
+    /**
+     * 等待环形队列里的消息处理完，再停止处理线程
+     */
+    public void shutdown() {
+        disruptor.shutdown();
+    }
+
+    /**
+     * 消费线程调用，把拉取到的消息放入环形队列
+     */
+    public void publish(ConsumerRecords<byte[], byte[]> records) {
+        checkFailure();
+        RingBuffer<IngestEvent> ringBuffer = disruptor.getRingBuffer();
+        for (TopicPartition partition : records.partitions()) {
+            for (ConsumerRecord<byte[], byte[]> record : records.records(partition)) {
+                long sequence = ringBuffer.next();
+                IngestEvent event = ringBuffer.get(sequence);
+                event.partition = partition;
+                event.offset = record.offset();
+                event.record = record;
+                event.dto = null;
+                event.value = null;
+                event.direct = false;
+                ringBuffer.publish(sequence);
+            }
+        }
+    }
+
+    /**
+     * 消费线程调用，等待已放入环形队列的消息全部处理完、偏移量登记完成，交出分区前调用
+     *
+     * @param timeoutMs 最长等待时间
+     * @return 是否已全部处理完
+     */
+    public boolean awaitIdle(long timeoutMs) {
+        long published = disruptor.getRingBuffer().getCursor();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (completedSequence < published) {
+            if (failure != null || System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 消费线程调用，取出已写入本地数据库、可以提交的偏移量
+     */
+    public Map<TopicPartition, OffsetAndMetadata> committable() {
+        if (failure != null || durableOffsets.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (Map.Entry<TopicPartition, Long> entry : durableOffsets.entrySet()) {
+            TopicPartition partition = entry.getKey();
+            Long offset = entry.getValue();
+            offsets.put(partition, new OffsetAndMetadata(offset + 1));
+            // 期间又有新的偏移量登记时保留，下一轮再提交
+            durableOffsets.remove(partition, offset);
+        }
+        return offsets;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("写入流水线已停止", failure);
+        }
+    }
+
+    /**
+     * 处理线程的未预料异常：记录日志后停止登记偏移量。
+     * 默认的处理方式会停止处理线程，环形队列写满后消费线程永久阻塞，且没有任何日志
+     */
+    private final class FailureHandler implements ExceptionHandler<IngestEvent> {
+
+        @Override
+        public void handleEventException(Throwable ex, long sequence, IngestEvent event) {
+            log.error("写入流水线处理异常，停止登记偏移量，未提交的消息由其它消费者重新消费 || sequence : {} || partition : {} || offset : {}",
+                    sequence, event.partition, event.offset, ex);
+            if (failure == null) {
+                failure = ex;
+            }
+        }
+
+        @Override
+        public void handleOnStartException(Throwable ex) {
+            log.error("写入流水线启动异常", ex);
+            failure = ex;
+        }
+
+        @Override
+        public void handleOnShutdownException(Throwable ex) {
+            log.error("写入流水线停止异常", ex);
+        }
+
+    }
+
+    /**
+     * 批量写入本地数据库
+     */
+    @FunctionalInterface
+    public interface BatchWriter {
+
+        /**
+         * 写入成功后才能返回，失败时抛出异常
+         *
+         * @param partition 消息所在的 kafka 分区
+         * @param keys      存储 key
+         * @param values    序列化后的消息
+         * @param stored    消息
+         */
+        void write(TopicPartition partition, List<byte[]> keys, List<byte[]> values, List<DelayDto> stored);
+
+    }
+
+    static final class IngestEvent {
+
+        private TopicPartition partition;
+
+        private long offset;
+
+        private ConsumerRecord<byte[], byte[]> record;
+
+        /**
+         * 解析结果，为 null 表示异常消息，直接丢弃
+         */
+        private DelayDto dto;
+
+        private byte[] value;
+
+        /**
+         * 已到期，走快速通道直接发送
+         */
+        private boolean direct;
+
+    }
+
+    /**
+     * 解析线程，按序号分片，每个事件只由一个解析线程处理
+     */
+    private static final class ParseHandler implements EventHandler<IngestEvent> {
+
+        private final Function<ConsumerRecord<byte[], byte[]>, Optional<DelayDto>> parser;
+
+        private final int ordinal;
+
+        private final int parsers;
+
+        private final long fastPathMs;
+
+        private ParseHandler(Function<ConsumerRecord<byte[], byte[]>, Optional<DelayDto>> parser, int ordinal, int parsers, long fastPathMs) {
+            this.parser = parser;
+            this.ordinal = ordinal;
+            this.parsers = parsers;
+            this.fastPathMs = fastPathMs;
+        }
+
+        @Override
+        public void onEvent(IngestEvent event, long sequence, boolean endOfBatch) {
+            if (sequence % parsers != ordinal) {
+                return;
+            }
+            try {
+                Optional<DelayDto> dto = parser.apply(event.record);
+                if (!dto.isPresent()) {
+                    return;
+                }
+                event.direct = fastPathMs >= 0
+                        && KeyUtils.extractTriggerTime(dto.get().getKey()) <= System.currentTimeMillis() + fastPathMs;
+                event.value = event.direct ? null : DelayDtoCodec.write(dto.get());
+                event.dto = dto.get();
+            } catch (RuntimeException e) {
+                // 重试同样会失败，按异常消息丢弃
+                log.error("解析消息异常，丢弃 || partition : {} || offset : {}", event.partition, event.offset, e);
+                event.dto = null;
+                event.value = null;
+                event.direct = false;
+            }
+        }
+
+    }
+
+    /**
+     * 写入线程，合并一批写入本地数据库、直接发送已到期的消息，完成后按顺序登记偏移量
+     */
+    private final class WriteHandler implements EventHandler<IngestEvent>, TimeoutHandler {
+
+        private final BatchWriter writer;
+
+        /**
+         * 待写入的消息，按分区分批
+         */
+        private final Map<TopicPartition, PartitionBatch> batches = new HashMap<>();
+
+        private int buffered;
+
+        private final List<DelayDto> direct = new ArrayList<>();
+
+        private final List<TopicPartition> directPartitions = new ArrayList<>();
+
+        private final Map<TopicPartition, Long> offsets = new HashMap<>();
+
+        /**
+         * 还有直接发送未完成的批次，按写入顺序排列
+         */
+        private final ArrayDeque<PendingBatch> pendingBatches = new ArrayDeque<>();
+
+        /**
+         * 直接发送失败、待写入本地数据库的消息
+         */
+        private final ConcurrentLinkedQueue<FailedSend> failedSends = new ConcurrentLinkedQueue<>();
+
+        private long lastSequence = -1L;
+
+        private WriteHandler(BatchWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void onEvent(IngestEvent event, long sequence, boolean endOfBatch) {
+            if (event.direct) {
+                direct.add(event.dto);
+                directPartitions.add(event.partition);
+            } else if (event.dto != null) {
+                batches.computeIfAbsent(event.partition, p -> new PartitionBatch()).add(event.dto, event.value);
+                buffered++;
+            }
+            lastSequence = sequence;
+            // 异常消息不写入，偏移量同样需要提交
+            offsets.put(event.partition, event.offset);
+            event.record = null;
+            event.dto = null;
+            event.value = null;
+            if (endOfBatch || buffered + direct.size() >= WRITE_BATCH) {
+                flush();
+            }
+        }
+
+        @Override
+        public void onTimeout(long sequence) {
+            storeFailedSends();
+            releaseOffsets();
+        }
+
+        private void flush() {
+            for (Map.Entry<TopicPartition, PartitionBatch> entry : batches.entrySet()) {
+                PartitionBatch partitionBatch = entry.getValue();
+                if (!partitionBatch.keys.isEmpty()) {
+                    writeUntilSuccess(entry.getKey(), partitionBatch.keys, partitionBatch.values, partitionBatch.stored);
+                    partitionBatch.clear();
+                }
+            }
+            buffered = 0;
+            PendingBatch batch = new PendingBatch(new HashMap<>(offsets), direct.size());
+            pendingBatches.add(batch);
+            for (int i = 0; i < direct.size(); i++) {
+                sendDirect(directPartitions.get(i), direct.get(i), batch);
+            }
+            direct.clear();
+            directPartitions.clear();
+            offsets.clear();
+            storeFailedSends();
+            releaseOffsets();
+        }
+
+        private void sendDirect(TopicPartition partition, DelayDto dto, PendingBatch batch) {
+            ProducerRecord<String, byte[]> record = new ProducerRecord<>(dto.getTopic(), dto.getMessageKey(), dto.getPayload());
+            try {
+                kafkaSender.send(record, (metadata, exception) -> {
+                    if (exception == null) {
+                        batch.unacked.decrementAndGet();
+                    } else {
+                        log.warn("快速通道发送失败，改为写入本地数据库 || id : {}", KeyUtils.toString(dto.getKey()));
+                        failedSends.offer(new FailedSend(partition, dto, batch));
+                    }
+                });
+            } catch (RuntimeException e) {
+                log.warn("快速通道发送异常，改为写入本地数据库 || id : {} || exception : {}", KeyUtils.toString(dto.getKey()), e.toString());
+                failedSends.offer(new FailedSend(partition, dto, batch));
+            }
+        }
+
+        private void storeFailedSends() {
+            if (failedSends.isEmpty()) {
+                return;
+            }
+            List<FailedSend> failed = new ArrayList<>();
+            FailedSend failedSend;
+            while ((failedSend = failedSends.poll()) != null) {
+                failed.add(failedSend);
+            }
+            Map<TopicPartition, PartitionBatch> failedBatches = new HashMap<>();
+            for (FailedSend send : failed) {
+                failedBatches.computeIfAbsent(send.partition, p -> new PartitionBatch())
+                        .add(send.dto, DelayDtoCodec.write(send.dto));
+            }
+            for (Map.Entry<TopicPartition, PartitionBatch> entry : failedBatches.entrySet()) {
+                PartitionBatch failedBatch = entry.getValue();
+                writeUntilSuccess(entry.getKey(), failedBatch.keys, failedBatch.values, failedBatch.stored);
+            }
+            for (FailedSend send : failed) {
+                send.batch.unacked.decrementAndGet();
+            }
+        }
+
+        /**
+         * 按顺序登记已完成批次的偏移量，前面的批次未完成时，后面的批次需要等待
+         */
+        private void releaseOffsets() {
+            PendingBatch batch;
+            while ((batch = pendingBatches.peek()) != null && batch.unacked.get() == 0) {
+                durableOffsets.putAll(batch.offsets);
+                pendingBatches.poll();
+            }
+            if (pendingBatches.isEmpty()) {
+                completedSequence = lastSequence;
+            }
+        }
+
+        /**
+         * 写入失败时不能跳过这一批，否则偏移量提交后消息会丢失；一直重试，期间环形队列写满后消费线程暂停拉取
+         */
+        private void writeUntilSuccess(TopicPartition partition, List<byte[]> keys, List<byte[]> values, List<DelayDto> stored) {
+            while (true) {
+                try {
+                    writer.write(partition, keys, values, stored);
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("写入本地数据库失败，稍后重试 || size : {}", keys.size(), e);
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(RETRY_INTERVAL_MS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("写入线程异常中断", ie);
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 同一分区待写入的一批消息
+     */
+    private static final class PartitionBatch {
+
+        private final List<byte[]> keys = new ArrayList<>();
+
+        private final List<byte[]> values = new ArrayList<>();
+
+        private final List<DelayDto> stored = new ArrayList<>();
+
+        private void add(DelayDto dto, byte[] value) {
+            keys.add(dto.getKey());
+            values.add(value);
+            stored.add(dto);
+        }
+
+        private void clear() {
+            keys.clear();
+            values.clear();
+            stored.clear();
+        }
+
+    }
+
+    /**
+     * 等待直接发送结果的一批消息
+     */
+    private static final class PendingBatch {
+
+        private final Map<TopicPartition, Long> offsets;
+
+        /**
+         * 未发送成功、也未写入本地数据库的消息数
+         */
+        private final AtomicInteger unacked;
+
+        private PendingBatch(Map<TopicPartition, Long> offsets, int unacked) {
+            this.offsets = offsets;
+            this.unacked = new AtomicInteger(unacked);
+        }
+
+    }
+
+    private static final class FailedSend {
+
+        private final TopicPartition partition;
+
+        private final DelayDto dto;
+
+        private final PendingBatch batch;
+
+        private FailedSend(TopicPartition partition, DelayDto dto, PendingBatch batch) {
+            this.partition = partition;
+            this.dto = dto;
+            this.batch = batch;
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.constant.DelayConst;
+import org.apache.kafka.common.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按 messageKey 分配的发送线程池，所有转发线程共用。
+ * 每个分片只有一个转发线程，序列化、分区、写入发送缓存都在这个线程里执行，单个分片的转发速度受限于一个 cpu 核。
+ * 转发线程仍然负责预读、限流、在途额度和批量删除，只把 kafka 发送交给发送线程：
+ * <pre>
+ * 1. 每个发送线程一个任务队列，同一个 messageKey 的消息始终由同一个线程按提交顺序发送，不会因多线程发送而乱序
+ * 2. 没有 messageKey 的消息不要求顺序，轮流分配
+ * 3. 发送结果仍由 kafka 生产者的 io 线程回调，已发送成功的消息由各分片的转发线程批量删除
+ * </pre>
+ * 只保证转发线程提交的顺序，即时间轮到期的顺序。以下消息不经过时间轮，同一个 messageKey 的消息可能乱序：
+ * <pre>
+ * 1. 追赶模式并发扫描多个时间段直接发送，见 {@link CatchUpDrainer}
+ * 2. 快速通道的消息由保存线程直接发送，可能早于同一个 key 已保存在本地、还未转发的消息，见 {@link IngestPipeline}
+ * 3. 发送失败的消息以退避后的时间重新保存，排在同一个 key 后续到期的消息之后，见 {@link RetryPolicy}
+ * 4. 不同分片[kafka 分区]的消息由不同的转发线程提交，相互之间没有顺序
+ * </pre>
+ * 多线程安全。
+ *
+ * @author HuaHui Yu 2026-10-18 23:58:12
+ **/
+public final class KeyOrderedExecutor {
+
+    private final List<ExecutorService> workers;
+
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    /**
+     * @param threads 发送线程数
+     */
+    public KeyOrderedExecutor(int threads) {
+        workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            String name = "transfer-send-" + i;
+            workers.add(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+    }
+
+    /**
+     * 按配置文件创建，所有转发线程共用一个实例
+     *
+     * @return 发送线程数不大于 1 时返回 null ，由转发线程直接发送
+     */
+    public static KeyOrderedExecutor fromConfig() {
+        int threads = Integer.parseInt(DelayConst.TRANSFER_SEND_THREADS);
+        return threads <= 1 ? null : new KeyOrderedExecutor(threads);
+    }
+
+    /**
+     * 提交发送任务，同一个 messageKey 的任务按提交顺序执行
+     */
+    public void execute(String messageKey, Runnable task) {
+        int hash = messageKey == null ? roundRobin.getAndIncrement() : messageKey.hashCode();
+        workers.get(Utils.toPositive(hash) % workers.size()).execute(task);
+    }
+
+}
@@ -1,18 +1,23 @@
 package com.github.delaymsg.task;
 
 import com.github.delaymsg.constant.DelayConst;
-import com.github.delaymsg.dao.DelayMsgDao;
 import com.github.delaymsg.dto.DelayDto;
 import com.github.delaymsg.kafka.KafkaListener;
-import com.github.delaymsg.utils.FstUtils;
-import com.github.delaymsg.utils.JsonUtils;
-import com.github.delaymsg.utils.TimeUtil;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.DelayMsgParser;
+import com.github.delaymsg.utils.KeyUtils;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -25,54 +30,125 @@ public class MsgStoreTask implements Runnable {
 
     private static final Logger log = LoggerFactory.getLogger(MsgStoreTask.class);
 
-    private final DelayMsgDao delayDao;
+    /**
+     * 交出分区前，等待已拉取的消息写入完成的最长时间
+     */
+    private static final long REVOKE_WAIT_MS = 10_000L;
+
+    /**
+     * 按分区划分的本地存储，所有消费线程共用
+     */
+    private final PartitionShards shards;
 
     private final KafkaListener consumer;
 
-    public MsgStoreTask(DelayMsgDao delayDao, KafkaListener kafkaListener) {
-        this.delayDao = delayDao;
+    /**
+     * 快速通道直接发送已到期的消息
+     */
+    private final KafkaSender kafkaSender;
+
+    public MsgStoreTask(PartitionShards shards, KafkaListener kafkaListener, KafkaSender kafkaSender) {
+        this.shards = shards;
         consumer = kafkaListener;
+        this.kafkaSender = kafkaSender;
     }
 
+    /**
+     * 消费线程只负责拉取消息、提交偏移量，解析、写入和已到期消息的直接发送交给 {@link IngestPipeline} 。
+     * 分区收回前等待流水线处理完已拉取的消息，由 {@link KafkaListener} 同步提交偏移量后再交出分区
+     */
     @Override
     public void run() {
         log.info("读取 kafka topic[{}] 的消息，保存延时消息到本地[{}]", DelayConst.DELAY_TOPIC, DelayConst.STORE_PATH);
-        consumer.subscribe(DelayConst.DELAY_TOPIC, records -> storeMsg(records));
+        IngestPipeline pipeline = new IngestPipeline(MsgStoreTask::toDelayDto, this::store,
+                Integer.parseInt(DelayConst.STORE_PARSERS), kafkaSender, Long.parseLong(DelayConst.FAST_PATH_MS));
+        pipeline.start();
+        try {
+            consumer.subscribe(Collections.singleton(DelayConst.DELAY_TOPIC), pipeline::publish, pipeline::committable,
+                    new ConsumerRebalanceListener() {
+                        @Override
+                        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                            if (!pipeline.awaitIdle(REVOKE_WAIT_MS)) {
+                                log.warn("分区收回前未能写入全部已拉取的消息，新的消费者会重复保存这部分消息 || partitions : {}", partitions);
+                            }
+                            shards.revoked(partitions);
+                        }
+
+                        @Override
+                        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                            shards.assigned(partitions);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            log.error("MsgStoreTask 异常退出，未提交的消息由其它消费者重新消费，需人工排查问题", e);
+        } finally {
+            pipeline.shutdown();
+        }
         if (Thread.currentThread().isInterrupted()) {
             log.error("MsgStoreTask 被异常中断，需人工排查问题");
         }
     }
 
-    public void storeMsg(ConsumerRecords<String, String> records) {
-        int count = records.count();
-        List<String> keys = new ArrayList<>(count);
-        List<byte[]> values = new ArrayList<>(count);
-        for (ConsumerRecord<String, String> record : records) {
-            String msg = record.value();
-            log.debug("收到延时消息 : {}", msg);
-            toDelayDto(msg).ifPresent(dto -> {
-                keys.add(dto.getId());
-                values.add(FstUtils.write(dto));
-            });
+    /**
+     * 在当前线程同步解析、保存一批消息
+     */
+    public void storeMsg(ConsumerRecords<byte[], byte[]> records) {
+        for (TopicPartition partition : records.partitions()) {
+            List<ConsumerRecord<byte[], byte[]>> partitionRecords = records.records(partition);
+            List<byte[]> keys = new ArrayList<>(partitionRecords.size());
+            List<byte[]> values = new ArrayList<>(partitionRecords.size());
+            List<DelayDto> stored = new ArrayList<>(partitionRecords.size());
+            for (ConsumerRecord<byte[], byte[]> record : partitionRecords) {
+                Optional<DelayDto> delayDto = toDelayDto(record);
+                if (delayDto.isPresent()) {
+                    DelayDto dto = delayDto.get();
+                    keys.add(dto.getKey());
+                    values.add(DelayDtoCodec.write(dto));
+                    stored.add(dto);
+                }
+            }
+            if (!values.isEmpty()) {
+                store(partition, keys, values, stored);
+            }
         }
-        if (values.isEmpty()) {
-            return;
-        }
-        // 批量插入
-        delayDao.batchStore(keys, values);
     }
 
-    private Optional<DelayDto> toDelayDto(String msg) {
-        if (msg == null || msg.isEmpty() || msg.charAt(0) != '{') {
-            log.warn("抛弃异常kafka消息 msg : {}", msg);
-            return Optional.empty();
-        }
-        return JsonUtils.read(msg, DelayDto.class)
+    /**
+     * 批量写入分区对应的分片
+     */
+    void store(TopicPartition partition, List<byte[]> keys, List<byte[]> values, List<DelayDto> stored) {
+        shards.shard(partition.partition()).store(keys, values, stored);
+    }
+
+    /**
+     * 解析 kafka 消息，带有 {@link DelayMsgParser#TOPIC_HEADER} 消息头的按 header 协议解析，否则按 json 协议解析
+     */
+    static Optional<DelayDto> toDelayDto(ConsumerRecord<byte[], byte[]> record) {
+        Optional<DelayDto> delayDto = DelayMsgParser.isHeaderProtocol(record.headers())
+                ? DelayMsgParser.parse(record.headers(), record.value())
+                : parseJson(record.value());
+        return delayDto
                 .filter(dto -> dto.checkFormat())
                 .map(dto -> {
-                    dto.setId(TimeUtil.buildTriggerKey(dto.getTriggerTime()));
+                    long triggerTime = DelayDto.toTriggerMillis(dto.getTriggerTime());
+                    dto.setTriggerTime(triggerTime);
+                    dto.setKey(KeyUtils.buildTriggerKey(triggerTime));
                     return dto;
                 });
     }
 
+    /**
+     * 解析 json 协议的消息，message 不解码，见 {@link DelayMsgParser}
+     */
+    private static Optional<DelayDto> parseJson(byte[] msg) {
+        if (log.isDebugEnabled()) {
+            log.debug("收到延时消息 : {}", msg == null ? null : new String(msg, StandardCharsets.UTF_8));
+        }
+        if (msg == null || msg.length == 0 || msg[0] != '{') {
+            log.warn("抛弃异常kafka消息 msg : {}", msg == null ? null : new String(msg, StandardCharsets.UTF_8));
+            return Optional.empty();
+        }
+        return DelayMsgParser.parse(msg);
+    }
+
 }
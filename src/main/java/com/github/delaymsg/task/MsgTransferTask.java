@@ -1,18 +1,18 @@
 package com.github.delaymsg.task;
 
-import com.github.delaymsg.dao.DelayMsgDao;
-import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.constant.DelayConst;
+import com.github.delaymsg.dao.DelayStore;
 import com.github.delaymsg.kafka.KafkaSender;
-import com.github.delaymsg.utils.SystemUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 
 /**
- * 延时消息转发线程
+ * 延时消息转发线程。
+ * 预读、发送、删除流水线执行：时间轮交出的到期消息提交给 {@link TransferPipeline} 异步发送，
+ * 不等待发送结果即可继续预读下一批；发送结果在下一轮批量处理。
+ * 积压的到期消息较多时，在后台进入追赶模式，见 {@link CatchUpDrainer} 。
  *
  * @author yhh 2021-12-19 22:32:35
  **/
@@ -20,73 +20,103 @@ public class MsgTransferTask implements Runnable {
 
     private static final Logger log = LoggerFactory.getLogger(MsgTransferTask.class);
 
-    private static final long SLEEP_TIME = 1000L;
+    /**
+     * 最长休眠时间，防止时钟调整等异常情况下长期不扫描
+     */
+    private static final long MAX_SLEEP_TIME = 60_000L;
 
-    private final KafkaSender kafkaSender;
+    /**
+     * 转发异常后的等待时间
+     */
+    private static final long ERROR_RETRY_TIME = 1000L;
 
-    private final DelayMsgDao delayDao;
+    private final TriggerSignal triggerSignal;
 
-    public MsgTransferTask(DelayMsgDao delayDao, KafkaSender kafkaSender) {
-        this.delayDao = delayDao;
-        this.kafkaSender = kafkaSender;
-    }
+    private final NearTermWheel nearTermWheel;
 
-    @Override
-    public void run() {
-        Thread currentThread = Thread.currentThread();
-        while (!currentThread.isInterrupted()) {
-            scanAndTransfer();
-        }
-        log.error("MsgTransferTask 异常中断，需人工排查");
+    private final TransferPipeline pipeline;
+
+    private final CatchUpDrainer catchUpDrainer;
+
+    public MsgTransferTask(DelayStore delayStore, KafkaSender kafkaSender, TriggerSignal triggerSignal,
+                           NearTermWheel nearTermWheel) {
+        this(delayStore, kafkaSender, triggerSignal, nearTermWheel, Integer.parseInt(DelayConst.TRANSFER_IN_FLIGHT));
     }
 
-    public void scanAndTransfer() {
-        List<DelayDto> messages = delayDao.scanTodoMsg();
-        if (messages.isEmpty()) {
-            log.debug("暂无待转发的延时消息，休眠一下");
-            SystemUtils.sleep(SLEEP_TIME);
-            return;
-        }
+    /**
+     * @param maxInFlight 同时在途的最大消息数，优先级通道按权重分配，见 {@link PriorityLanes#inFlight(int, int)}
+     */
+    public MsgTransferTask(DelayStore delayStore, KafkaSender kafkaSender, TriggerSignal triggerSignal,
+                           NearTermWheel nearTermWheel, int maxInFlight) {
+        this(delayStore, kafkaSender, triggerSignal, nearTermWheel, maxInFlight, null, null);
+    }
 
-        transferAndDeleted(messages);
+    /**
+     * @param maxInFlight  同时在途的最大消息数，优先级通道按权重分配，见 {@link PriorityLanes#inFlight(int, int)}
+     * @param rateLimiter  按业务 topic 限流，所有转发线程共用，为 null 时不限流
+     * @param sendExecutor 按 messageKey 分配的发送线程，所有转发线程共用，为 null 时由转发线程直接发送
+     */
+    public MsgTransferTask(DelayStore delayStore, KafkaSender kafkaSender, TriggerSignal triggerSignal,
+                           NearTermWheel nearTermWheel, int maxInFlight, TopicRateLimiter rateLimiter,
+                           KeyOrderedExecutor sendExecutor) {
+        this(triggerSignal, nearTermWheel, new TransferPipeline(delayStore, kafkaSender, triggerSignal, maxInFlight,
+                        RetryPolicy.fromConfig(), rateLimiter, sendExecutor),
+                CatchUpDrainer.fromConfig(delayStore, kafkaSender));
     }
 
-    private void transferAndDeleted(List<DelayDto> records) {
-        int count = records.size();
-        List<String> toDeleteIds = new ArrayList<>(count);
-        CountDownLatch countDownLatch = new CountDownLatch(count);
-        for (DelayDto record : records) {
-            sendMsg(record, countDownLatch, toDeleteIds);
-        }
+    public MsgTransferTask(TriggerSignal triggerSignal, NearTermWheel nearTermWheel, TransferPipeline pipeline) {
+        this(triggerSignal, nearTermWheel, pipeline, null);
+    }
 
-        awaitSend(countDownLatch);
-        if (!toDeleteIds.isEmpty()) {
-            delayDao.batchDelete(toDeleteIds);
-        }
+    /**
+     * @param catchUpDrainer 追赶模式，null 表示不启用
+     */
+    public MsgTransferTask(TriggerSignal triggerSignal, NearTermWheel nearTermWheel, TransferPipeline pipeline,
+                           CatchUpDrainer catchUpDrainer) {
+        this.triggerSignal = triggerSignal;
+        this.nearTermWheel = nearTermWheel;
+        this.pipeline = pipeline;
+        this.catchUpDrainer = catchUpDrainer;
     }
 
-    private void sendMsg(DelayDto record, CountDownLatch countDownLatch, List<String> toDeleteIds) {
-        String id = record.getId();
-        String topic = record.getTopic();
-        String key = record.getMessageKey();
-        String message = record.getMessage();
-        kafkaSender.send(topic, key, message, (msg, exception) -> {
-            if (exception == null) {
-                toDeleteIds.add(id);
-            } else {
-                log.warn("发送mq失败 || id : {}", id);
+    @Override
+    public void run() {
+        Thread currentThread = Thread.currentThread();
+        while (!currentThread.isInterrupted()) {
+            try {
+                transfer();
+            } catch (RuntimeException e) {
+                // 线程由线程池的 submit 执行，异常不捕获会被 Future 吞掉，分片停止转发且没有日志
+                log.error("转发异常，稍后重试", e);
+                triggerSignal.awaitUntil(System.currentTimeMillis() + ERROR_RETRY_TIME);
             }
-            countDownLatch.countDown();
-        });
+        }
+        log.error("MsgTransferTask 异常中断，需人工排查");
     }
 
-    private void awaitSend(CountDownLatch countDownLatch) {
-        try {
-            countDownLatch.await();
-        } catch (InterruptedException e) {
-            log.error("线程异常中断", e);
-            Thread.currentThread().interrupt();
+    /**
+     * 处理上一轮的发送结果，推进时间轮提交到期消息，发送，休眠到下一个需要处理的时间点
+     */
+    public void transfer() {
+        long now = System.currentTimeMillis();
+        if (catchUpDrainer != null) {
+            // 追赶在后台执行，时间轮照常转发追赶范围之后的消息
+            catchUpDrainer.drainIfBehind(now, nearTermWheel, () -> triggerSignal.signal(System.currentTimeMillis()));
+        }
+        List<byte[]> deleted = pipeline.flush(stored -> triggerSignal.signal(nearTermWheel.offer(stored)));
+        nearTermWheel.release(deleted);
+        if (!pipeline.isSaturated()) {
+            nearTermWheel.poll(now, pipeline::submit);
+        }
+        pipeline.dispatch();
+        // 被限流的消息到时间后继续发送
+        long wakeUp = Math.min(now + MAX_SLEEP_TIME, pipeline.nextDispatchAt());
+        if (!pipeline.isSaturated()) {
+            // 在途消息已满时，只等待发送结果唤醒
+            wakeUp = Math.min(wakeUp, nearTermWheel.nextWakeUp());
         }
+        log.debug("转发线程休眠到 : {} || inFlight : {}", wakeUp, pipeline.inFlight());
+        triggerSignal.awaitUntil(wakeUp);
     }
 
-}
\ No newline at end of file
+}
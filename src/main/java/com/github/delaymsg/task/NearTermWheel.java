@@ -0,0 +1,339 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.DelayStore;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 近期消息时间轮，一个本地数据库对应一个。
+ * 按 key 顺序分批预读本地数据库里即将到期的消息，预先构建好 ProducerRecord 放入分层时间轮，
+ * 到期时直接交给转发线程发送，转发时不再需要扫描本地存储。
+ * 预读时长为 0 时只读取已到期的消息。预读完成后，按下一条未预读消息的触发时间安排下一次预读。
+ * 本地存储仍是唯一的数据来源：消息发送成功后才会从本地存储删除，程序重启后时间轮为空，重新预读即可。
+ * <pre>
+ * 预读与保存线程的配合：
+ * 预读前先发布预读上界 loadedBound ，再扫描本地数据库。
+ * 保存线程先写入本地数据库，再检查 loadedBound ，小于上界的消息通过 offer 直接交给时间轮。
+ * 因此每条消息要么被预读扫描到，要么被 offer ，两者都发生时按 key 去重。
+ * offer 可能晚于预读到达，此时消息可能已经转发、删除并从 loaded 移除，
+ * 所以已预读范围内、不在 loaded 里的 offer 消息，确认仍在本地数据库后才放入时间轮。
+ * 追赶模式在后台转发 [from, to) 的积压时，时间轮从 to 开始预读、照常转发，追赶范围内 offer 的消息推迟到追赶完成后处理，
+ * 见 {@link #catchUp(byte[], byte[])} 。
+ * </pre>
+ * 时间轮每 {@link #TICK_MS} 毫秒一格，消息在所在格结束时转发，宁晚勿早：最多比触发时间晚 {@link #TICK_MS} 毫秒[不含发送耗时]。
+ * 同一格到期的消息按 key 排序后转发，即按触发时间、序号的顺序。
+ * 除 offer 外，其余方法只能由转发线程调用。
+ *
+ * @author HuaHui Yu 2026-10-18 11:40:18
+ **/
+public class NearTermWheel {
+
+    private static final Logger log = LoggerFactory.getLogger(NearTermWheel.class);
+
+    /**
+     * 时间轮每一格的时间跨度，也是时间轮带来的最大转发延迟
+     */
+    private static final long TICK_MS = 10L;
+
+    private static final int WHEEL_SIZE = 100;
+
+    /**
+     * 单次预读的最大记录数
+     */
+    private static final int PREFETCH_BATCH = 10000;
+
+    /**
+     * 时间轮已满时，暂停预读的时间
+     */
+    private static final long PREFETCH_INTERVAL_MS = 1000L;
+
+    /**
+     * 两次预读的最长间隔，防止时钟调整等异常情况下长期不预读
+     */
+    private static final long MAX_PREFETCH_INTERVAL_MS = 60_000L;
+
+    /**
+     * 时间轮最多容纳的消息数，超出后暂停预读，避免占用过多内存
+     */
+    private static final int MAX_LOADED = 200_000;
+
+    private final DelayStore delayStore;
+
+    private final long lookaheadMs;
+
+    private final TimingWheel<DueMsg> wheel;
+
+    /**
+     * 已放入时间轮、或者已发送但还未从本地数据库删除的消息 key
+     */
+    private final Set<ByteBuffer> loaded = new HashSet<>();
+
+    private final ConcurrentLinkedQueue<DelayDto> incoming = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 下一次预读的起始 key
+     */
+    private byte[] prefetchCursor = KeyUtils.lowerBound(0L);
+
+    /**
+     * 已发布的预读上界[不包含]，只增不减
+     */
+    private volatile byte[] loadedBound = KeyUtils.lowerBound(0L);
+
+    /**
+     * 预读上界之外新写入的最早触发时间，毫秒时间戳
+     */
+    private final AtomicLong storedEarliest = new AtomicLong(Long.MAX_VALUE);
+
+    private long nextPrefetchAt;
+
+    /**
+     * 预读、追赶模式已扫描到的上界[不包含]，只增不减。
+     * 保存线程交付的、小于该上界的消息可能已被转发并删除，放入时间轮前确认仍在本地数据库
+     */
+    private byte[] scannedBound = KeyUtils.lowerBound(0L);
+
+    /**
+     * 正在追赶的范围上界[不包含]，没有追赶时为 null 。范围内由追赶模式转发，时间轮不预读
+     */
+    private byte[] catchUpTo;
+
+    /**
+     * 追赶期间保存线程交付的、追赶范围内的消息，追赶完成后再处理
+     */
+    private final List<DelayDto> deferred = new ArrayList<>();
+
+    public NearTermWheel(DelayStore delayStore, long lookaheadSeconds) {
+        this.delayStore = delayStore;
+        this.lookaheadMs = TimeUnit.SECONDS.toMillis(lookaheadSeconds);
+        this.wheel = new TimingWheel<>(TICK_MS, WHEEL_SIZE, System.currentTimeMillis(),
+                (a, b) -> KeyUtils.compare(a.key, b.key));
+    }
+
+    /**
+     * 保存线程写入本地数据库后调用，预读上界以内的消息直接交给时间轮，之外的消息等待预读
+     *
+     * @param stored 已写入本地数据库的消息
+     * @return 转发线程需要被唤醒的时间点，毫秒时间戳
+     */
+    public long offer(List<DelayDto> stored) {
+        byte[] bound = loadedBound;
+        long wakeUp = Long.MAX_VALUE;
+        long beyond = Long.MAX_VALUE;
+        for (DelayDto dto : stored) {
+            long triggerTime = KeyUtils.extractTriggerTime(dto.getKey());
+            if (KeyUtils.compare(dto.getKey(), bound) < 0) {
+                incoming.offer(dto);
+                wakeUp = Math.min(wakeUp, triggerTime);
+            } else {
+                beyond = Math.min(beyond, triggerTime);
+            }
+        }
+        if (beyond != Long.MAX_VALUE) {
+            storedEarliest.accumulateAndGet(beyond, Math::min);
+            wakeUp = Math.min(wakeUp, beyond - lookaheadMs);
+        }
+        return wakeUp;
+    }
+
+    /**
+     * 接收保存线程交付的消息，预读，推进时钟，把到期消息交给 due 处理
+     */
+    public void poll(long nowMs, Consumer<DueMsg> due) {
+        wheel.advanceClock(nowMs, due);
+        DelayDto dto;
+        while ((dto = incoming.poll()) != null) {
+            if (catchUpTo != null && KeyUtils.compare(dto.getKey(), catchUpTo) < 0) {
+                deferred.add(dto);
+                continue;
+            }
+            if (maybeSent(dto.getKey()) && !exists(dto.getKey())) {
+                // 已由预读或追赶模式转发、删除
+                continue;
+            }
+            load(dto, nowMs, due);
+        }
+        if (nowMs >= nextPrefetchAt || nowMs >= storedEarliest.get() - lookaheadMs) {
+            prefetch(nowMs, due);
+        }
+        wheel.advanceClock(nowMs, due);
+    }
+
+    /**
+     * 下一次需要处理的时间点[最早到期的消息、下一次预读]
+     */
+    public long nextWakeUp() {
+        long prefetchAt = Math.min(nextPrefetchAt, storedEarliest.get() - lookaheadMs);
+        return Math.min(wheel.nextExpiration(), prefetchAt);
+    }
+
+    /**
+     * 消息已从本地数据库删除
+     */
+    public void release(List<byte[]> keys) {
+        for (byte[] key : keys) {
+            loaded.remove(ByteBuffer.wrap(key));
+        }
+    }
+
+    public int size() {
+        return loaded.size();
+    }
+
+    /**
+     * 预读还未读到的起始 key ，之前的消息都已放入时间轮或已删除
+     */
+    public byte[] unloadedFrom() {
+        return prefetchCursor;
+    }
+
+    /**
+     * 开始追赶 [fromKey, toKey) ：时间轮跳到 toKey 继续预读，范围内 offer 的消息推迟到 {@link #drained(byte[])} 后处理
+     *
+     * @return 范围内已放入时间轮的消息 key ，由时间轮转发，追赶模式跳过
+     */
+    public Set<ByteBuffer> catchUp(byte[] fromKey, byte[] toKey) {
+        Set<ByteBuffer> inWheel = new HashSet<>();
+        for (ByteBuffer key : loaded) {
+            if (KeyUtils.compare(key.array(), fromKey) >= 0 && KeyUtils.compare(key.array(), toKey) < 0) {
+                inWheel.add(key);
+            }
+        }
+        catchUpTo = toKey;
+        scannedBound = KeyUtils.max(scannedBound, toKey);
+        prefetchCursor = KeyUtils.max(prefetchCursor, toKey);
+        return inWheel;
+    }
+
+    /**
+     * 追赶完成，回到 fromKey 重新预读：发送失败、失败过的消息留在本地数据库，由时间轮按重试策略转发。
+     * 已转发、删除的消息读不到，已在时间轮里的按 key 去重
+     */
+    public void drained(byte[] fromKey) {
+        catchUpTo = null;
+        if (KeyUtils.compare(fromKey, prefetchCursor) < 0) {
+            prefetchCursor = fromKey;
+        }
+        nextPrefetchAt = 0L;
+        // 推迟的消息在已扫描范围内，放入时间轮前确认仍在本地数据库
+        incoming.addAll(deferred);
+        deferred.clear();
+    }
+
+    /**
+     * 消息已放入时间轮、或已发送但还未删除
+     */
+    private boolean isLoaded(byte[] key) {
+        return loaded.contains(ByteBuffer.wrap(key));
+    }
+
+    /**
+     * 消息可能已被预读或追赶模式转发：在已扫描的范围内，且不在时间轮里
+     */
+    private boolean maybeSent(byte[] key) {
+        return KeyUtils.compare(key, KeyUtils.max(prefetchCursor, scannedBound)) < 0 && !isLoaded(key);
+    }
+
+    private boolean exists(byte[] key) {
+        return !delayStore.scanRange(key, KeyUtils.successor(key), 1).isEmpty();
+    }
+
+    private void prefetch(long nowMs, Consumer<DueMsg> due) {
+        if (loaded.size() >= MAX_LOADED) {
+            log.debug("时间轮已满，暂停预读 || loaded : {}", loaded.size());
+            nextPrefetchAt = nowMs + PREFETCH_INTERVAL_MS;
+            return;
+        }
+        byte[] bound = KeyUtils.lowerBound(nowMs + lookaheadMs + 1);
+        storedEarliest.set(Long.MAX_VALUE);
+        if (KeyUtils.compare(bound, loadedBound) > 0) {
+            // 先发布上界，再扫描
+            loadedBound = bound;
+        }
+        List<DelayDto> list = delayStore.scanRange(prefetchCursor, bound, PREFETCH_BATCH);
+        for (DelayDto dto : list) {
+            load(dto, nowMs, due);
+        }
+        if (list.size() < PREFETCH_BATCH) {
+            prefetchCursor = KeyUtils.max(prefetchCursor, bound);
+            scannedBound = KeyUtils.max(scannedBound, prefetchCursor);
+            nextPrefetchAt = nowMs + MAX_PREFETCH_INTERVAL_MS;
+            long earliest = delayStore.peekEarliestTriggerTime(bound);
+            if (earliest >= 0) {
+                // 下一条消息进入预读时长时再预读
+                nextPrefetchAt = Math.min(nextPrefetchAt, earliest - lookaheadMs);
+            }
+        } else {
+            // 还有未读完的消息，下一轮继续预读
+            prefetchCursor = KeyUtils.successor(list.get(list.size() - 1).getKey());
+            scannedBound = KeyUtils.max(scannedBound, prefetchCursor);
+            nextPrefetchAt = nowMs;
+        }
+    }
+
+    private void load(DelayDto dto, long nowMs, Consumer<DueMsg> due) {
+        byte[] key = dto.getKey();
+        if (!loaded.add(ByteBuffer.wrap(key))) {
+            return;
+        }
+        DueMsg msg = new DueMsg(key, new ProducerRecord<>(dto.getTopic(), dto.getMessageKey(), dto.getPayload()),
+                dto.getAttempts());
+        long dueMs = KeyUtils.extractTriggerTime(key);
+        // 已到期的直接转发；未到期的按槽的结束时间对齐，宁晚勿早
+        if (dueMs <= nowMs || !wheel.add(dueMs + TICK_MS - 1, msg)) {
+            due.accept(msg);
+        }
+    }
+
+    /**
+     * 时间轮里的待转发消息
+     */
+    public static final class DueMsg {
+
+        private final byte[] key;
+
+        private final ProducerRecord<String, byte[]> record;
+
+        private final int attempts;
+
+        DueMsg(byte[] key, ProducerRecord<String, byte[]> record) {
+            this(key, record, 0);
+        }
+
+        DueMsg(byte[] key, ProducerRecord<String, byte[]> record, int attempts) {
+            this.key = key;
+            this.record = record;
+            this.attempts = attempts;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public ProducerRecord<String, byte[]> getRecord() {
+            return record;
+        }
+
+        /**
+         * 已转发失败的次数
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+    }
+
+}
@@ -0,0 +1,315 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.DelayStore;
+import com.github.delaymsg.dto.DelayDto;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * 按 kafka 分区划分的本地存储分片，进程内所有消费线程共用，分区 p 的延时消息只保存在分片 p 。
+ * <pre>
+ * 1. 分区分配给本节点时打开对应的分片[已打开的直接复用]，分区在进程内的消费线程之间迁移时，消息仍写入同一个分片
+ * 2. 分区被收回前，消费线程等待已拉取的消息写入完成、同步提交偏移量，新的消费者从提交位置继续，同一条消息不会写入两个分片
+ * 3. 没有 changelog 时，分片打开后一直有自己的转发线程：分区分配到其它节点后，本地已保存的消息仍由本节点按时转发
+ *    [其它节点没有这些消息]，不会重复转发，也不会无人转发；新消息由新的节点保存、转发
+ * 4. 配置了 changelog 时，转发跟随分区：分配时先追上 changelog 再开始转发，收回时停止转发、改为备份，见 {@link Changelog}
+ * 5. 启动时打开本地已有的所有分片，上次运行遗留的消息同样按时转发[changelog 模式下由接管该分区的节点转发]
+ * 6. 配置了优先级通道时，每个分片的每个通道一个本地存储、一个转发线程，见 {@link PriorityLanes} ；changelog 只复制默认通道，两者不能同时配置
+ * </pre>
+ *
+ * @author HuaHui Yu 2026-10-18 20:58:14
+ **/
+public class PartitionShards {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionShards.class);
+
+    /**
+     * 打开分区、通道对应的本地存储
+     */
+    private final BiFunction<Integer, Integer, DelayStore> opener;
+
+    /**
+     * 启动分片一个通道的转发线程
+     */
+    private final BiFunction<DelayStore, Integer, Transfer> transfers;
+
+    private final PriorityLanes lanes;
+
+    /**
+     * 为 null 时不使用 changelog
+     */
+    private final Changelog changelog;
+
+    private final Map<Integer, Shard> shards = new ConcurrentHashMap<>();
+
+    public PartitionShards(IntFunction<DelayStore> opener, Function<DelayStore, Transfer> transfers) {
+        this(opener, transfers, null);
+    }
+
+    /**
+     * @param opener    打开分区对应的本地存储
+     * @param transfers 启动分片的转发线程
+     * @param changelog 分片副本，为 null 时不使用 changelog
+     */
+    public PartitionShards(IntFunction<DelayStore> opener, Function<DelayStore, Transfer> transfers, Changelog changelog) {
+        this((partition, lane) -> opener.apply(partition), (delayStore, lane) -> transfers.apply(delayStore),
+                changelog, PriorityLanes.single());
+    }
+
+    /**
+     * @param opener    打开分区、通道对应的本地存储
+     * @param transfers 启动分片一个通道的转发线程
+     * @param changelog 分片副本，为 null 时不使用 changelog
+     * @param lanes     优先级通道，使用 changelog 时只能有默认通道
+     * @throws IllegalArgumentException 同时配置了 changelog 和优先级通道
+     */
+    public PartitionShards(BiFunction<Integer, Integer, DelayStore> opener, BiFunction<DelayStore, Integer, Transfer> transfers,
+                           Changelog changelog, PriorityLanes lanes) {
+        this.opener = opener;
+        this.transfers = transfers;
+        this.changelog = changelog;
+        if (changelog != null && lanes.size() > 1) {
+            // 其它通道的消息不会复制，接管后丢失
+            throw new IllegalArgumentException("changelog 只复制默认通道，kafka.delay.changelog.topic 与 kafka.delay.lane.weights "
+                    + "不能同时配置 || lanes : " + lanes.size());
+        }
+        this.lanes = lanes;
+        if (changelog != null) {
+            changelog.bind(partition -> shard(partition).local);
+        }
+    }
+
+    /**
+     * 分区对应的分片，第一次使用时打开
+     */
+    public Shard shard(int partition) {
+        return shards.computeIfAbsent(partition, this::open);
+    }
+
+    private Shard open(int partition) {
+        DelayStore local = opener.apply(partition, 0);
+        if (changelog == null) {
+            List<DelayStore> stores = new ArrayList<>(lanes.size());
+            stores.add(local);
+            for (int lane = 1; lane < lanes.size(); lane++) {
+                stores.add(opener.apply(partition, lane));
+            }
+            Shard shard = new Shard(local, stores, lanes);
+            shard.activate(transfers);
+            return shard;
+        }
+        // 等到分区分配给本节点再开始转发
+        List<DelayStore> stores = new ArrayList<>(1);
+        stores.add(changelog.publishing(partition, local));
+        return new Shard(local, stores, lanes);
+    }
+
+    /**
+     * 消费线程分配到新的分区
+     */
+    public void assigned(Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            Shard shard = shard(partition.partition());
+            if (changelog != null) {
+                awaitPromote(partition.partition());
+                shard.activate(transfers);
+            }
+        }
+        log.info("分区分配完成，消息写入对应的分片 || partitions : {}", partitions);
+    }
+
+    /**
+     * 消费线程的分区被收回。没有 changelog 时分片保持转发；否则停止转发，改为备份
+     */
+    public void revoked(Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            Shard shard = shards.get(partition.partition());
+            if (shard == null) {
+                continue;
+            }
+            if (changelog == null) {
+                log.info("分区已收回，本地剩余消息继续由本节点转发 || partition : {} || {}", partition, shard.local.stats());
+            } else {
+                shard.deactivate();
+                changelog.demote(partition.partition());
+                log.info("分区已收回，停止转发，改为备份 || partition : {} || {}", partition, shard.local.stats());
+            }
+        }
+    }
+
+    /**
+     * 已打开的分片数
+     */
+    public int size() {
+        return shards.size();
+    }
+
+    private void awaitPromote(int partition) {
+        try {
+            if (!changelog.promote(partition).get(Changelog.CATCH_UP_MS + 10_000L, TimeUnit.MILLISECONDS)) {
+                log.warn("changelog 未追上，直接接管，可能漏发部分消息 || partition : {}", partition);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("changelog 追赶失败，直接接管，可能漏发部分消息 || partition : {}", partition, e);
+        }
+    }
+
+    /**
+     * 一个分区的本地存储，以及转发中时的时间轮和转发线程，每个优先级通道一组
+     */
+    public static final class Shard {
+
+        /**
+         * 默认通道的本地存储，备份写入不发布 changelog
+         */
+        private final DelayStore local;
+
+        /**
+         * 各通道保存、转发使用的存储，配置了 changelog 时同步发布
+         */
+        private final List<DelayStore> delayStores;
+
+        private final PriorityLanes lanes;
+
+        /**
+         * 各通道的转发，为 null 时不转发
+         */
+        private final AtomicReferenceArray<Transfer> transfers;
+
+        /**
+         * 上一次部分通道写入失败的一批消息，以及其中已写入的通道
+         */
+        private List<DelayDto> partialBatch;
+
+        private boolean[] partialLanes;
+
+        private Shard(DelayStore local, List<DelayStore> delayStores, PriorityLanes lanes) {
+            this.local = local;
+            this.delayStores = delayStores;
+            this.lanes = lanes;
+            this.transfers = new AtomicReferenceArray<>(delayStores.size());
+        }
+
+        /**
+         * 批量写入本地数据库，转发中时交给时间轮、唤醒转发线程。有多个通道时按通道分组写入，
+         * 各通道的写入不是原子的：某个通道写入失败时记下已写入的通道，调用方用同一批消息重试时只写入剩余的通道，
+         * 避免已写入的通道重复写入[日志段引擎会追加重复记录]、重复交给时间轮
+         */
+        public synchronized void store(List<byte[]> keys, List<byte[]> values, List<DelayDto> stored) {
+            if (delayStores.size() == 1) {
+                store(0, keys, values, stored);
+                return;
+            }
+            boolean[] storedLanes = stored == partialBatch ? partialLanes : new boolean[delayStores.size()];
+            partialBatch = null;
+            partialLanes = null;
+            List<List<Integer>> indexes = new ArrayList<>(delayStores.size());
+            for (int lane = 0; lane < delayStores.size(); lane++) {
+                indexes.add(new ArrayList<>());
+            }
+            for (int i = 0; i < stored.size(); i++) {
+                indexes.get(lanes.laneOf(stored.get(i))).add(i);
+            }
+            for (int lane = 0; lane < delayStores.size(); lane++) {
+                List<Integer> laneIndexes = indexes.get(lane);
+                if (storedLanes[lane] || laneIndexes.isEmpty()) {
+                    continue;
+                }
+                try {
+                    store(lane, keys, values, stored, laneIndexes);
+                } catch (RuntimeException e) {
+                    partialBatch = stored;
+                    partialLanes = storedLanes;
+                    throw e;
+                }
+                storedLanes[lane] = true;
+            }
+        }
+
+        private void store(int lane, List<byte[]> keys, List<byte[]> values, List<DelayDto> stored, List<Integer> laneIndexes) {
+            if (laneIndexes.size() == stored.size()) {
+                store(lane, keys, values, stored);
+                return;
+            }
+            List<byte[]> laneKeys = new ArrayList<>(laneIndexes.size());
+            List<byte[]> laneValues = new ArrayList<>(laneIndexes.size());
+            List<DelayDto> laneStored = new ArrayList<>(laneIndexes.size());
+            for (int i : laneIndexes) {
+                laneKeys.add(keys.get(i));
+                laneValues.add(values.get(i));
+                laneStored.add(stored.get(i));
+            }
+            store(lane, laneKeys, laneValues, laneStored);
+        }
+
+        private void store(int lane, List<byte[]> keys, List<byte[]> values, List<DelayDto> stored) {
+            // 批量插入
+            delayStores.get(lane).batchStore(keys, values);
+            Transfer current = transfers.get(lane);
+            if (current != null) {
+                // 唤醒转发线程，转发线程只会被更早触发的消息唤醒
+                current.triggerSignal.signal(current.nearTermWheel.offer(stored));
+            }
+        }
+
+        public boolean isActive() {
+            return transfers.get(0) != null;
+        }
+
+        /**
+         * 开始转发，新的时间轮从头预读本地存储，包含期间备份写入的消息
+         */
+        private synchronized void activate(BiFunction<DelayStore, Integer, Transfer> factory) {
+            for (int lane = 0; lane < delayStores.size(); lane++) {
+                if (transfers.get(lane) == null) {
+                    transfers.set(lane, factory.apply(delayStores.get(lane), lane));
+                }
+            }
+        }
+
+        private synchronized void deactivate() {
+            for (int lane = 0; lane < delayStores.size(); lane++) {
+                Transfer transfer = transfers.getAndSet(lane, null);
+                if (transfer != null) {
+                    transfer.task.cancel(true);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 转发中的分片：时间轮、转发线程的唤醒信号和转发线程
+     */
+    public static final class Transfer {
+
+        private final TriggerSignal triggerSignal;
+
+        private final NearTermWheel nearTermWheel;
+
+        private final Future<?> task;
+
+        public Transfer(TriggerSignal triggerSignal, NearTermWheel nearTermWheel, Future<?> task) {
+            this.triggerSignal = triggerSignal;
+            this.nearTermWheel = nearTermWheel;
+            this.task = task;
+        }
+
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.constant.DelayConst;
+import com.github.delaymsg.dto.DelayDto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 优先级通道。同一分片里不同优先级的消息保存到不同的本地存储，由各自的转发线程转发，
+ * 低优先级的消息大量积压时，不会推迟同一时间到期的高优先级消息。
+ * <pre>
+ * 1. 通道 0 为默认通道[default]，就是原有的分片存储；其它通道的存储随分片一起打开，见 {@link com.github.delaymsg.dao.StoreEngine#open(int, String)}
+ * 2. 消息的通道：消息里的 priority 字段[header 协议为 delay.priority 消息头]，其次按业务 topic 配置，都没有时为默认通道
+ * 3. 每个通道的在途额度按权重分配 {@link DelayConst#TRANSFER_IN_FLIGHT} ，权重越大，积压时的转发速度越快
+ * 4. 分片数变化时每个通道单独重新分片，见 {@link com.github.delaymsg.dao.Resharder} ；去掉的通道不会重新分片，也不再转发，需要先转发完
+ * </pre>
+ * 初始化后只读，多线程安全。
+ *
+ * @author HuaHui Yu 2026-10-18 23:14:52
+ **/
+public final class PriorityLanes {
+
+    public static final String DEFAULT_LANE = "default";
+
+    private static final String LANE_PATTERN = "[a-z][a-z0-9_]*";
+
+    /**
+     * 通道名，0 为默认通道
+     */
+    private final List<String> names = new ArrayList<>();
+
+    private final List<Integer> weights = new ArrayList<>();
+
+    private final Map<String, Integer> lanes = new HashMap<>();
+
+    /**
+     * 业务 topic -> 通道
+     */
+    private final Map<String, Integer> topicLanes = new HashMap<>();
+
+    private final int totalWeight;
+
+    /**
+     * @param weights    通道名 -> 权重，未配置 default 时默认通道的权重为 1
+     * @param topicLanes 业务 topic -> 通道名
+     * @throws IllegalArgumentException 通道名不合法，或者 topic 对应的通道没有配置权重
+     */
+    public PriorityLanes(Map<String, Integer> weights, Map<String, String> topicLanes) {
+        names.add(DEFAULT_LANE);
+        this.weights.add(weights.getOrDefault(DEFAULT_LANE, 1));
+        lanes.put(DEFAULT_LANE, 0);
+        List<String> sorted = new ArrayList<>(weights.keySet());
+        Collections.sort(sorted);
+        for (String lane : sorted) {
+            if (DEFAULT_LANE.equals(lane)) {
+                continue;
+            }
+            // 通道名用于目录、列族名称，"bucket" 与时间桶列族的前缀冲突
+            if (!lane.matches(LANE_PATTERN) || "bucket".equals(lane)) {
+                throw new IllegalArgumentException("优先级通道名只能包含小写字母、数字、下划线，且不能为 bucket : " + lane);
+            }
+            lanes.put(lane, names.size());
+            names.add(lane);
+            this.weights.add(Math.max(weights.get(lane), 1));
+        }
+        for (Map.Entry<String, String> entry : topicLanes.entrySet()) {
+            Integer lane = lanes.get(entry.getValue());
+            if (lane == null) {
+                throw new IllegalArgumentException("优先级通道没有配置权重 : " + entry.getValue());
+            }
+            this.topicLanes.put(entry.getKey(), lane);
+        }
+        int total = 0;
+        for (int weight : this.weights) {
+            total += weight;
+        }
+        totalWeight = total;
+    }
+
+    /**
+     * 只有默认通道
+     */
+    public static PriorityLanes single() {
+        return new PriorityLanes(Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * 按配置文件创建
+     */
+    public static PriorityLanes fromConfig() {
+        Map<String, Integer> weights = new HashMap<>();
+        TopicRateLimiter.parse(DelayConst.LANE_WEIGHTS).forEach((lane, weight) -> weights.put(lane, Integer.parseInt(weight)));
+        return new PriorityLanes(weights, TopicRateLimiter.parse(DelayConst.LANE_TOPICS));
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * @return 通道名，默认通道返回 null ，与 {@link com.github.delaymsg.dao.StoreEngine#open(int, String)} 一致
+     */
+    public String storeLane(int lane) {
+        return lane == 0 ? null : names.get(lane);
+    }
+
+    public String name(int lane) {
+        return names.get(lane);
+    }
+
+    /**
+     * 消息所属的通道，未知的通道名按业务 topic 判断
+     */
+    public int laneOf(DelayDto dto) {
+        if (names.size() == 1) {
+            return 0;
+        }
+        if (dto.getPriority() != null) {
+            Integer lane = lanes.get(dto.getPriority());
+            if (lane != null) {
+                return lane;
+            }
+        }
+        return topicLanes.getOrDefault(dto.getTopic(), 0);
+    }
+
+    /**
+     * 按权重分配的在途额度，至少为 1
+     *
+     * @param total 分片的在途额度
+     */
+    public int inFlight(int lane, int total) {
+        return Math.max(1, (int) ((long) total * weights.get(lane) / totalWeight));
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.constant.DelayConst;
+
+/**
+ * 转发失败的重试策略。
+ * <pre>
+ * 1. 第 n 次发送失败后，消息以 now + backoffMs * 2^(n-1) 为新的触发时间重新写入本地数据库，最长不超过 maxBackoffMs
+ * 2. 连续失败 maxAttempts 次后，下一次转发改为发送到死信 topic ，业务 topic 异常时不影响其它消息的转发
+ * 3. 没有配置死信 topic 时，按最长退避时间一直重试，不丢弃消息
+ * </pre>
+ * 无状态，多线程安全。
+ *
+ * @author HuaHui Yu 2026-10-18 21:52:14
+ **/
+public final class RetryPolicy {
+
+    private final long backoffMs;
+
+    private final long maxBackoffMs;
+
+    private final int maxAttempts;
+
+    private final String deadLetterTopic;
+
+    /**
+     * @param backoffMs       第一次失败后的退避时间，单位：毫秒
+     * @param maxBackoffMs    最长退避时间，单位：毫秒
+     * @param maxAttempts     发送到死信 topic 前，最多发送到业务 topic 的次数
+     * @param deadLetterTopic 死信 topic ，为空时不启用
+     */
+    public RetryPolicy(long backoffMs, long maxBackoffMs, int maxAttempts, String deadLetterTopic) {
+        this.backoffMs = backoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.maxAttempts = maxAttempts;
+        this.deadLetterTopic = deadLetterTopic == null || deadLetterTopic.isEmpty() ? null : deadLetterTopic;
+    }
+
+    /**
+     * 按配置文件创建
+     */
+    public static RetryPolicy fromConfig() {
+        return new RetryPolicy(Long.parseLong(DelayConst.RETRY_BACKOFF_MS),
+                Long.parseLong(DelayConst.RETRY_BACKOFF_MAX_MS),
+                Integer.parseInt(DelayConst.RETRY_MAX_ATTEMPTS),
+                DelayConst.DEAD_LETTER_TOPIC);
+    }
+
+    /**
+     * @param attempts 已失败的次数，从 1 开始
+     * @return 下一次发送前的等待时间，单位：毫秒
+     */
+    public long backoff(int attempts) {
+        long backoff = backoffMs << Math.min(Math.max(attempts - 1, 0), 30);
+        return Math.min(backoff, maxBackoffMs);
+    }
+
+    /**
+     * @param attempts 已失败的次数
+     * @return 是否改为发送到死信 topic
+     */
+    public boolean isDeadLetter(int attempts) {
+        return deadLetterTopic != null && attempts >= maxAttempts;
+    }
+
+    public String getDeadLetterTopic() {
+        return deadLetterTopic;
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.github.delaymsg.task;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮。
+ * 参考 kafka 的 TimingWheel 实现：每层时间轮有 wheelSize 个槽，超出当前层时间范围的任务放入上一层时间轮，
+ * 只有非空的槽会放入优先队列，推进时钟时按槽的到期时间依次处理，空闲时不会逐格空转。
+ * 同一个槽里的任务默认按添加顺序处理，指定 order 时按 order 排序后处理。
+ * 非线程安全，只能由一个线程使用。
+ *
+ * @author HuaHui Yu 2026-10-18 11:02:36
+ **/
+public class TimingWheel<T> {
+
+    private final long tickMs;
+
+    private final int wheelSize;
+
+    /**
+     * 当前层时间轮覆盖的时间范围
+     */
+    private final long interval;
+
+    private final List<Bucket<T>> buckets;
+
+    /**
+     * 所有层共用的非空槽队列，按到期时间排序
+     */
+    private final PriorityQueue<Bucket<T>> queue;
+
+    /**
+     * 同一个槽里到期任务的处理顺序，为 null 时按添加顺序
+     */
+    private final Comparator<? super T> order;
+
+    /**
+     * 当前时间，tickMs 的整数倍
+     */
+    private long currentTime;
+
+    private TimingWheel<T> overflowWheel;
+
+    private int size;
+
+    /**
+     * @param tickMs    每个槽的时间跨度，毫秒
+     * @param wheelSize 每层的槽数
+     * @param startMs   起始时间，毫秒时间戳
+     */
+    public TimingWheel(long tickMs, int wheelSize, long startMs) {
+        this(tickMs, wheelSize, startMs, null);
+    }
+
+    /**
+     * @param tickMs    每个槽的时间跨度，毫秒
+     * @param wheelSize 每层的槽数
+     * @param startMs   起始时间，毫秒时间戳
+     * @param order     同一个槽里到期任务的处理顺序
+     */
+    public TimingWheel(long tickMs, int wheelSize, long startMs, Comparator<? super T> order) {
+        this(tickMs, wheelSize, startMs, new PriorityQueue<>(Comparator.comparingLong(b -> b.expiration)), order);
+    }
+
+    private TimingWheel(long tickMs, int wheelSize, long startMs, PriorityQueue<Bucket<T>> queue,
+                        Comparator<? super T> order) {
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.interval = tickMs * wheelSize;
+        this.queue = queue;
+        this.order = order;
+        this.currentTime = startMs - (startMs % tickMs);
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new Bucket<>());
+        }
+    }
+
+    /**
+     * 添加任务
+     *
+     * @param expirationMs 到期时间，毫秒时间戳
+     * @return false : 任务已到期，没有放入时间轮，由调用方直接处理
+     */
+    public boolean add(long expirationMs, T item) {
+        if (!addEntry(new Entry<>(expirationMs, item))) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * 推进时钟到 nowMs ，把到期的任务交给 expired 处理
+     */
+    public void advanceClock(long nowMs, Consumer<T> expired) {
+        Bucket<T> bucket;
+        List<T> items = new ArrayList<>();
+        while ((bucket = queue.peek()) != null && bucket.expiration <= nowMs) {
+            queue.poll();
+            advance(bucket.expiration);
+            for (Entry<T> entry : bucket.flush()) {
+                // 上层时间轮的任务降级到下层，已到期的直接处理
+                if (!addEntry(entry)) {
+                    size--;
+                    items.add(entry.item);
+                }
+            }
+            if (order != null) {
+                items.sort(order);
+            }
+            items.forEach(expired);
+            items.clear();
+        }
+        advance(nowMs);
+    }
+
+    /**
+     * 最早一个非空槽的到期时间
+     *
+     * @return 时间轮为空时返回 Long.MAX_VALUE
+     */
+    public long nextExpiration() {
+        Bucket<T> bucket = queue.peek();
+        return bucket == null ? Long.MAX_VALUE : bucket.expiration;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean addEntry(Entry<T> entry) {
+        long expiration = entry.expirationMs;
+        if (expiration < currentTime + tickMs) {
+            return false;
+        }
+        if (expiration < currentTime + interval) {
+            long virtualId = expiration / tickMs;
+            Bucket<T> bucket = buckets.get((int) (virtualId % wheelSize));
+            bucket.entries.add(entry);
+            if (bucket.setExpiration(virtualId * tickMs)) {
+                queue.offer(bucket);
+            }
+            return true;
+        }
+        if (overflowWheel == null) {
+            overflowWheel = new TimingWheel<>(interval, wheelSize, currentTime, queue, order);
+        }
+        return overflowWheel.addEntry(entry);
+    }
+
+    private void advance(long timeMs) {
+        if (timeMs >= currentTime + tickMs) {
+            currentTime = timeMs - (timeMs % tickMs);
+            if (overflowWheel != null) {
+                overflowWheel.advance(currentTime);
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+
+        private final long expirationMs;
+
+        private final T item;
+
+        private Entry(long expirationMs, T item) {
+            this.expirationMs = expirationMs;
+            this.item = item;
+        }
+
+    }
+
+    private static final class Bucket<T> {
+
+        private List<Entry<T>> entries = new ArrayList<>();
+
+        private long expiration = -1L;
+
+        /**
+         * @return 到期时间是否发生变化[槽被复用]，变化时需要重新放入队列
+         */
+        private boolean setExpiration(long expiration) {
+            if (this.expiration == expiration) {
+                return false;
+            }
+            this.expiration = expiration;
+            return true;
+        }
+
+        private List<Entry<T>> flush() {
+            List<Entry<T>> flushed = entries;
+            entries = new ArrayList<>();
+            expiration = -1L;
+            return flushed;
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.constant.DelayConst;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按业务 topic 限制转发速率，平滑整点、零点等大量消息同时到期时的突发流量。
+ * <pre>
+ * 1. 每个 topic 一个令牌桶，每秒补充 rate 个令牌，最多积累 1 秒的令牌，所有转发线程共用，限制的是整个节点的转发速率
+ * 2. 每个 topic 有一个最大延迟 maxLateness ：消息的截止时间 = 触发时间 + maxLateness ，到达截止时间后不再等待令牌，
+ *    限流只会把突发流量在截止时间以内摊开，不会无限期推迟
+ * 3. 转发线程按截止时间从早到晚发送，最大延迟小[SLA 要求高]的 topic 优先占用在途额度
+ * </pre>
+ * 配置格式为 topic:数值，多个以 , 分割，* 表示未单独配置的 topic ，见 {@link DelayConst#TOPIC_RATE_LIMIT} 。
+ * 多线程安全。
+ *
+ * @author HuaHui Yu 2026-10-18 22:31:07
+ **/
+public final class TopicRateLimiter {
+
+    private static final String DEFAULT_TOPIC = "*";
+
+    /**
+     * 每秒转发条数，不大于 0 时不限制
+     */
+    private final Map<String, Double> rates;
+
+    private final Map<String, Long> maxLateness;
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param rates       topic -> 每秒转发条数，* 表示未单独配置的 topic ，不大于 0 时不限制
+     * @param maxLateness topic -> 最大延迟，单位：毫秒，* 表示未单独配置的 topic
+     */
+    public TopicRateLimiter(Map<String, Double> rates, Map<String, Long> maxLateness) {
+        this.rates = rates;
+        this.maxLateness = maxLateness;
+    }
+
+    /**
+     * 按配置文件创建。限制的是整个节点的转发速率，所有转发线程共用一个实例
+     *
+     * @return 没有配置限流时返回 null
+     * @throws NumberFormatException 数值格式错误
+     */
+    public static TopicRateLimiter fromConfig() {
+        return of(DelayConst.TOPIC_RATE_LIMIT, DelayConst.TOPIC_MAX_LATENESS_MS);
+    }
+
+    /**
+     * @param rateConfig     topic:每秒转发条数 ，见 {@link DelayConst#TOPIC_RATE_LIMIT}
+     * @param latenessConfig topic:最大延迟毫秒数 ，见 {@link DelayConst#TOPIC_MAX_LATENESS_MS}
+     * @return 没有配置限流时返回 null
+     * @throws NumberFormatException 数值格式错误
+     */
+    static TopicRateLimiter of(String rateConfig, String latenessConfig) {
+        Map<String, Double> rates = new HashMap<>();
+        parse(rateConfig).forEach((topic, rate) -> rates.put(topic, Double.parseDouble(rate)));
+        Map<String, Long> maxLateness = new HashMap<>();
+        parse(latenessConfig).forEach((topic, ms) -> maxLateness.put(topic, Long.parseLong(ms)));
+        return rates.isEmpty() ? null : new TopicRateLimiter(rates, maxLateness);
+    }
+
+    /**
+     * 解析 topic:数值,topic:数值 格式的配置
+     */
+    static Map<String, String> parse(String config) {
+        Map<String, String> map = new HashMap<>();
+        for (String item : config.split(",")) {
+            int split = item.lastIndexOf(':');
+            if (split > 0) {
+                map.put(item.substring(0, split).trim(), item.substring(split + 1).trim());
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return 消息的截止时间，毫秒时间戳
+     */
+    public long deadline(String topic, long triggerMs) {
+        Long lateness = maxLateness.getOrDefault(topic, maxLateness.get(DEFAULT_TOPIC));
+        return lateness == null ? Long.MAX_VALUE : triggerMs + lateness;
+    }
+
+    /**
+     * 申请发送一条消息。有令牌、或者已到达截止时间时扣减一个令牌[可以透支 1 秒的令牌，之后的消息相应推迟]
+     *
+     * @param deadlineMs 消息的截止时间，见 {@link #deadline(String, long)}
+     * @return 0 表示可以立即发送，否则为下一次申请的时间点，毫秒时间戳
+     */
+    public long acquire(String topic, long deadlineMs, long nowMs) {
+        Bucket bucket = buckets.computeIfAbsent(topic, this::newBucket);
+        if (bucket == null) {
+            return 0L;
+        }
+        synchronized (bucket) {
+            bucket.refill(nowMs);
+            if (bucket.tokens >= 1 || nowMs >= deadlineMs) {
+                bucket.tokens = Math.max(bucket.tokens - 1, -bucket.capacity);
+                return 0L;
+            }
+            long waitMs = (long) Math.ceil((1 - bucket.tokens) * 1000 / bucket.rate);
+            return Math.min(nowMs + Math.max(waitMs, 1L), deadlineMs);
+        }
+    }
+
+    private Bucket newBucket(String topic) {
+        Double rate = rates.getOrDefault(topic, rates.get(DEFAULT_TOPIC));
+        // 不限流的 topic 返回 null ，ConcurrentHashMap 不保存，每次重新判断即可
+        return rate == null || rate <= 0 ? null : new Bucket(rate);
+    }
+
+    private static final class Bucket {
+
+        private final double rate;
+
+        private final double capacity;
+
+        private double tokens;
+
+        private long refillAt = -1L;
+
+        private Bucket(double rate) {
+            this.rate = rate;
+            this.capacity = Math.max(rate, 1);
+            this.tokens = capacity;
+        }
+
+        private void refill(long nowMs) {
+            if (refillAt >= 0 && nowMs > refillAt) {
+                tokens = Math.min(capacity, tokens + (nowMs - refillAt) * rate / 1000);
+            }
+            refillAt = Math.max(refillAt, nowMs);
+        }
+
+    }
+
+}
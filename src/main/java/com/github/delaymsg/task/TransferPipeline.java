@@ -0,0 +1,433 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.DelayStore;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 流水线转发，一个本地数据库对应一个。
+ * 转发线程提交到期消息后立即返回，继续预读、发送下一批，不等待上一批的发送结果；
+ * 发送结果由 kafka 生产者的 io 线程写入并发队列，转发线程每一轮批量删除已发送成功的消息；
+ * 发送失败的消息按 {@link RetryPolicy} 退避后换一个 key 重新写入本地数据库，不占用在途额度，也不阻塞其它消息，
+ * 连续失败达到上限后改为发送到死信 topic 。
+ * 同时在途[已发送、未收到结果]的消息数不超过 maxInFlight ，超出的留在待发送队列里，等在途消息完成后再发送。
+ * 配置了 {@link TopicRateLimiter} 时，待发送的消息按业务 topic 分队列、按触发时间排序，
+ * 每次从未被限流的队列里选截止时间最早的消息发送；被限流的消息不计入在途额度，不影响其它 topic 的预读、发送。
+ * 配置了 {@link KeyOrderedExecutor} 时，kafka 发送按 messageKey 交给多个发送线程执行，热点分片可以使用多个 cpu 核。
+ * 除发送回调外，其余方法只能由转发线程调用。
+ *
+ * @author HuaHui Yu 2026-10-18 14:06:27
+ **/
+public class TransferPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferPipeline.class);
+
+    /**
+     * 收到发送结果后，最晚多久处理，期间的结果合并成一批删除
+     */
+    private static final long ACK_FLUSH_TIME = 10L;
+
+    /**
+     * 单次批量删除的最大记录数
+     */
+    private static final int DELETE_BATCH = 10000;
+
+    /**
+     * 重新写入、删除本地数据库失败后，再次处理的等待时间
+     */
+    private static final long RESCHEDULE_RETRY_MS = 1000L;
+
+    /**
+     * 死信消息的 header ：原业务 topic
+     */
+    static final String HEADER_ORIGIN_TOPIC = "delay.origin.topic";
+
+    /**
+     * 死信消息的 header ：已转发失败的次数
+     */
+    static final String HEADER_ATTEMPTS = "delay.attempts";
+
+    private final DelayStore delayStore;
+
+    private final KafkaSender kafkaSender;
+
+    private final TriggerSignal triggerSignal;
+
+    private final int maxInFlight;
+
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * 为 null 时不限流
+     */
+    private final TopicRateLimiter rateLimiter;
+
+    /**
+     * 为 null 时由转发线程直接发送
+     */
+    private final KeyOrderedExecutor sendExecutor;
+
+    /**
+     * 待发送的消息，不限流时使用
+     */
+    private final ArrayDeque<NearTermWheel.DueMsg> pending = new ArrayDeque<>();
+
+    /**
+     * 业务 topic -> 待发送的消息，限流时使用
+     */
+    private final Map<String, TopicQueue> topicQueues = new HashMap<>();
+
+    private int topicPending;
+
+    /**
+     * 上一次发送后，仍在等待限流的消息数
+     */
+    private int throttled;
+
+    /**
+     * 被限流的消息最早可以发送的时间点
+     */
+    private long nextDispatchAt = Long.MAX_VALUE;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * 已发送成功、已重新写入，待删除的消息
+     */
+    private final ConcurrentLinkedQueue<byte[]> acked = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 发送失败、待重新写入本地数据库的消息
+     */
+    private final ConcurrentLinkedQueue<NearTermWheel.DueMsg> failed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 按配置文件的重试策略，不限流，由转发线程直接发送
+     */
+    public TransferPipeline(DelayStore delayStore, KafkaSender kafkaSender, TriggerSignal triggerSignal, int maxInFlight) {
+        this(delayStore, kafkaSender, triggerSignal, maxInFlight, RetryPolicy.fromConfig());
+    }
+
+    public TransferPipeline(DelayStore delayStore, KafkaSender kafkaSender, TriggerSignal triggerSignal, int maxInFlight,
+                            RetryPolicy retryPolicy) {
+        this(delayStore, kafkaSender, triggerSignal, maxInFlight, retryPolicy, null);
+    }
+
+    /**
+     * @param rateLimiter 按业务 topic 限流，为 null 时不限流
+     */
+    public TransferPipeline(DelayStore delayStore, KafkaSender kafkaSender, TriggerSignal triggerSignal, int maxInFlight,
+                            RetryPolicy retryPolicy, TopicRateLimiter rateLimiter) {
+        this(delayStore, kafkaSender, triggerSignal, maxInFlight, retryPolicy, rateLimiter, null);
+    }
+
+    /**
+     * @param rateLimiter  按业务 topic 限流，为 null 时不限流
+     * @param sendExecutor 按 messageKey 分配的发送线程，为 null 时由转发线程直接发送
+     */
+    public TransferPipeline(DelayStore delayStore, KafkaSender kafkaSender, TriggerSignal triggerSignal, int maxInFlight,
+                            RetryPolicy retryPolicy, TopicRateLimiter rateLimiter, KeyOrderedExecutor sendExecutor) {
+        this.delayStore = delayStore;
+        this.kafkaSender = kafkaSender;
+        this.triggerSignal = triggerSignal;
+        this.maxInFlight = maxInFlight;
+        this.retryPolicy = retryPolicy;
+        this.rateLimiter = rateLimiter;
+        this.sendExecutor = sendExecutor;
+    }
+
+    /**
+     * 提交到期消息，由 {@link #dispatch()} 发送
+     */
+    public void submit(NearTermWheel.DueMsg msg) {
+        if (rateLimiter == null) {
+            pending.add(msg);
+            return;
+        }
+        topicQueues.computeIfAbsent(msg.getRecord().topic(), TopicQueue::new).add(msg);
+        topicPending++;
+    }
+
+    /**
+     * 在途额度以内，发送待发送的消息
+     */
+    public void dispatch() {
+        if (rateLimiter != null) {
+            dispatchLimited(System.currentTimeMillis());
+            return;
+        }
+        NearTermWheel.DueMsg msg;
+        while (inFlight.get() < maxInFlight && (msg = pending.poll()) != null) {
+            inFlight.incrementAndGet();
+            send(msg);
+        }
+    }
+
+    /**
+     * 每次从未被限流的队列里选截止时间最早的一条发送，直到在途额度用完或者全部被限流
+     */
+    private void dispatchLimited(long nowMs) {
+        while (inFlight.get() < maxInFlight && topicPending > 0) {
+            TopicQueue earliest = null;
+            for (TopicQueue queue : topicQueues.values()) {
+                if (!queue.isEmpty() && queue.blockedUntil <= nowMs
+                        && (earliest == null || queue.headDeadline() < earliest.headDeadline())) {
+                    earliest = queue;
+                }
+            }
+            if (earliest == null) {
+                break;
+            }
+            long retryAt = rateLimiter.acquire(earliest.topic, earliest.headDeadline(), nowMs);
+            if (retryAt > 0) {
+                earliest.blockedUntil = retryAt;
+                continue;
+            }
+            topicPending--;
+            inFlight.incrementAndGet();
+            send(earliest.poll());
+        }
+        throttled = 0;
+        nextDispatchAt = Long.MAX_VALUE;
+        for (TopicQueue queue : topicQueues.values()) {
+            if (!queue.isEmpty() && queue.blockedUntil > nowMs) {
+                throttled += queue.size();
+                nextDispatchAt = Math.min(nextDispatchAt, queue.blockedUntil);
+            }
+        }
+    }
+
+    /**
+     * 发送失败的消息退避后重新写入本地数据库，交给 rescheduled ；批量删除已发送成功、已重新写入的消息
+     *
+     * @param rescheduled 接收重新写入本地数据库的消息
+     * @return 已删除的消息 key
+     */
+    public List<byte[]> flush(Consumer<List<DelayDto>> rescheduled) {
+        List<byte[]> deleted = new ArrayList<>();
+        reschedule(rescheduled);
+        List<byte[]> keys = new ArrayList<>();
+        byte[] key;
+        while ((key = acked.poll()) != null) {
+            keys.add(key);
+            if (keys.size() >= DELETE_BATCH) {
+                if (!delete(keys, deleted)) {
+                    return deleted;
+                }
+                keys = new ArrayList<>();
+            }
+        }
+        if (!keys.isEmpty()) {
+            delete(keys, deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * 批量删除已发送成功的消息，失败时放回 acked 稍后重试，不丢失，消息仍留在时间轮里不会重复转发
+     *
+     * @return 是否删除成功
+     */
+    private boolean delete(List<byte[]> keys, List<byte[]> deleted) {
+        try {
+            delayStore.batchDelete(keys);
+        } catch (RuntimeException e) {
+            log.error("删除已转发的消息失败，稍后重试 || size : {}", keys.size(), e);
+            acked.addAll(keys);
+            triggerSignal.signal(System.currentTimeMillis() + RESCHEDULE_RETRY_MS);
+            return false;
+        }
+        deleted.addAll(keys);
+        return true;
+    }
+
+    /**
+     * 待发送和在途的消息已达到上限，暂停预读。等待限流的消息不计入，时间轮的容量上限限制了它们占用的内存
+     */
+    public boolean isSaturated() {
+        return pending.size() + topicPending - throttled + inFlight.get() >= maxInFlight;
+    }
+
+    /**
+     * 被限流的消息最早可以发送的时间点，没有时返回 Long.MAX_VALUE
+     */
+    public long nextDispatchAt() {
+        return nextDispatchAt;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 以 now + 退避时间 为触发时间、原序号换一个 key 写入，再删除原 key ；先写后删，进程中途退出时最多重复转发。
+     * 写入成功后原 key 与已发送成功的消息一起删除，删除失败时只重试删除，不会以新的触发时间再写入一次
+     */
+    private void reschedule(Consumer<List<DelayDto>> rescheduled) {
+        if (failed.isEmpty()) {
+            return;
+        }
+        List<NearTermWheel.DueMsg> msgs = new ArrayList<>();
+        NearTermWheel.DueMsg msg;
+        while ((msg = failed.poll()) != null) {
+            msgs.add(msg);
+        }
+        long now = System.currentTimeMillis();
+        List<byte[]> oldKeys = new ArrayList<>(msgs.size());
+        List<byte[]> keys = new ArrayList<>(msgs.size());
+        List<byte[]> values = new ArrayList<>(msgs.size());
+        List<DelayDto> stored = new ArrayList<>(msgs.size());
+        for (NearTermWheel.DueMsg failedMsg : msgs) {
+            int attempts = failedMsg.getAttempts() + 1;
+            long triggerTime = now + retryPolicy.backoff(attempts);
+            DelayDto dto = new DelayDto();
+            dto.setKey(KeyUtils.buildKey(triggerTime, KeyUtils.extractSequence(failedMsg.getKey())));
+            dto.setTopic(failedMsg.getRecord().topic());
+            dto.setMessageKey(failedMsg.getRecord().key());
+            dto.setPayload(failedMsg.getRecord().value());
+            dto.setTriggerTime(triggerTime);
+            dto.setAttempts(attempts);
+            oldKeys.add(failedMsg.getKey());
+            keys.add(dto.getKey());
+            values.add(DelayDtoCodec.write(dto));
+            stored.add(dto);
+        }
+        try {
+            delayStore.batchStore(keys, values);
+        } catch (RuntimeException e) {
+            log.error("转发失败的消息重新写入本地数据库失败，稍后重试 || size : {}", msgs.size(), e);
+            failed.addAll(msgs);
+            triggerSignal.signal(now + RESCHEDULE_RETRY_MS);
+            return;
+        }
+        acked.addAll(oldKeys);
+        rescheduled.accept(stored);
+        log.info("转发失败的消息已退避重新写入 || size : {} || first : {}", msgs.size(), KeyUtils.toString(keys.get(0)));
+    }
+
+    private void send(NearTermWheel.DueMsg msg) {
+        ProducerRecord<String, byte[]> record = msg.getRecord();
+        if (retryPolicy.isDeadLetter(msg.getAttempts())) {
+            log.warn("消息连续转发失败，发送到死信 topic || id : {} || topic : {} || attempts : {}",
+                    KeyUtils.toString(msg.getKey()), record.topic(), msg.getAttempts());
+            record = deadLetter(record, msg.getAttempts());
+        }
+        Callback callback = (metadata, exception) -> {
+            if (exception == null) {
+                acked.offer(msg.getKey());
+            } else {
+                log.warn("发送mq失败 || id : {} || attempts : {} || exception : {}",
+                        KeyUtils.toString(msg.getKey()), msg.getAttempts(), exception.toString());
+                failed.offer(msg);
+            }
+            inFlight.decrementAndGet();
+            // 唤醒转发线程及时删除、重试、发送下一批
+            triggerSignal.signal(System.currentTimeMillis() + ACK_FLUSH_TIME);
+        };
+        ProducerRecord<String, byte[]> sending = record;
+        if (sendExecutor == null) {
+            trySend(sending, callback);
+        } else {
+            sendExecutor.execute(record.key(), () -> trySend(sending, callback));
+        }
+    }
+
+    /**
+     * 同步抛出的异常按发送失败处理：释放在途额度，退避后重试，不中断转发线程
+     */
+    private void trySend(ProducerRecord<String, byte[]> record, Callback callback) {
+        try {
+            kafkaSender.send(record, callback);
+        } catch (RuntimeException e) {
+            callback.onCompletion(null, e);
+        }
+    }
+
+    /**
+     * 一个业务 topic 的待发送消息，按 key[触发时间] 排序
+     */
+    private final class TopicQueue {
+
+        private final String topic;
+
+        private final PriorityQueue<NearTermWheel.DueMsg> queue =
+                new PriorityQueue<>((a, b) -> KeyUtils.compare(a.getKey(), b.getKey()));
+
+        /**
+         * 被限流到的时间点
+         */
+        private long blockedUntil;
+
+        private long headDeadline;
+
+        private TopicQueue(String topic) {
+            this.topic = topic;
+        }
+
+        private void add(NearTermWheel.DueMsg msg) {
+            queue.add(msg);
+            if (queue.peek() == msg) {
+                refreshDeadline();
+                // 新的队首可能已到达截止时间，不再等待限流
+                blockedUntil = Math.min(blockedUntil, headDeadline);
+            }
+        }
+
+        private NearTermWheel.DueMsg poll() {
+            NearTermWheel.DueMsg msg = queue.poll();
+            refreshDeadline();
+            return msg;
+        }
+
+        private long headDeadline() {
+            return headDeadline;
+        }
+
+        private boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        private int size() {
+            return queue.size();
+        }
+
+        private void refreshDeadline() {
+            NearTermWheel.DueMsg head = queue.peek();
+            if (head != null) {
+                headDeadline = rateLimiter.deadline(topic, KeyUtils.extractTriggerTime(head.getKey()));
+            }
+        }
+
+    }
+
+    /**
+     * 死信消息保留原 key 、消息体，原 topic 、失败次数写入 header
+     */
+    private ProducerRecord<String, byte[]> deadLetter(ProducerRecord<String, byte[]> record, int attempts) {
+        List<Header> headers = Arrays.asList(
+                new RecordHeader(HEADER_ORIGIN_TOPIC, record.topic().getBytes(StandardCharsets.UTF_8)),
+                new RecordHeader(HEADER_ATTEMPTS, String.valueOf(attempts).getBytes(StandardCharsets.UTF_8)));
+        return new ProducerRecord<>(retryPolicy.getDeadLetterTopic(), null, record.key(), record.value(), headers);
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.github.delaymsg.task;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 转发线程的唤醒信号，一个本地数据库对应一个。
+ * 转发线程没有到期消息时，休眠到最早一条消息的触发时间；
+ * 保存线程写入了更早触发的消息时，提前唤醒转发线程。
+ * 休眠期间收到的信号不会丢失：如果信号早于休眠开始，则休眠立即结束。
+ *
+ * @author HuaHui Yu 2026-10-18 10:05:12
+ **/
+public class TriggerSignal {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition condition = lock.newCondition();
+
+    /**
+     * 转发线程需要被唤醒的时间点，毫秒时间戳
+     */
+    private long wakeUpAt = Long.MAX_VALUE;
+
+    /**
+     * 通知转发线程：保存了一条在 triggerTimeMs 触发的消息
+     *
+     * @param triggerTimeMs 触发时间，毫秒时间戳
+     */
+    public void signal(long triggerTimeMs) {
+        lock.lock();
+        try {
+            if (triggerTimeMs < wakeUpAt) {
+                wakeUpAt = triggerTimeMs;
+                condition.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 休眠到 deadlineMs ，或者被更早触发的消息提前唤醒
+     *
+     * @param deadlineMs 最晚唤醒时间，毫秒时间戳
+     */
+    public void awaitUntil(long deadlineMs) {
+        lock.lock();
+        try {
+            wakeUpAt = Math.min(wakeUpAt, deadlineMs);
+            long waitMs;
+            while ((waitMs = wakeUpAt - System.currentTimeMillis()) > 0) {
+                condition.awaitNanos(TimeUnit.MILLISECONDS.toNanos(waitMs));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            wakeUpAt = Long.MAX_VALUE;
+            lock.unlock();
+        }
+    }
+
+}
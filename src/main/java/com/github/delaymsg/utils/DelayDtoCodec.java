@@ -0,0 +1,185 @@
+package com.github.delaymsg.utils;
+
+import com.github.delaymsg.dto.DelayDto;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <pre>
+ * 延时消息的存储格式，替代 fst 序列化。
+ * 格式[版本 1]：
+ * 'D' | 版本号 | triggerTime | topic | messageKey | payload | [attempts]
+ * 1. 'D' 、版本号各占 1 个字节。fst 序列化结果的第一个字节不会是 'D' ，读取时据此兼容旧版本的 fst 数据
+ * 2. triggerTime 为变长整数[取值 + 1 ，0 表示 null]
+ * 3. 其余字段为 变长整数长度[长度 + 1 ，0 表示 null] + 内容，字符串使用 utf-8 编码
+ * 4. attempts 为变长整数，转发失败过的消息才写入，不存在时为 0 ；之后再追加字段时，attempts 必须写入
+ * 扩展规则：
+ * 1. 新字段只能追加在末尾，读取时按剩余长度判断是否存在，旧代码读取时忽略末尾的未知字段，不需要修改版本号
+ * 2. 删除、修改已有字段时，必须递增版本号，读取时按版本号解析
+ * </pre>
+ * 不依赖类结构，无状态，多线程安全。
+ *
+ * @author HuaHui Yu 2026-10-18 17:20:36
+ **/
+public final class DelayDtoCodec {
+
+    private static final byte MAGIC = 'D';
+
+    private static final byte VERSION_1 = 1;
+
+    /**
+     * 当前写入的版本号
+     */
+    private static final byte CURRENT_VERSION = VERSION_1;
+
+    private DelayDtoCodec() {
+    }
+
+    public static byte[] write(DelayDto dto) {
+        byte[] topic = utf8(dto.getTopic());
+        byte[] messageKey = utf8(dto.getMessageKey());
+        byte[] payload = dto.getPayload();
+        long triggerTime = dto.getTriggerTime() == null ? 0L : dto.getTriggerTime() + 1;
+        int attempts = dto.getAttempts();
+        int size = 2 + varLongSize(triggerTime) + fieldSize(topic) + fieldSize(messageKey) + fieldSize(payload)
+                + (attempts > 0 ? varLongSize(attempts) : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC).put(CURRENT_VERSION);
+        putVarLong(buffer, triggerTime);
+        putField(buffer, topic);
+        putField(buffer, messageKey);
+        putField(buffer, payload);
+        if (attempts > 0) {
+            putVarLong(buffer, attempts);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 读取本地存储的消息，兼容旧版本的 fst 数据
+     */
+    public static DelayDto read(byte[] value) {
+        if (!isCodec(value)) {
+            return FstUtils.read(value);
+        }
+        return read(ByteBuffer.wrap(value));
+    }
+
+    /**
+     * 从 buffer 的当前位置直接解析，不复制整条数据；读取完成后 position 位于已知字段的末尾
+     */
+    public static DelayDto read(ByteBuffer buffer) {
+        if (buffer.remaining() < 2 || buffer.get(buffer.position()) != MAGIC) {
+            byte[] legacy = new byte[buffer.remaining()];
+            buffer.get(legacy);
+            return FstUtils.read(legacy);
+        }
+        buffer.get();
+        byte version = buffer.get();
+        if (version != VERSION_1) {
+            throw new IllegalArgumentException("不支持的存储格式版本 : " + version);
+        }
+        DelayDto dto = new DelayDto();
+        long triggerTime = getVarLong(buffer);
+        dto.setTriggerTime(triggerTime == 0L ? null : triggerTime - 1);
+        dto.setTopic(getString(buffer));
+        dto.setMessageKey(getString(buffer));
+        dto.setPayload(getBytes(buffer));
+        if (buffer.hasRemaining()) {
+            dto.setAttempts((int) getVarLong(buffer));
+        }
+        return dto;
+    }
+
+    private static boolean isCodec(byte[] value) {
+        return value.length >= 2 && value[0] == MAGIC;
+    }
+
+    private static byte[] utf8(String text) {
+        return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldSize(byte[] field) {
+        return field == null ? 1 : varLongSize(field.length + 1L) + field.length;
+    }
+
+    private static void putField(ByteBuffer buffer, byte[] field) {
+        if (field == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        putVarLong(buffer, field.length + 1L);
+        buffer.put(field);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = getLength(buffer);
+        if (length < 0) {
+            return null;
+        }
+        String text;
+        if (buffer.hasArray()) {
+            text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            // 转为 Buffer 调用，避免高版本 jdk 编译后在 jdk 8 上找不到 ByteBuffer.position(int)
+            ((Buffer) buffer).position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = getLength(buffer);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return 字段长度，null 返回 -1
+     */
+    private static int getLength(ByteBuffer buffer) {
+        long length = getVarLong(buffer) - 1;
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("字段长度超出数据范围 : " + length);
+        }
+        return (int) length;
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0L) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("变长整数格式错误");
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.github.delaymsg.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.delaymsg.dto.DelayDto;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * 延时消息解析，支持两种协议，可以发送到同一个 topic ：
+ * <pre>
+ * 1、json 协议：消息体是 json 对象，见 {@link #parse(byte[])}
+ * 2、header 协议：topic 、messageKey 、triggerTime 、priority 放在 kafka 消息头里，消息体就是业务消息，见 {@link #parse(Headers, byte[])}
+ * </pre>
+ * json 协议流式解析，直接在 kafka 消息的原始字节上逐个读取字段，只解码 topic 、messageKey 、triggerTime 、priority ；
+ * message 不解码，没有转义字符时直接截取原始字节，原样保存、转发。
+ * 未知字段跳过，与 {@link JsonUtils} 的 FAIL_ON_UNKNOWN_PROPERTIES=false 保持一致。
+ *
+ * @author HuaHui Yu 2026-10-18 16:32:47
+ **/
+public final class DelayMsgParser {
+
+    private static final Logger log = LoggerFactory.getLogger(DelayMsgParser.class);
+
+    /**
+     * header 协议：实际业务topic ，utf-8 编码。带有该消息头的 kafka 消息按 header 协议解析
+     */
+    public static final String TOPIC_HEADER = "delay.topic";
+
+    /**
+     * header 协议：消息的key ，utf-8 编码，可以不传
+     */
+    public static final String MESSAGE_KEY_HEADER = "delay.messageKey";
+
+    /**
+     * header 协议：延时触发时间点，utf-8 编码的十进制时间戳，取值规则与 json 协议的 triggerTime 相同
+     */
+    public static final String TRIGGER_TIME_HEADER = "delay.triggerTime";
+
+    /**
+     * header 协议：优先级通道，utf-8 编码，可以不传
+     */
+    public static final String PRIORITY_HEADER = "delay.priority";
+
+    /**
+     * 线程安全，可以共用
+     */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private DelayMsgParser() {
+    }
+
+    /**
+     * 解析 json 协议的延时消息，不校验字段取值
+     *
+     * @param msg utf-8 编码的 json 对象
+     * @return 解析失败时返回空
+     */
+    public static Optional<DelayDto> parse(byte[] msg) {
+        try (JsonParser parser = JSON_FACTORY.createParser(msg)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "不是 json 对象");
+            }
+            DelayDto dto = new DelayDto();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "topic":
+                        dto.setTopic(readText(parser, token));
+                        break;
+                    case "messageKey":
+                        dto.setMessageKey(readText(parser, token));
+                        break;
+                    case "message":
+                        dto.setPayload(readPayload(parser, token, msg));
+                        break;
+                    case "triggerTime":
+                        dto.setTriggerTime(readLong(parser, token));
+                        break;
+                    case "priority":
+                        dto.setPriority(readText(parser, token));
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return Optional.of(dto);
+        } catch (IOException | NumberFormatException e) {
+            log.warn("json 反序列化失败，msg: {}", new String(msg, StandardCharsets.UTF_8), e);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * 是否按 header 协议解析
+     */
+    public static boolean isHeaderProtocol(Headers headers) {
+        return headers.lastHeader(TOPIC_HEADER) != null;
+    }
+
+    /**
+     * 解析 header 协议的延时消息，不校验字段取值。消息体不做任何处理，原样保存、转发，可以是任意二进制格式
+     *
+     * @param headers kafka 消息头
+     * @param value   kafka 消息体
+     * @return 解析失败时返回空
+     */
+    public static Optional<DelayDto> parse(Headers headers, byte[] value) {
+        DelayDto dto = new DelayDto();
+        dto.setTopic(headerText(headers, TOPIC_HEADER));
+        dto.setMessageKey(headerText(headers, MESSAGE_KEY_HEADER));
+        dto.setPriority(headerText(headers, PRIORITY_HEADER));
+        String triggerTime = headerText(headers, TRIGGER_TIME_HEADER);
+        if (triggerTime != null) {
+            try {
+                dto.setTriggerTime(Long.parseLong(triggerTime.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("消息头 {} 不是数字 : {}", TRIGGER_TIME_HEADER, triggerTime);
+                return Optional.empty();
+            }
+        }
+        dto.setPayload(value);
+        return Optional.of(dto);
+    }
+
+    private static String headerText(Headers headers, String key) {
+        Header header = headers.lastHeader(key);
+        if (header == null || header.value() == null) {
+            return null;
+        }
+        return new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    private static String readText(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            throw new JsonParseException(parser, "字段 " + parser.getCurrentName() + " 不是字符串");
+        }
+        return parser.getText();
+    }
+
+    private static Long readLong(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getLongValue();
+            case VALUE_STRING:
+                return Long.parseLong(parser.getText().trim());
+            default:
+                throw new JsonParseException(parser, "字段 " + parser.getCurrentName() + " 不是数字");
+        }
+    }
+
+    /**
+     * 字符串没有转义字符时，json 里的原始字节就是消息内容的 utf-8 编码，直接截取；否则解码后重新编码
+     */
+    private static byte[] readPayload(JsonParser parser, JsonToken token, byte[] msg) throws IOException {
+        if (token != JsonToken.VALUE_STRING) {
+            String text = readText(parser, token);
+            return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+        }
+        // 跳过开头的引号。utf-8 多字节字符里不会出现引号、反斜杠
+        int start = (int) parser.getTokenLocation().getByteOffset() + 1;
+        for (int i = start; i < msg.length; i++) {
+            byte b = msg[i];
+            if (b == '"') {
+                return Arrays.copyOfRange(msg, start, i);
+            }
+            if (b == '\\') {
+                break;
+            }
+        }
+        return parser.getText().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -6,6 +6,7 @@ import org.nustaq.serialization.FSTConfiguration;
 /**
  * <pre>
  * fst 是高效序列化工具类，简单封装下，主要避免内部创建的流竞争锁冲突。
+ * 本地存储已改用 {@link DelayDtoCodec} ，当前只用于读取旧版本保存的数据。
  * 如果追求更高效率，可以预注册bean的class和禁用循环引用。
  * 注意事项：
  * 1. 序列化或者反序列化的类必须实现 Serializable 接口
@@ -0,0 +1,153 @@
+package com.github.delaymsg.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 延时消息存储 key 工具类。
+ * <pre>
+ * key 固定 16 字节，大端序编码：
+ * | 0 - 7  | 触发时间[毫秒时间戳] |
+ * | 8 - 15 | 递增序列号[IdUtils.nextId()] |
+ * rocksdb 默认按字节序比较 key ，大端序编码保证 key 的字节序和触发时间的数值顺序一致，
+ * 扫描时直接读取前 8 个字节即可得到触发时间，不需要解码字符串。
+ * 旧版本的 key 是 "triggerTime#id" 格式的字符串，首字节是 ascii 数字，一定排在新格式 key 的后面。
+ * 旧版本的触发时间是秒级时间戳，迁移时统一换算为毫秒。
+ * </pre>
+ *
+ * @author HuaHui Yu 2026-10-18 09:12:45
+ **/
+public final class KeyUtils {
+
+    /**
+     * key 的固定长度
+     */
+    public static final int KEY_LENGTH = 16;
+
+    /**
+     * 旧版本字符串 key 的起始位置[ascii 字符 '0']，新格式 key 都小于该值
+     */
+    public static final byte[] LEGACY_KEY_START = {'0'};
+
+    private static final char LEGACY_SPLIT_CHAR = '#';
+
+    private KeyUtils() {
+    }
+
+    /**
+     * 生成延时消息的存储 key
+     *
+     * @param triggerTime 触发时间
+     * @return 16 字节的 key
+     */
+    public static byte[] buildTriggerKey(long triggerTime) {
+        return buildKey(triggerTime, IdUtils.nextId());
+    }
+
+    public static byte[] buildKey(long triggerTime, long sequence) {
+        byte[] key = new byte[KEY_LENGTH];
+        writeLong(key, 0, triggerTime);
+        writeLong(key, 8, sequence);
+        return key;
+    }
+
+    /**
+     * 触发时间为 triggerTime 的最小 key，可作为扫描的上下界
+     */
+    public static byte[] lowerBound(long triggerTime) {
+        return buildKey(triggerTime, 0L);
+    }
+
+    /**
+     * 按字节序紧跟在 key 后面的 key[末尾追加 0x00]，可作为左闭右开区间的右边界
+     */
+    public static byte[] successor(byte[] key) {
+        byte[] next = new byte[key.length + 1];
+        System.arraycopy(key, 0, next, 0, key.length);
+        return next;
+    }
+
+    /**
+     * 按无符号字节序比较 key ，与 rocksdb 默认的比较器一致
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    public static byte[] min(byte[] a, byte[] b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return compare(a, b) <= 0 ? a : b;
+    }
+
+    public static byte[] max(byte[] a, byte[] b) {
+        return compare(a, b) >= 0 ? a : b;
+    }
+
+    public static long extractTriggerTime(byte[] key) {
+        return readLong(key, 0);
+    }
+
+    public static long extractSequence(byte[] key) {
+        return readLong(key, 8);
+    }
+
+    /**
+     * 是否为旧版本 "triggerTime#id" 格式的字符串 key
+     */
+    public static boolean isLegacyKey(byte[] key) {
+        return key.length > 0 && key[0] >= '0' && key[0] <= '9';
+    }
+
+    /**
+     * 把旧版本 "triggerTime#id" 格式的字符串 key 转换为新格式 key
+     *
+     * @throws IllegalArgumentException 格式异常的 key
+     */
+    public static byte[] fromLegacyKey(byte[] legacyKey) {
+        String key = new String(legacyKey, StandardCharsets.US_ASCII);
+        int split = key.indexOf(LEGACY_SPLIT_CHAR);
+        if (split <= 0 || split == key.length() - 1) {
+            throw new IllegalArgumentException("legacy key format error : " + key);
+        }
+        long triggerTime = Long.parseLong(key.substring(0, split));
+        long sequence = Long.parseLong(key.substring(split + 1));
+        return buildKey(triggerTime, sequence);
+    }
+
+    /**
+     * 可读格式，用于日志输出
+     */
+    public static String toString(byte[] key) {
+        if (key == null || key.length != KEY_LENGTH) {
+            return String.valueOf(key);
+        }
+        return extractTriggerTime(key) + "#" + extractSequence(key);
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0L;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+}
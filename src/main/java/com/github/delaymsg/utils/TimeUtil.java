@@ -7,23 +7,31 @@ import java.time.ZonedDateTime;
  **/
 public class TimeUtil {
 
-    private static final String KEY_SPLIT_CHAR = "#";
-
-    public static long unixTime() {
-        return System.currentTimeMillis() / 1000;
-    }
-
-    public static long getUnixTimeAfter3Year() {
-        return ZonedDateTime.now().plusYears(3).toEpochSecond();
-    }
-
-    public static long extractTriggerTime(String key) {
-        String[] split = key.split(KEY_SPLIT_CHAR);
-        return Long.parseLong(split[0]);
+    /**
+     * 小于该值的触发时间都按秒级时间戳处理。
+     * 1e11 秒约为 5138 年，1e11 毫秒约为 1973 年，两种精度的有效时间戳不会落在同一区间
+     */
+    public static final long SECONDS_THRESHOLD = 100_000_000_000L;
+
+    public static long getMillisAfter3Year() {
+        return ZonedDateTime.now().plusYears(3).toInstant().toEpochMilli();
     }
 
-    public static String buildTriggerKey(long triggerTime) {
-        return triggerTime + KEY_SPLIT_CHAR + IdUtils.nextId();
+    /**
+     * 把业务方传入的触发时间换算为毫秒时间戳
+     *
+     * @param triggerTime     触发时间
+     * @param millisPrecision true : 毫秒精度模式，兼容秒级时间戳[小于 SECONDS_THRESHOLD 的按秒处理]；false : 一律按秒处理
+     * @return 毫秒时间戳，溢出时返回 Long.MAX_VALUE
+     */
+    public static long toTriggerMillis(long triggerTime, boolean millisPrecision) {
+        if (millisPrecision && triggerTime >= SECONDS_THRESHOLD) {
+            return triggerTime;
+        }
+        if (triggerTime > Long.MAX_VALUE / 1000) {
+            return Long.MAX_VALUE;
+        }
+        return triggerTime * 1000;
     }
 
 }
@@ -1,21 +1,30 @@
 package com.github.delaymsg.dao;
 
 import com.github.delaymsg.dto.DelayDto;
-import com.github.delaymsg.utils.FstUtils;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.rocksdb.*;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -29,9 +38,11 @@ class DelayMsgDaoTest {
     @Mock
     RocksDB rocksDB;
 
-    @InjectMocks
     DelayMsgDao delayMsgDao;
 
+    @TempDir
+    File tempDir;
+
     @Test
     void build() {
         DelayMsgDao dao = new DelayMsgDao(1);
@@ -41,22 +52,44 @@ class DelayMsgDaoTest {
     @Test
     public void scanTodoMsg() {
         DelayDto dto = new DelayDto();
+        byte[] key = KeyUtils.buildKey(1L, 1L);
 
         RocksIterator iterator = Mockito.mock(RocksIterator.class);
-        when(rocksDB.newIterator()).thenReturn(iterator);
+        when(rocksDB.newIterator(any(ReadOptions.class))).thenReturn(iterator);
         when(iterator.isValid()).thenReturn(true);
-        when(iterator.key()).thenReturn("000".getBytes(StandardCharsets.UTF_8));
-        when(iterator.value()).thenReturn(FstUtils.write(dto));
+        when(iterator.key()).thenReturn(key);
+        when(iterator.value()).thenReturn(DelayDtoCodec.write(dto));
 
         List<DelayDto> result = delayMsgDao.scanTodoMsg();
 
         assertEquals(10000, result.size());
         assertEquals(dto.getMessageKey(), result.get(0).getMessageKey());
+        assertArrayEquals(key, result.get(0).getKey());
+    }
+
+    @Test
+    public void scanTodoMsg_legacyValue() {
+        // 旧版本以字符串保存 message 的 fst 数据
+        byte[] legacy = Base64.getDecoder().decode(
+                "ADL2goA5Ry9+AQAA//wYeyJvcmRlcklkIjoxLCJ1c2VyIjoi/1lPIn38BjEyMzQ1NvwMY2FuY2VsX29yZGVyAA==");
+        RocksIterator iterator = Mockito.mock(RocksIterator.class);
+        when(rocksDB.newIterator(any(ReadOptions.class))).thenReturn(iterator);
+        when(iterator.isValid()).thenReturn(true).thenReturn(false);
+        when(iterator.key()).thenReturn(KeyUtils.buildKey(1641470704000L, 1L));
+        when(iterator.value()).thenReturn(legacy);
+
+        List<DelayDto> result = delayMsgDao.scanTodoMsg();
+
+        assertEquals(1, result.size());
+        assertEquals("cancel_order", result.get(0).getTopic());
+        assertEquals("123456", result.get(0).getMessageKey());
+        assertEquals(1641470704000L, result.get(0).getTriggerTime());
+        assertArrayEquals("{\"orderId\":1,\"user\":\"余\"}".getBytes(StandardCharsets.UTF_8), result.get(0).getPayload());
     }
 
     @Test
     public void testBatchStore() throws RocksDBException {
-        List<String> keys = Arrays.asList("key1", "key2");
+        List<byte[]> keys = Arrays.asList(KeyUtils.buildKey(1L, 1L), KeyUtils.buildKey(1L, 2L));
         List<byte[]> values = Arrays.asList("value1".getBytes(), "value2".getBytes());
 
         delayMsgDao.batchStore(keys, values);
@@ -66,16 +99,203 @@ class DelayMsgDaoTest {
 
     @Test
     public void testBatchDelete() throws RocksDBException {
-        List<String> keys = Arrays.asList("key1", "key2");
+        List<byte[]> keys = Arrays.asList(KeyUtils.buildKey(1L, 1L), KeyUtils.buildKey(1L, 2L));
+        RocksIterator iterator = Mockito.mock(RocksIterator.class);
+        when(rocksDB.newIterator(any(ReadOptions.class))).thenReturn(iterator);
+        // 先定位游标之后的第一条消息，再逐条检查待删除区间
+        when(iterator.isValid()).thenReturn(true, true, true, false);
+        when(iterator.key()).thenReturn(keys.get(0), keys.get(0), keys.get(1));
 
         delayMsgDao.batchDelete(keys);
 
         verify(rocksDB, times(1)).write(any(WriteOptions.class), any(WriteBatch.class));
     }
 
+    @Test
+    public void migrateLegacyKeys() throws RocksDBException {
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, tempDir.getAbsolutePath())) {
+            DelayDto dto = new DelayDto();
+            dto.setTopic("topic");
+            byte[] value = DelayDtoCodec.write(dto);
+            db.put("1641470704#123".getBytes(StandardCharsets.UTF_8), value);
+            db.put("999999999#456".getBytes(StandardCharsets.UTF_8), value);
+
+            DelayMsgDao dao = new DelayMsgDao(db);
+            dao.migrateLegacyKeys();
+
+            assertNull(db.get("1641470704#123".getBytes(StandardCharsets.UTF_8)));
+            assertArrayEquals(value, db.get(KeyUtils.buildKey(1641470704L, 123L)));
+
+            // 秒级 key 换算为毫秒
+            dao.migrateSecondKeys();
+            assertNull(db.get(KeyUtils.buildKey(1641470704L, 123L)));
+            try (RocksIterator iterator = db.newIterator()) {
+                iterator.seekToFirst();
+                // 数值顺序，而不是字符串顺序
+                assertArrayEquals(KeyUtils.buildKey(999999999000L, 456L), iterator.key());
+                iterator.next();
+                assertArrayEquals(KeyUtils.buildKey(1641470704000L, 123L), iterator.key());
+                assertArrayEquals(value, iterator.value());
+                iterator.next();
+                assertFalse(iterator.isValid());
+            }
+        }
+    }
+
+    @Test
+    public void scanAndDelete_drainedRange() throws RocksDBException {
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, tempDir.getAbsolutePath())) {
+            DelayMsgDao dao = new DelayMsgDao(db);
+            List<byte[]> keys = Arrays.asList(KeyUtils.buildKey(1L, 1L), KeyUtils.buildKey(2L, 2L),
+                    KeyUtils.buildKey(Long.MAX_VALUE >> 8, 3L));
+            List<byte[]> values = Arrays.asList(DelayDtoCodec.write(new DelayDto()), DelayDtoCodec.write(new DelayDto()),
+                    DelayDtoCodec.write(new DelayDto()));
+            dao.batchStore(keys, values);
+
+            List<DelayDto> todo = dao.scanTodoMsg();
+            assertEquals(2, todo.size());
+            // 转发成功的顺序与扫描顺序无关
+            dao.batchDelete(Arrays.asList(todo.get(1).getKey(), todo.get(0).getKey()));
+
+            assertTrue(dao.scanTodoMsg().isEmpty());
+            assertNull(db.get(keys.get(0)));
+            assertNull(db.get(keys.get(1)));
+            assertNotNull(db.get(keys.get(2)));
+        }
+    }
+
+    @Test
+    public void scanAndDelete_lateStore() throws RocksDBException {
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, tempDir.getAbsolutePath())) {
+            DelayMsgDao dao = new DelayMsgDao(db);
+            byte[] value = DelayDtoCodec.write(new DelayDto());
+            dao.batchStore(Arrays.asList(KeyUtils.buildKey(1L, 1L), KeyUtils.buildKey(3L, 3L)), Arrays.asList(value, value));
+
+            List<DelayDto> todo = dao.scanTodoMsg();
+            assertEquals(2, todo.size());
+            // 扫描之后，写入一条落在扫描区间内的已到期消息
+            byte[] lateKey = KeyUtils.buildKey(2L, 2L);
+            dao.batchStore(Collections.singletonList(lateKey), Collections.singletonList(value));
+            dao.batchDelete(Arrays.asList(todo.get(0).getKey(), todo.get(1).getKey()));
+
+            List<DelayDto> next = dao.scanTodoMsg();
+            assertEquals(1, next.size());
+            assertArrayEquals(lateKey, next.get(0).getKey());
+        }
+    }
+
+    @Test
+    public void batchDelete_runs() throws RocksDBException {
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, tempDir.getAbsolutePath())) {
+            DelayMsgDao dao = new DelayMsgDao(db);
+            byte[] value = DelayDtoCodec.write(new DelayDto());
+            List<byte[]> keys = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            for (long i = 1; i <= 40; i++) {
+                keys.add(KeyUtils.buildKey(i, i));
+                values.add(value);
+            }
+            dao.batchStore(keys, values);
+
+            // 第 2 条还在发送中，之前、之后的两段分别删除，不会误删第 2 条
+            List<byte[]> acked = new ArrayList<>(keys);
+            byte[] inFlight = acked.remove(1);
+            Collections.shuffle(acked);
+            dao.batchDelete(acked);
+
+            List<DelayDto> todo = dao.scanTodoMsg();
+            assertEquals(1, todo.size());
+            assertArrayEquals(inFlight, todo.get(0).getKey());
+            assertEquals(2L, dao.peekEarliestTriggerTime());
+        }
+    }
+
+    @Test
+    public void timeBuckets_dropDrained() throws RocksDBException {
+        long now = System.currentTimeMillis();
+        byte[] legacyKey = KeyUtils.buildKey(now - 5000L, 1L);
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, tempDir.getAbsolutePath())) {
+            db.put(legacyKey, DelayDtoCodec.write(new DelayDto()));
+        }
+
+        // 开启时间桶前写入默认列族的消息，启动时迁移到时间桶
+        DelayMsgDao dao = new DelayMsgDao(tempDir.getAbsolutePath(), 1000L, Durability.ASYNC);
+        byte[] value = DelayDtoCodec.write(new DelayDto());
+        List<byte[]> keys = Arrays.asList(KeyUtils.buildKey(now - 3000L, 2L), KeyUtils.buildKey(now - 3000L, 1L),
+                KeyUtils.buildKey(now + 60_000L, 1L), KeyUtils.buildKey(now + 30 * 86_400_000L, 1L));
+        dao.batchStore(keys, Arrays.asList(value, value, value, value));
+        assertEquals(4, bucketNames().size());
+
+        List<DelayDto> todo = dao.scanTodoMsg();
+        assertEquals(3, todo.size());
+        assertArrayEquals(legacyKey, todo.get(0).getKey());
+        assertArrayEquals(keys.get(1), todo.get(1).getKey());
+        assertEquals(now + 60_000L, dao.peekEarliestTriggerTime(KeyUtils.successor(keys.get(0))));
+
+        // 已转发完毕、且已过结束时间的时间桶整个删除
+        dao.batchDelete(Arrays.asList(todo.get(2).getKey(), todo.get(0).getKey(), todo.get(1).getKey()));
+        assertEquals(2, bucketNames().size());
+        assertTrue(dao.scanTodoMsg().isEmpty());
+        assertEquals(now + 60_000L, dao.peekEarliestTriggerTime());
+
+        // 已删除的时间段再写入消息，重新创建列族
+        dao.batchStore(Collections.singletonList(legacyKey), Collections.singletonList(value));
+        assertEquals(3, bucketNames().size());
+        assertArrayEquals(legacyKey, dao.scanTodoMsg().get(0).getKey());
+    }
+
+    @Test
+    public void sharedShards_migrateStandalone() throws RocksDBException {
+        long now = System.currentTimeMillis();
+        byte[] key = KeyUtils.buildKey(now - 1000L, 1L);
+        DelayDto dto = new DelayDto();
+        dto.setTopic("topic");
+        File standaloneDir = new File(tempDir, "0");
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, standaloneDir.getAbsolutePath())) {
+            db.put(key, DelayDtoCodec.write(dto));
+        }
+
+        SharedRocksDB shared = new SharedRocksDB(new File(tempDir, "shared").getAbsolutePath(), 8 << 20, 2);
+        DelayMsgDao shard0 = new DelayMsgDao(shared, 0, 0L, Durability.ASYNC);
+        DelayMsgDao shard1 = new DelayMsgDao(shared, 1, 1000L, Durability.ASYNC);
+        // 独立数据库迁移到分片列族后删除
+        shard0.migrateStandalone(standaloneDir.getAbsolutePath());
+        assertFalse(standaloneDir.exists());
+
+        shard1.batchStore(Collections.singletonList(key), Collections.singletonList(DelayDtoCodec.write(dto)));
+        List<DelayDto> todo = shard0.scanTodoMsg();
+        assertEquals(1, todo.size());
+        assertEquals("topic", todo.get(0).getTopic());
+        assertArrayEquals(key, todo.get(0).getKey());
+
+        // 分片之间互不影响
+        shard1.batchDelete(Collections.singletonList(key));
+        assertTrue(shard1.scanTodoMsg().isEmpty());
+        assertEquals(1, shard0.scanTodoMsg().size());
+        assertEquals(now - 1000L, shard0.peekEarliestTriggerTime());
+    }
+
+    private List<String> bucketNames() throws RocksDBException {
+        List<String> names = new ArrayList<>();
+        try (Options options = new Options()) {
+            for (byte[] name : RocksDB.listColumnFamilies(options, tempDir.getAbsolutePath())) {
+                names.add(new String(name, StandardCharsets.UTF_8));
+            }
+        }
+        names.remove("default");
+        return names;
+    }
+
     @BeforeEach
     private void setUp() {
         MockitoAnnotations.openMocks(this);
+        delayMsgDao = new DelayMsgDao(rocksDB);
     }
 
 }
@@ -0,0 +1,105 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 三种持久化方式的写入吞吐量对比，不是单元测试，手动运行 main 方法。
+ * 模拟 shards 个处理流程并发写入各自的本地数据库，每批 batch 条消息。
+ * <pre>
+ * 参数 : [shards] [batch] [seconds] [groupMs] [dir]
+ * </pre>
+ *
+ * @author HuaHui Yu 2026-10-18 16:52:14
+ **/
+public class DurabilityBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int shards = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long groupMs = args.length > 3 ? Long.parseLong(args[3]) : 0L;
+        File dir = args.length > 4 ? new File(args[4]) : Files.createTempDirectory("durability").toFile();
+        RocksDB.loadLibrary();
+        byte[] value = DelayDtoCodec.write(message());
+        WalSyncer walSyncer = new WalSyncer(groupMs, 10000);
+        System.out.printf("shards : %d, batch : %d, groupMs : %d, value : %d bytes, dir : %s%n",
+                shards, batch, groupMs, value.length, dir);
+        for (Durability durability : Durability.values()) {
+            run(durability, walSyncer, new File(dir, durability.name()), shards, batch, seconds, value);
+        }
+    }
+
+    private static void run(Durability durability, WalSyncer walSyncer, File dir, int shards, int batch, int seconds,
+                            byte[] value) throws Exception {
+        List<RocksDB> dbs = new ArrayList<>();
+        List<Options> options = new ArrayList<>();
+        AtomicLong records = new AtomicLong();
+        AtomicLong batches = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(shards);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+        dir.mkdirs();
+        for (int i = 0; i < shards; i++) {
+            Options option = new Options().setCreateIfMissing(true);
+            RocksDB db = RocksDB.open(option, new File(dir, String.valueOf(i)).getAbsolutePath());
+            options.add(option);
+            dbs.add(db);
+            DelayMsgDao dao = new DelayMsgDao(db, durability, walSyncer);
+            new Thread(() -> {
+                List<byte[]> values = new ArrayList<>(batch);
+                for (int j = 0; j < batch; j++) {
+                    values.add(value);
+                }
+                while (System.currentTimeMillis() < deadline) {
+                    List<byte[]> keys = new ArrayList<>(batch);
+                    for (int j = 0; j < batch; j++) {
+                        keys.add(KeyUtils.buildTriggerKey(System.currentTimeMillis() + 3600_000L));
+                    }
+                    dao.batchStore(keys, values);
+                    records.addAndGet(batch);
+                    batches.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        System.out.printf("%-6s : %,10d msg/s, %,8d batch/s%n", durability,
+                records.get() / seconds, batches.get() / seconds);
+        close(dbs, options);
+    }
+
+    private static void close(List<RocksDB> dbs, List<Options> options) throws RocksDBException {
+        for (RocksDB db : dbs) {
+            db.syncWal();
+            db.close();
+        }
+        options.forEach(Options::close);
+    }
+
+    private static DelayDto message() {
+        DelayDto dto = new DelayDto();
+        dto.setTopic("order_timeout");
+        dto.setMessageKey("order-202610180001");
+        StringBuilder message = new StringBuilder();
+        while (message.length() < 200) {
+            message.append("{\"orderId\":202610180001,\"status\":\"CREATED\"}");
+        }
+        dto.setPayload(message.toString().getBytes(StandardCharsets.UTF_8));
+        dto.setTriggerTime(System.currentTimeMillis());
+        return dto;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author HuaHui Yu 2026-10-18 18:24:50
+ **/
+class MemoryDelayStoreTest {
+
+    MemoryDelayStore delayStore = new MemoryDelayStore();
+
+    @Test
+    void storeAndScan() {
+        long now = System.currentTimeMillis();
+        byte[] k1 = KeyUtils.buildKey(now - 1000L, 2L);
+        byte[] k2 = KeyUtils.buildKey(now - 1000L, 1L);
+        byte[] k3 = KeyUtils.buildKey(now + 60_000L, 1L);
+        store(k1, k2, k3);
+
+        // 按 key 顺序返回已到期的消息
+        List<DelayDto> due = delayStore.scanTodoMsg();
+        assertEquals(2, due.size());
+        assertArrayEquals(k2, due.get(0).getKey());
+        assertEquals("topic", due.get(0).getTopic());
+        assertArrayEquals(k1, due.get(1).getKey());
+
+        assertEquals(1, delayStore.scanRange(k2, k3, 1).size());
+        assertEquals(0, delayStore.scanRange(k3, k2, 10).size());
+        assertEquals(now - 1000L, delayStore.peekEarliestTriggerTime());
+        assertEquals(now + 60_000L, delayStore.peekEarliestTriggerTime(KeyUtils.successor(k1)));
+        assertEquals(-1L, delayStore.peekEarliestTriggerTime(KeyUtils.successor(k3)));
+        assertEquals(3, delayStore.stats().getCount());
+    }
+
+    @Test
+    void batchDelete() {
+        byte[] k1 = KeyUtils.buildKey(1L, 1L);
+        byte[] k2 = KeyUtils.buildKey(2L, 1L);
+        store(k1, k2);
+
+        delayStore.batchDelete(Arrays.asList(k2, KeyUtils.buildKey(3L, 1L)));
+
+        assertEquals(1, delayStore.stats().getCount());
+        assertEquals(k1.length + DelayDtoCodec.write(dto()).length, delayStore.stats().getBytes());
+        assertEquals(1L, delayStore.peekEarliestTriggerTime());
+        delayStore.batchDelete(Collections.singletonList(k1));
+        assertEquals(0, delayStore.stats().getBytes());
+        assertEquals(-1L, delayStore.peekEarliestTriggerTime());
+    }
+
+    @Test
+    void storeEngine_of() {
+        assertEquals(StoreEngine.MEMORY, StoreEngine.of(" Memory "));
+        assertEquals(StoreEngine.ROCKSDB, StoreEngine.of("rocksdb"));
+        assertInstanceOf(MemoryDelayStore.class, StoreEngine.MEMORY.open(0));
+        assertThrows(IllegalArgumentException.class, () -> StoreEngine.of("mysql"));
+    }
+
+    private void store(byte[]... keys) {
+        List<byte[]> values = new ArrayList<>();
+        for (byte[] ignored : keys) {
+            values.add(DelayDtoCodec.write(dto()));
+        }
+        delayStore.batchStore(Arrays.asList(keys), values);
+    }
+
+    private static DelayDto dto() {
+        DelayDto dto = new DelayDto();
+        dto.setTopic("topic");
+        return dto;
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HuaHui Yu 2026-10-18 22:58:33
+ **/
+class ResharderTest {
+
+    @TempDir
+    File dir;
+
+    Map<Integer, DelayStore> stores = new ConcurrentHashMap<>();
+
+    @ParameterizedTest
+    @ValueSource(longs = {0L, 60_000L})
+    void reshardIfChanged(long bucketMs) throws IOException {
+        IntFunction<DelayStore> opener = id -> new DelayMsgDao(dir + "/" + id, bucketMs, Durability.ASYNC);
+        // 旧版本按处理流程划分的 2 个分片，所有消息都已到期
+        long now = System.currentTimeMillis();
+        long sequence = 0L;
+        for (int id = 0; id < 2; id++) {
+            DelayStore delayStore = opener.apply(id);
+            List<byte[]> keys = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                keys.add(KeyUtils.buildKey(now - 600_000L + i * 300L, sequence++));
+                // 部分消息带 messageKey ，同一个 key 的消息在不同的旧分片
+                values.add(DelayDtoCodec.write(dto(i % 10 == 0 ? "key" + i % 100 : null)));
+            }
+            delayStore.batchStore(keys, values);
+            stores.put(id, delayStore);
+        }
+
+        long moved = Resharder.reshardIfChanged(dir.getPath(), stores, 4, opener);
+
+        // 均匀打散到 4 个分片，每条消息只在一个分片，同一个 messageKey 的消息在同一个分片
+        assertTrue(moved > 1000);
+        assertEquals(4, stores.size());
+        Set<Long> sequences = new HashSet<>();
+        Map<String, Integer> keyShards = new HashMap<>();
+        for (int id = 0; id < 4; id++) {
+            List<DelayDto> list = stores.get(id).scanRange(KeyUtils.lowerBound(0L), KeyUtils.lowerBound(Long.MAX_VALUE), 10000);
+            assertTrue(list.size() > 300 && list.size() < 700, "shard " + id + " : " + list.size());
+            for (DelayDto dto : list) {
+                assertEquals(id, Resharder.shardOf(dto, 4));
+                if (dto.getMessageKey() != null) {
+                    assertEquals(id, keyShards.merge(dto.getMessageKey(), id, (a, b) -> a).intValue());
+                }
+                assertTrue(sequences.add(KeyUtils.extractSequence(dto.getKey())));
+                assertEquals("topic", dto.getTopic());
+            }
+            // 导入的消息可以被扫描到期消息读到
+            assertFalse(stores.get(id).scanTodoMsg().isEmpty());
+        }
+        assertEquals(2000, sequences.size());
+        assertEquals(10, keyShards.size());
+        assertEquals("4", new String(Files.readAllBytes(new File(dir, Resharder.LAYOUT_FILE).toPath()), StandardCharsets.UTF_8));
+
+        // 分片数不变时不再处理
+        assertEquals(0L, Resharder.reshardIfChanged(dir.getPath(), stores, 4, opener));
+    }
+
+    @Test
+    void reshardIfChanged_lanes() {
+        // 2 个通道，各有 2 个旧分片
+        List<Map<Integer, DelayStore>> laneStores = new ArrayList<>();
+        long sequence = 0L;
+        for (int lane = 0; lane < 2; lane++) {
+            Map<Integer, DelayStore> lanes = new ConcurrentHashMap<>();
+            for (int id = 0; id < 2; id++) {
+                DelayStore delayStore = new MemoryDelayStore();
+                List<byte[]> keys = new ArrayList<>();
+                List<byte[]> values = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    keys.add(KeyUtils.buildKey(1000L + i, sequence++));
+                    values.add(DelayDtoCodec.write(dto("lane" + lane)));
+                }
+                delayStore.batchStore(keys, values);
+                lanes.put(id, delayStore);
+            }
+            laneStores.add(lanes);
+        }
+
+        long moved = Resharder.reshardIfChanged(dir.getPath(), laneStores, 3, (id, lane) -> new MemoryDelayStore());
+
+        // 每个通道都重新分片，消息留在原来的通道
+        assertTrue(moved > 0);
+        for (int lane = 0; lane < 2; lane++) {
+            assertEquals(3, laneStores.get(lane).size());
+            int total = 0;
+            for (int id = 0; id < 3; id++) {
+                for (DelayDto dto : laneStores.get(lane).get(id).scanRange(KeyUtils.lowerBound(0L),
+                        KeyUtils.lowerBound(Long.MAX_VALUE), 1000)) {
+                    assertEquals(id, Resharder.shardOf(dto, 3));
+                    assertEquals("lane" + lane, dto.getMessageKey());
+                    total++;
+                }
+            }
+            assertEquals(200, total);
+        }
+    }
+
+    @Test
+    void shardOf_defaultPartitioner() {
+        // 与 kafka 默认分区器对同一个 key 计算的分区一致
+        DelayDto dto = dto("123456");
+        dto.setKey(KeyUtils.buildKey(1L, 1L));
+        assertEquals(Utils.toPositive(Utils.murmur2("123456".getBytes(StandardCharsets.UTF_8))) % 6, Resharder.shardOf(dto, 6));
+    }
+
+    @Test
+    void requireUnchanged() {
+        // 没有记录时记录当前分片数，之后分片数变化拒绝启动
+        Resharder.requireUnchanged(dir.getPath(), 4);
+        Resharder.requireUnchanged(dir.getPath(), 4);
+        assertThrows(IllegalStateException.class, () -> Resharder.requireUnchanged(dir.getPath(), 8));
+    }
+
+    private static DelayDto dto(String messageKey) {
+        DelayDto dto = new DelayDto();
+        dto.setTopic("topic");
+        dto.setMessageKey(messageKey);
+        dto.setPayload(new byte[]{'1'});
+        return dto;
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (DelayStore delayStore : stores.values()) {
+            ((DelayMsgDao) delayStore).close();
+        }
+    }
+
+}
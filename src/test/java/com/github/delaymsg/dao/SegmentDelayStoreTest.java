@@ -0,0 +1,190 @@
+package com.github.delaymsg.dao;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HuaHui Yu 2026-10-18 19:41:12
+ **/
+class SegmentDelayStoreTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void storeAndScan() {
+        SegmentDelayStore delayStore = open(1 << 20);
+        long now = System.currentTimeMillis();
+        byte[] k1 = KeyUtils.buildKey(now - 1000L, 2L);
+        byte[] k2 = KeyUtils.buildKey(now - 1000L, 1L);
+        byte[] k3 = KeyUtils.buildKey(now - 5000L, 1L);
+        byte[] k4 = KeyUtils.buildKey(now + 60_000L, 1L);
+        store(delayStore, k1, k2, k3, k4);
+
+        // 跨时间桶按 key 顺序返回已到期的消息
+        List<DelayDto> due = delayStore.scanTodoMsg();
+        assertEquals(3, due.size());
+        assertArrayEquals(k3, due.get(0).getKey());
+        assertArrayEquals(k2, due.get(1).getKey());
+        assertArrayEquals(k1, due.get(2).getKey());
+        assertEquals("topic", due.get(0).getTopic());
+
+        assertEquals(2, delayStore.scanRange(KeyUtils.successor(k3), k4, 10).size());
+        assertEquals(1, delayStore.scanRange(k2, KeyUtils.successor(k2), 10).size());
+        assertEquals(0, delayStore.scanRange(k4, k1, 10).size());
+        assertEquals(now - 5000L, delayStore.peekEarliestTriggerTime());
+        assertEquals(now + 60_000L, delayStore.peekEarliestTriggerTime(KeyUtils.successor(k1)));
+        assertEquals(-1L, delayStore.peekEarliestTriggerTime(KeyUtils.successor(k4)));
+        assertEquals(4, delayStore.stats().getCount());
+    }
+
+    @Test
+    void batchDelete_removeFiles() {
+        SegmentDelayStore delayStore = open(1 << 20);
+        byte[] k1 = KeyUtils.buildKey(1000L, 1L);
+        byte[] k2 = KeyUtils.buildKey(1500L, 1L);
+        byte[] k3 = KeyUtils.buildKey(2000L, 1L);
+        store(delayStore, k1, k2, k3);
+        assertEquals(2, segmentFiles().length);
+
+        delayStore.batchDelete(Arrays.asList(k1, KeyUtils.buildKey(1000L, 9L)));
+        assertEquals(2, segmentFiles().length);
+        // 时间桶里的消息全部删除后，删除段文件
+        delayStore.batchDelete(Collections.singletonList(k2));
+        assertEquals(1, segmentFiles().length);
+        assertEquals(1, delayStore.stats().getCount());
+        assertEquals(2000L, delayStore.peekEarliestTriggerTime());
+        delayStore.batchDelete(Collections.singletonList(k3));
+        assertEquals(0, segmentFiles().length);
+        assertEquals(0, delayStore.stats().getBytes());
+    }
+
+    @Test
+    void recover() throws IOException {
+        SegmentDelayStore delayStore = open(1 << 20);
+        byte[] k1 = KeyUtils.buildKey(1000L, 1L);
+        byte[] k2 = KeyUtils.buildKey(1000L, 2L);
+        byte[] k3 = KeyUtils.buildKey(3000L, 1L);
+        store(delayStore, k2, k1, k3);
+        delayStore.batchDelete(Collections.singletonList(k1));
+        long bytes = delayStore.stats().getBytes();
+
+        // 模拟写入到一半时进程退出：记录末尾有不完整的数据
+        File file = Objects.requireNonNull(dir.listFiles((d, name) -> name.startsWith("3-")))[0];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(1L);
+            raf.seek(1 + 4 + KeyUtils.KEY_LENGTH + raf.readInt() + 4);
+            raf.writeByte(1);
+            raf.writeInt(8);
+            raf.write(new byte[]{1, 2, 3});
+        }
+
+        SegmentDelayStore reopened = open(1 << 20);
+        assertEquals(2, reopened.stats().getCount());
+        assertEquals(bytes, reopened.stats().getBytes());
+        List<DelayDto> list = reopened.scanRange(KeyUtils.lowerBound(0L), KeyUtils.lowerBound(Long.MAX_VALUE), 10);
+        assertEquals(2, list.size());
+        assertArrayEquals(k2, list.get(0).getKey());
+        assertArrayEquals(k3, list.get(1).getKey());
+
+        // 截断后继续追加，新文件号不覆盖已有文件
+        byte[] k4 = KeyUtils.buildKey(3000L, 2L);
+        byte[] k5 = KeyUtils.buildKey(5000L, 1L);
+        store(reopened, k4, k5);
+        assertEquals(4, open(1 << 20).scanRange(KeyUtils.lowerBound(0L), KeyUtils.lowerBound(Long.MAX_VALUE), 10).size());
+    }
+
+    @Test
+    void batchStore_growAndRoll() {
+        // 单个段文件最多约 3 条 100kb 的消息，超过初始映射大小后扩大映射，写满后换新文件
+        SegmentDelayStore delayStore = open(320 << 10);
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            keys.add(KeyUtils.buildKey(1000L, 10L - i));
+            DelayDto dto = dto();
+            dto.setPayload(new byte[100 << 10]);
+            dto.getPayload()[0] = (byte) i;
+            values.add(DelayDtoCodec.write(dto));
+        }
+        delayStore.batchStore(keys, values);
+        assertEquals(4, segmentFiles().length);
+
+        List<DelayDto> list = delayStore.scanRange(KeyUtils.lowerBound(0L), KeyUtils.lowerBound(2000L), 100);
+        assertEquals(10, list.size());
+        assertEquals(9, list.get(0).getPayload()[0]);
+        assertEquals(0, list.get(9).getPayload()[0]);
+
+        // 写满的文件全部删除后立即删除，正在追加的文件保留到整个时间桶删除
+        delayStore.batchDelete(keys.subList(0, 6));
+        assertEquals(2, segmentFiles().length);
+        assertEquals(4, open(320 << 10).stats().getCount());
+    }
+
+    @Test
+    void batchStore_rollbackOnFailure() {
+        SegmentDelayStore delayStore = open(64 << 10);
+        byte[] k1 = KeyUtils.buildKey(1000L, 1L);
+        byte[] k2 = KeyUtils.buildKey(1100L, 2L);
+        byte[] k3 = KeyUtils.buildKey(2000L, 3L);
+        DelayDto large = dto();
+        large.setPayload(new byte[128 << 10]);
+        List<byte[]> values = new ArrayList<>();
+        values.add(DelayDtoCodec.write(dto()));
+        values.add(DelayDtoCodec.write(dto()));
+        values.add(DelayDtoCodec.write(large));
+
+        // 同一时间桶的两条写入后，第三条超过段文件上限，整批撤销
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> delayStore.batchStore(Arrays.asList(k1, k2, k3), values));
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+        assertEquals(0, delayStore.stats().getCount());
+        assertEquals(-1L, delayStore.peekEarliestTriggerTime());
+
+        // 重试时不重复，重启后已撤销的记录不会恢复
+        store(delayStore, k1, k2);
+        assertEquals(2, delayStore.scanRange(KeyUtils.lowerBound(0L), KeyUtils.lowerBound(3000L), 10).size());
+        assertEquals(2, open(64 << 10).stats().getCount());
+    }
+
+    private SegmentDelayStore open(int maxSegmentBytes) {
+        return new SegmentDelayStore(dir, 1000L, maxSegmentBytes, Durability.SYNC);
+    }
+
+    private File[] segmentFiles() {
+        return Objects.requireNonNull(dir.listFiles((d, name) -> name.endsWith(".seg")));
+    }
+
+    private static void store(SegmentDelayStore delayStore, byte[]... keys) {
+        List<byte[]> values = new ArrayList<>();
+        for (byte[] ignored : keys) {
+            values.add(DelayDtoCodec.write(dto()));
+        }
+        delayStore.batchStore(Arrays.asList(keys), values);
+    }
+
+    private static DelayDto dto() {
+        DelayDto dto = new DelayDto();
+        dto.setTopic("topic");
+        dto.setPayload(new byte[]{'1'});
+        return dto;
+    }
+
+}
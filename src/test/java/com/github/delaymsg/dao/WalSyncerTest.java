@@ -0,0 +1,85 @@
+package com.github.delaymsg.dao;
+
+import org.junit.jupiter.api.Test;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author HuaHui Yu 2026-10-18 17:24:38
+ **/
+class WalSyncerTest {
+
+    @Test
+    void awaitSync_group() throws Exception {
+        WalSyncer walSyncer = new WalSyncer(50L, 10000);
+        List<RocksDB> dbs = new ArrayList<>();
+        CountDownLatch synced = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            RocksDB db = mock(RocksDB.class);
+            dbs.add(db);
+            new Thread(() -> {
+                try {
+                    walSyncer.awaitSync(db, 1);
+                    synced.countDown();
+                } catch (RocksDBException e) {
+                    throw new IllegalStateException(e);
+                }
+            }).start();
+        }
+
+        assertTrue(synced.await(5, TimeUnit.SECONDS));
+        // 每个数据库都落盘了，写入返回前不会漏掉
+        for (RocksDB db : dbs) {
+            verify(db, atLeastOnce()).syncWal();
+        }
+    }
+
+    @Test
+    void awaitSync_groupSize() throws RocksDBException {
+        // 时间窗口足够长，记录数达到上限后立即落盘
+        WalSyncer walSyncer = new WalSyncer(60_000L, 10);
+        RocksDB db = mock(RocksDB.class);
+        long start = System.currentTimeMillis();
+        walSyncer.awaitSync(db, 10);
+        assertTrue(System.currentTimeMillis() - start < 30_000L);
+        verify(db, times(1)).syncWal();
+    }
+
+    @Test
+    void awaitSync_failed() throws RocksDBException {
+        WalSyncer walSyncer = new WalSyncer(0L, 10000);
+        RocksDB db = mock(RocksDB.class);
+        doThrow(new RocksDBException("io error")).when(db).syncWal();
+
+        assertThrows(RocksDBException.class, () -> walSyncer.awaitSync(db, 1));
+    }
+
+    @Test
+    void awaitSync_failedRoundOnly() throws RocksDBException {
+        // 每轮的失败只影响这一轮的写入
+        WalSyncer walSyncer = new WalSyncer(0L, 10000);
+        RocksDB db = mock(RocksDB.class);
+        doThrow(new RocksDBException("io error")).doNothing().when(db).syncWal();
+
+        assertThrows(RocksDBException.class, () -> walSyncer.awaitSync(db, 1));
+        walSyncer.awaitSync(db, 1);
+        verify(db, times(2)).syncWal();
+    }
+
+    @Test
+    void durability_of() {
+        assertEquals(Durability.GROUP, Durability.of(" group "));
+        assertThrows(IllegalArgumentException.class, () -> Durability.of("fsync"));
+    }
+
+}
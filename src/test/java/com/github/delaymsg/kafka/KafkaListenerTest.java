@@ -1,16 +1,23 @@
 package com.github.delaymsg.kafka;
 
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
@@ -22,7 +29,7 @@ import static org.mockito.Mockito.*;
 class KafkaListenerTest {
 
     @SuppressWarnings("unchecked")
-    KafkaConsumer<String, String> kafkaConsumer = mock(KafkaConsumer.class);
+    KafkaConsumer<byte[], byte[]> kafkaConsumer = mock(KafkaConsumer.class);
 
     KafkaListener kafkaListener = spy(new KafkaListener(kafkaConsumer));
 
@@ -34,15 +41,65 @@ class KafkaListenerTest {
 
     @Test
     void subscribe() {
-        List<ConsumerRecord<String, String>> records1 = new ArrayList<>();
-        records1.add(new ConsumerRecord<>("topicName", 1, 0, "1", "2222"));
-        Map<TopicPartition, List<ConsumerRecord<String, String>>> map = new HashMap<>();
+        List<ConsumerRecord<byte[], byte[]>> records1 = new ArrayList<>();
+        records1.add(new ConsumerRecord<>("topicName", 1, 0, null, new byte[]{1}));
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> map = new HashMap<>();
         map.put(new TopicPartition("topicName", 1), records1);
-        ConsumerRecords<String, String> records = new ConsumerRecords<>(map);
+        ConsumerRecords<byte[], byte[]> records = new ConsumerRecords<>(map);
         doReturn(records).when(kafkaConsumer).poll(anyLong());
 
         kafkaListener.subscribe("topicName", (s) -> Thread.currentThread().interrupt());
         verify(kafkaConsumer, times(1)).commitAsync(any());
     }
 
+    @Test
+    void subscribe_committable() {
+        doReturn(ConsumerRecords.empty()).when(kafkaConsumer).poll(anyLong());
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        offsets.put(new TopicPartition("topicName", 1), new OffsetAndMetadata(10L));
+
+        // 没有新消息时，也会提交其它线程处理完的偏移量
+        kafkaListener.subscribe(Collections.singleton("topicName"), records -> {
+        }, () -> {
+            Thread.currentThread().interrupt();
+            return offsets;
+        });
+        verify(kafkaConsumer, times(1)).commitAsync(eq(offsets), any());
+    }
+
+    @Test
+    void subscribe_rebalance() {
+        doReturn(ConsumerRecords.empty()).when(kafkaConsumer).poll(anyLong());
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        TopicPartition partition = new TopicPartition("topicName", 1);
+        offsets.put(partition, new OffsetAndMetadata(10L));
+        List<String> events = new ArrayList<>();
+        ConsumerRebalanceListener listener = new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                events.add("revoked");
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                events.add("assigned");
+            }
+        };
+
+        kafkaListener.subscribe(Collections.singleton("topicName"), records -> {
+        }, () -> {
+            Thread.currentThread().interrupt();
+            return offsets;
+        }, listener);
+        ArgumentCaptor<ConsumerRebalanceListener> captor = ArgumentCaptor.forClass(ConsumerRebalanceListener.class);
+        verify(kafkaConsumer).subscribe(eq(Collections.singleton("topicName")), captor.capture());
+
+        // 交出分区前先通知监听器，再同步提交偏移量
+        captor.getValue().onPartitionsRevoked(Collections.singleton(partition));
+        verify(kafkaConsumer, times(1)).commitSync(offsets);
+        captor.getValue().onPartitionsAssigned(Collections.singleton(partition));
+        assertEquals(Arrays.asList("revoked", "assigned"), events);
+        Thread.interrupted();
+    }
+
 }
@@ -1,16 +1,29 @@
 package com.github.delaymsg.kafka;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @author HuaHui Yu 2024-08-26 17:19:53
@@ -18,9 +31,8 @@ import static org.mockito.Mockito.verify;
 class KafkaSenderTest {
 
     @Mock
-    KafkaProducer<String, String> kafkaProducer;
+    KafkaProducer<String, byte[]> kafkaProducer;
 
-    @InjectMocks
     KafkaSender kafkaSender;
 
     @Test
@@ -37,9 +49,72 @@ class KafkaSenderTest {
         verify(kafkaProducer, times(1)).send(any(), any());
     }
 
+    @Test
+    void send_producerPool() {
+        List<MockProducer<String, byte[]>> producers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            producers.add(new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()));
+        }
+        KafkaSender pool = new KafkaSender(producers);
+        for (int i = 0; i < 100; i++) {
+            pool.send("topic", "key-" + i, "msg", null);
+            pool.send(new ProducerRecord<>("topic", "same-key", new byte[]{(byte) i}), null);
+        }
+
+        // 同一个 key 的消息由同一个 producer 按顺序发送，不同 key 分散到多个 producer
+        int used = 0;
+        for (MockProducer<String, byte[]> producer : producers) {
+            List<ProducerRecord<String, byte[]>> sameKey = new ArrayList<>();
+            for (ProducerRecord<String, byte[]> record : producer.history()) {
+                if ("same-key".equals(record.key())) {
+                    sameKey.add(record);
+                }
+            }
+            if (!sameKey.isEmpty()) {
+                assertEquals(100, sameKey.size());
+                for (int i = 0; i < sameKey.size(); i++) {
+                    assertEquals((byte) i, sameKey.get(i).value()[0]);
+                }
+            }
+            used += producer.history().isEmpty() ? 0 : 1;
+        }
+        assertTrue(used > 1);
+        assertTrue(pool.metrics().startsWith("producer-0{sendRate="));
+    }
+
+    @Test
+    void send_syncFailure() {
+        TimeoutException timeout = new TimeoutException("Failed to update metadata");
+        when(kafkaProducer.send(any(), any())).thenThrow(timeout);
+        List<Exception> failures = new ArrayList<>();
+
+        // 同步抛出的异常回调给调用方
+        kafkaSender.send(new ProducerRecord<>("topic", "key", new byte[]{1}), (metadata, exception) -> failures.add(exception));
+        assertEquals(1, failures.size());
+        assertSame(timeout, failures.get(0));
+    }
+
+    @Test
+    void producerFor_withoutMetadata() {
+        List<MockProducer<String, byte[]>> producers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            MockProducer<String, byte[]> producer = spy(new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer()));
+            producers.add(producer);
+        }
+        KafkaSender pool = new KafkaSender(producers);
+        ProducerRecord<String, byte[]> record = new ProducerRecord<>("topic", "key", new byte[]{1});
+
+        // 按 key 选择 producer ，不查询 topic 元数据
+        assertSame(pool.producerFor(record), pool.producerFor(record));
+        for (MockProducer<String, byte[]> producer : producers) {
+            verify(producer, never()).partitionsFor(any());
+        }
+    }
+
     @BeforeEach
     private void setUp() {
         MockitoAnnotations.openMocks(this);
+        kafkaSender = new KafkaSender(kafkaProducer);
     }
 
 }
\ No newline at end of file
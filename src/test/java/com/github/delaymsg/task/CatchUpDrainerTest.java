@@ -0,0 +1,163 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.MemoryDelayStore;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+/**
+ * @author HuaHui Yu 2026-10-18 23:36:15
+ **/
+class CatchUpDrainerTest {
+
+    @Mock
+    KafkaSender kafkaSender;
+
+    MemoryDelayStore store = new MemoryDelayStore();
+
+    NearTermWheel nearTermWheel;
+
+    long now = System.currentTimeMillis();
+
+    @Test
+    void drain_overdue() throws InterruptedException {
+        // 积压 1 小时的到期消息，第 7 条发送失败，第 8 条失败过
+        for (long seq = 1; seq <= 100; seq++) {
+            store(now - 3600_000L + seq * 30_000L, seq, seq == 8 ? 1 : 0);
+        }
+        store(now + 3600_000L, 101L, 0);
+        AtomicInteger sent = new AtomicInteger();
+        doAnswer(invocation -> {
+            ProducerRecord<String, byte[]> record = invocation.getArgument(0);
+            Callback callback = invocation.getArgument(1);
+            sent.incrementAndGet();
+            callback.onCompletion(null, "7".equals(record.key()) ? new RuntimeException("send failed") : null);
+            return null;
+        }).when(kafkaSender).send(any(), any());
+
+        // 积压未超过阈值
+        assertFalse(new CatchUpDrainer(store, kafkaSender, 1000L, 3, 5).drainIfBehind(now, nearTermWheel, () -> {
+        }));
+        assertEquals(0, sent.get());
+
+        CatchUpDrainer catchUpDrainer = new CatchUpDrainer(store, kafkaSender, 50L, 3, 5);
+        assertTrue(catchUpDrainer.drainIfBehind(now, nearTermWheel, () -> {
+        }));
+        awaitDrained(catchUpDrainer);
+        assertEquals(99, sent.get());
+        // 发送失败、失败过、未到期的消息留在本地数据库
+        List<DelayDto> remaining = store.scanRange(KeyUtils.lowerBound(0L), KeyUtils.lowerBound(Long.MAX_VALUE), 100);
+        assertEquals(3, remaining.size());
+        assertEquals("7", remaining.get(0).getMessageKey());
+        assertEquals("8", remaining.get(1).getMessageKey());
+        assertEquals("101", remaining.get(2).getMessageKey());
+
+        // 追赶完成后时间轮回到起点重新预读，转发剩余的到期消息；检查间隔内不再追赶
+        assertFalse(catchUpDrainer.drainIfBehind(now + 1, nearTermWheel, () -> {
+        }));
+        List<NearTermWheel.DueMsg> due = new ArrayList<>();
+        nearTermWheel.poll(now + 1, due::add);
+        assertEquals(2, due.size());
+        assertEquals("7", due.get(0).getRecord().key());
+        assertEquals("8", due.get(1).getRecord().key());
+        assertEquals(99, sent.get());
+    }
+
+    @Test
+    void drain_inBackground() throws InterruptedException {
+        for (long seq = 1; seq <= 10; seq++) {
+            store(now - 60_000L + seq, seq, 0);
+        }
+        CountDownLatch blocked = new CountDownLatch(1);
+        Map<String, AtomicInteger> sends = new ConcurrentHashMap<>();
+        doAnswer(invocation -> {
+            ProducerRecord<String, byte[]> record = invocation.getArgument(0);
+            Callback callback = invocation.getArgument(1);
+            sends.computeIfAbsent(record.key(), k -> new AtomicInteger()).incrementAndGet();
+            blocked.await(5, TimeUnit.SECONDS);
+            callback.onCompletion(null, null);
+            return null;
+        }).when(kafkaSender).send(any(), any());
+        CatchUpDrainer catchUpDrainer = new CatchUpDrainer(store, kafkaSender, 5L, 1, 100);
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(catchUpDrainer.drainIfBehind(now, nearTermWheel, done::countDown));
+
+        // 追赶期间时间轮照常转发追赶范围之后到期的消息
+        byte[] later = store(now + 5, 20L, 0);
+        byte[] overdue = store(now - 30_000L, 21L, 0);
+        nearTermWheel.offer(Collections.singletonList(dto(overdue, 21L, 0)));
+        List<NearTermWheel.DueMsg> due = new ArrayList<>();
+        nearTermWheel.poll(now + 20, due::add);
+        assertTrue(catchUpDrainer.isRunning());
+        assertEquals(1, due.size());
+        assertEquals(KeyUtils.toString(later), KeyUtils.toString(due.get(0).getKey()));
+
+        blocked.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        awaitDrained(catchUpDrainer);
+        catchUpDrainer.drainIfBehind(now + 30, nearTermWheel, () -> {
+        });
+        // 追赶范围内 offer 的消息已由追赶模式转发、删除，时间轮不再转发
+        nearTermWheel.poll(now + 30, due::add);
+        assertEquals(1, due.size());
+        assertEquals(11, sends.size());
+        for (AtomicInteger count : sends.values()) {
+            assertEquals(1, count.get());
+        }
+    }
+
+    private static void awaitDrained(CatchUpDrainer catchUpDrainer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (catchUpDrainer.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertFalse(catchUpDrainer.isRunning());
+    }
+
+    private byte[] store(long triggerTime, long seq, int attempts) {
+        byte[] key = KeyUtils.buildKey(triggerTime, seq);
+        store.batchStore(Collections.singletonList(key), Collections.singletonList(DelayDtoCodec.write(dto(key, seq, attempts))));
+        return key;
+    }
+
+    private static DelayDto dto(byte[] key, long seq, int attempts) {
+        DelayDto dto = new DelayDto();
+        dto.setKey(key);
+        dto.setTopic("11");
+        dto.setMessageKey(String.valueOf(seq));
+        dto.setPayload("122".getBytes(StandardCharsets.UTF_8));
+        dto.setTriggerTime(KeyUtils.extractTriggerTime(key));
+        dto.setAttempts(attempts);
+        return dto;
+    }
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        nearTermWheel = new NearTermWheel(store, 0L);
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.DelayStore;
+import com.github.delaymsg.dao.MemoryDelayStore;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HuaHui Yu 2026-10-18 22:08:51
+ **/
+class ChangelogTest {
+
+    static final String TOPIC = "delay_changelog";
+
+    static final TopicPartition P0 = new TopicPartition(TOPIC, 0);
+
+    static final TopicPartition P1 = new TopicPartition(TOPIC, 1);
+
+    MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+
+    MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+
+    Map<TopicPartition, Long> endOffsets = new HashMap<>();
+
+    Thread standbyThread;
+
+    @Test
+    void publish_storeAndDelete() {
+        MemoryDelayStore local = new MemoryDelayStore();
+        DelayStore delayStore = new Changelog(producer, consumer, TOPIC, true).publishing(1, local);
+        byte[] k1 = KeyUtils.buildKey(1000L, 1L);
+        byte[] k2 = KeyUtils.buildKey(2000L, 1L);
+        store(delayStore, k1, k2);
+        delayStore.batchDelete(Collections.singletonList(k1));
+
+        // 写入、删除都发布到分片号对应的分区，删除为墓碑消息
+        List<ProducerRecord<byte[], byte[]>> history = producer.history();
+        assertEquals(3, history.size());
+        assertEquals(1, history.get(0).partition());
+        assertArrayEquals(k2, history.get(1).key());
+        assertEquals("topic", DelayDtoCodec.read(history.get(1).value()).getTopic());
+        assertArrayEquals(k1, history.get(2).key());
+        assertNull(history.get(2).value());
+        assertEquals(1, local.stats().getCount());
+    }
+
+    @Test
+    void standby_takeOver() throws InterruptedException {
+        // 主节点写入分区 0 ，发布到 changelog
+        DelayStore primary = new Changelog(producer, consumer, TOPIC, true).publishing(0, new MemoryDelayStore());
+        byte[] k1 = KeyUtils.buildKey(1000L, 1L);
+        byte[] k2 = KeyUtils.buildKey(2000L, 1L);
+        byte[] k3 = KeyUtils.buildKey(3000L, 1L);
+        store(primary, k1, k2);
+        primary.batchDelete(Collections.singletonList(k1));
+
+        // 备份节点启动后从头备份所有分区，只备份不转发
+        Map<Integer, DelayStore> stores = new ConcurrentHashMap<>();
+        AtomicInteger transfers = new AtomicInteger();
+        Changelog changelog = new Changelog(new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer()),
+                consumer, TOPIC, true);
+        PartitionShards shards = new PartitionShards(partition -> stores.computeIfAbsent(partition, p -> new MemoryDelayStore()),
+                delayStore -> {
+                    transfers.incrementAndGet();
+                    return new PartitionShards.Transfer(new TriggerSignal(), new NearTermWheel(delayStore, 0L), new CompletableFuture<>());
+                }, changelog);
+        standbyThread = new Thread(changelog);
+        standbyThread.start();
+        await(() -> consumer.assignment().size() == 2);
+        replicate();
+        await(() -> stores.containsKey(0) && stores.get(0).stats().getCount() == 1);
+        assertEquals(0, transfers.get());
+
+        // 主节点宕机前最后一批写入还没有备份，接管时先追上 changelog 末尾再转发
+        store(primary, k3);
+        replicate();
+        shards.assigned(Collections.singleton(new TopicPartition("delay", 0)));
+        List<DelayDto> list = stores.get(0).scanRange(KeyUtils.lowerBound(0L), KeyUtils.lowerBound(Long.MAX_VALUE), 10);
+        assertEquals(2, list.size());
+        assertArrayEquals(k2, list.get(0).getKey());
+        assertArrayEquals(k3, list.get(1).getKey());
+        assertTrue(shards.shard(0).isActive());
+        assertEquals(1, transfers.get());
+        assertEquals(Collections.singleton(P1), consumer.assignment());
+
+        // 分区被收回后停止转发，从 changelog 末尾继续备份
+        shards.revoked(Collections.singleton(new TopicPartition("delay", 0)));
+        assertFalse(shards.shard(0).isActive());
+        await(() -> consumer.assignment().size() == 2);
+    }
+
+    @Test
+    void lanes_rejected() {
+        // 优先级通道的消息不会复制，启动时直接失败
+        Changelog changelog = new Changelog(producer, consumer, TOPIC, true);
+        PriorityLanes lanes = new PriorityLanes(Collections.singletonMap("high", 4), Collections.emptyMap());
+        assertThrows(IllegalArgumentException.class, () -> new PartitionShards((partition, lane) -> new MemoryDelayStore(),
+                (delayStore, lane) -> new PartitionShards.Transfer(new TriggerSignal(), new NearTermWheel(delayStore, 0L),
+                        new CompletableFuture<>()), changelog, lanes));
+    }
+
+    /**
+     * 把主节点发布的 changelog 交给备份节点的消费者
+     */
+    private void replicate() {
+        for (ProducerRecord<byte[], byte[]> record : producer.history()) {
+            TopicPartition partition = new TopicPartition(TOPIC, record.partition());
+            long offset = endOffsets.get(partition);
+            consumer.addRecord(new ConsumerRecord<>(TOPIC, record.partition(), offset, record.key(), record.value()));
+            endOffsets.put(partition, offset + 1);
+        }
+        producer.clear();
+        consumer.updateEndOffsets(endOffsets);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static void store(DelayStore delayStore, byte[]... keys) {
+        DelayDto dto = new DelayDto();
+        dto.setTopic("topic");
+        dto.setPayload(new byte[]{'1'});
+        byte[][] values = new byte[keys.length][];
+        Arrays.fill(values, DelayDtoCodec.write(dto));
+        delayStore.batchStore(Arrays.asList(keys), Arrays.asList(values));
+    }
+
+    @BeforeEach
+    void setUp() {
+        consumer.updatePartitions(TOPIC, Arrays.asList(new PartitionInfo(TOPIC, 0, null, null, null),
+                new PartitionInfo(TOPIC, 1, null, null, null)));
+        endOffsets.put(P0, 0L);
+        endOffsets.put(P1, 0L);
+        consumer.updateBeginningOffsets(new HashMap<>(endOffsets));
+        consumer.updateEndOffsets(endOffsets);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (standbyThread != null) {
+            standbyThread.interrupt();
+            standbyThread.join();
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author HuaHui Yu 2026-10-18 15:46:19
+ **/
+class IngestPipelineTest {
+
+    static final String MSG = "{\"topic\":\"1\",\"messageKey\":\"1\",\"message\":\"1\",\"triggerTime\":1}";
+
+    static final TopicPartition P0 = new TopicPartition("delay", 0);
+
+    static final TopicPartition P1 = new TopicPartition("delay", 1);
+
+    List<DelayDto> written = Collections.synchronizedList(new ArrayList<>());
+
+    IngestPipeline pipeline;
+
+    @Test
+    void publish_commitAfterWrite() throws InterruptedException {
+        pipeline = new IngestPipeline(MsgStoreTask::toDelayDto, (partition, keys, values, stored) -> {
+            for (int i = 0; i < keys.size(); i++) {
+                DelayDto dto = DelayDtoCodec.read(values.get(i));
+                assertArrayEquals(keys.get(i), stored.get(i).getKey());
+                assertEquals("1", dto.getTopic());
+            }
+            written.addAll(stored);
+        }, 2);
+        pipeline.start();
+
+        pipeline.publish(records());
+        Map<TopicPartition, OffsetAndMetadata> offsets = awaitCommittable(2);
+
+        // 异常消息丢弃，偏移量照常提交
+        assertEquals(3, written.size());
+        assertEquals(3L, offsets.get(P0).offset());
+        assertEquals(8L, offsets.get(P1).offset());
+        assertTrue(pipeline.committable().isEmpty());
+    }
+
+    @Test
+    void publish_retryFailedWrite() throws InterruptedException {
+        AtomicBoolean failed = new AtomicBoolean();
+        pipeline = new IngestPipeline(MsgStoreTask::toDelayDto, (partition, keys, values, stored) -> {
+            if (failed.compareAndSet(false, true)) {
+                throw new IllegalStateException("disk full");
+            }
+            written.addAll(stored);
+        }, 1);
+        pipeline.start();
+
+        pipeline.publish(records());
+        // 写入失败时不登记偏移量
+        assertTrue(pipeline.committable().isEmpty());
+        Map<TopicPartition, OffsetAndMetadata> offsets = awaitCommittable(2);
+        assertEquals(3, written.size());
+        assertEquals(2, offsets.size());
+    }
+
+    @Test
+    void publish_fastPath() throws InterruptedException {
+        KafkaSender kafkaSender = mock(KafkaSender.class);
+        List<Callback> callbacks = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            ProducerRecord<String, byte[]> record = invocation.getArgument(0);
+            assertEquals("1", record.topic());
+            callbacks.add(invocation.getArgument(1));
+            return null;
+        }).when(kafkaSender).send(any(), any());
+        pipeline = new IngestPipeline(MsgStoreTask::toDelayDto, (partition, keys, values, stored) -> written.addAll(stored),
+                2, kafkaSender, 0L);
+        pipeline.start();
+
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> map = new HashMap<>();
+        List<ConsumerRecord<byte[], byte[]>> p0 = new ArrayList<>();
+        long future = System.currentTimeMillis() / 1000 + 3600;
+        p0.add(new ConsumerRecord<>("delay", 0, 1, null, bytes(MSG)));
+        p0.add(new ConsumerRecord<>("delay", 0, 2, null, bytes(MSG.replace("\"triggerTime\":1", "\"triggerTime\":" + future))));
+        p0.add(new ConsumerRecord<>("delay", 0, 3, null, bytes(MSG)));
+        map.put(P0, p0);
+        pipeline.publish(new ConsumerRecords<>(map));
+
+        // 已到期的消息直接发送，不写入本地数据库；发送完成前不登记偏移量
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (callbacks.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(2, callbacks.size());
+        assertEquals(1, written.size());
+        assertEquals(future * 1000, written.get(0).getTriggerTime());
+        assertTrue(pipeline.committable().isEmpty());
+
+        // 发送失败的消息改为写入本地数据库
+        callbacks.get(0).onCompletion(null, null);
+        callbacks.get(1).onCompletion(null, new IllegalStateException("timeout"));
+        Map<TopicPartition, OffsetAndMetadata> offsets = awaitCommittable(1);
+        assertEquals(4L, offsets.get(P0).offset());
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    void publish_parserAndSendFailure() throws InterruptedException {
+        KafkaSender kafkaSender = mock(KafkaSender.class);
+        doThrow(new IllegalStateException("metadata timeout")).when(kafkaSender).send(any(), any());
+        pipeline = new IngestPipeline(record -> {
+            if (record.offset() == 7) {
+                throw new IllegalArgumentException("bad record");
+            }
+            return MsgStoreTask.toDelayDto(record);
+        }, (partition, keys, values, stored) -> written.addAll(stored), 2, kafkaSender, 0L);
+        pipeline.start();
+
+        pipeline.publish(records());
+        // 解析异常的消息丢弃，直接发送异常的消息写入本地数据库，偏移量照常提交
+        Map<TopicPartition, OffsetAndMetadata> offsets = awaitCommittable(2);
+        assertEquals(2, written.size());
+        assertEquals(3L, offsets.get(P0).offset());
+        assertEquals(8L, offsets.get(P1).offset());
+    }
+
+    @Test
+    void publish_stopOnUnexpectedFailure() throws InterruptedException {
+        pipeline = new IngestPipeline(MsgStoreTask::toDelayDto, (partition, keys, values, stored) -> {
+            throw new AssertionError("unexpected");
+        }, 1);
+        pipeline.start();
+
+        pipeline.publish(records());
+        // 处理线程异常后不登记偏移量，消费线程不再放入新消息
+        assertFalse(pipeline.awaitIdle(5000L));
+        assertTrue(awaitCommittable(1).isEmpty());
+        assertThrows(IllegalStateException.class, () -> pipeline.publish(records()));
+    }
+
+    @Test
+    void awaitIdle_writePerPartition() {
+        Map<TopicPartition, Integer> partitions = new ConcurrentHashMap<>();
+        pipeline = new IngestPipeline(MsgStoreTask::toDelayDto, (partition, keys, values, stored) -> {
+            partitions.merge(partition, keys.size(), Integer::sum);
+            written.addAll(stored);
+        }, 2);
+        pipeline.start();
+        assertTrue(pipeline.awaitIdle(0L));
+
+        pipeline.publish(records());
+        // 按分区分批写入，处理完后偏移量立即可以提交
+        assertTrue(pipeline.awaitIdle(5000L));
+        assertEquals(1, partitions.get(P0));
+        assertEquals(2, partitions.get(P1));
+        assertEquals(2, pipeline.committable().size());
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> awaitCommittable(int partitions) throws InterruptedException {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (offsets.size() < partitions && System.currentTimeMillis() < deadline) {
+            offsets.putAll(pipeline.committable());
+            Thread.sleep(10L);
+        }
+        return offsets;
+    }
+
+    private static ConsumerRecords<byte[], byte[]> records() {
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> map = new HashMap<>();
+        List<ConsumerRecord<byte[], byte[]>> p0 = new ArrayList<>();
+        p0.add(new ConsumerRecord<>("delay", 0, 1, null, bytes(MSG)));
+        p0.add(new ConsumerRecord<>("delay", 0, 2, null, bytes("{111}")));
+        List<ConsumerRecord<byte[], byte[]>> p1 = new ArrayList<>();
+        p1.add(new ConsumerRecord<>("delay", 1, 6, null, bytes(MSG)));
+        p1.add(new ConsumerRecord<>("delay", 1, 7, null, bytes(MSG)));
+        map.put(P0, p0);
+        map.put(P1, p1);
+        return new ConsumerRecords<>(map);
+    }
+
+    private static byte[] bytes(String msg) {
+        return msg.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.shutdown();
+    }
+
+}
@@ -1,28 +1,48 @@
 package com.github.delaymsg.task;
 
 import com.github.delaymsg.dao.DelayMsgDao;
+import com.github.delaymsg.dao.DelayStore;
+import com.github.delaymsg.dto.DelayDto;
 import com.github.delaymsg.kafka.KafkaListener;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.DelayMsgParser;
+import com.github.delaymsg.utils.KeyUtils;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EmptySource;
 import org.junit.jupiter.params.provider.ValueSource;
-import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @author HuaHui Yu 2024-08-26 10:25:30
@@ -35,7 +55,15 @@ class MsgStoreTaskTest {
     @Mock
     KafkaListener consumer;
 
-    @InjectMocks
+    @Mock
+    KafkaSender kafkaSender;
+
+    @Mock
+    TriggerSignal triggerSignal;
+
+    @Mock
+    NearTermWheel nearTermWheel;
+
     MsgStoreTask msgStoreTask;
 
     @ParameterizedTest
@@ -51,27 +79,167 @@ class MsgStoreTaskTest {
             , "{\"topic\":\"1\",\"messageKey\":\"1\",\"message\":null,\"triggerTime\":1}"
     })
     void storeMsg_bad_msg(String msg) {
-        List<ConsumerRecord<String, String>> records1 = new ArrayList<>();
-        records1.add(new ConsumerRecord<>("1", 1, 0, "1", msg));
-        Map<TopicPartition, List<ConsumerRecord<String, String>>> map = new HashMap<>();
+        List<ConsumerRecord<byte[], byte[]>> records1 = new ArrayList<>();
+        records1.add(new ConsumerRecord<>("1", 1, 0, null, msg.getBytes(StandardCharsets.UTF_8)));
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> map = new HashMap<>();
         map.put(new TopicPartition("1", 1), records1);
-        ConsumerRecords<String, String> records = new ConsumerRecords<>(map);
+        ConsumerRecords<byte[], byte[]> records = new ConsumerRecords<>(map);
         msgStoreTask.storeMsg(records);
         verify(delayDao, times(0)).batchStore(any(), anyList());
+        verify(triggerSignal, never()).signal(anyLong());
     }
 
     @Test
     void storeMsg() {
-        List<ConsumerRecord<String, String>> records1 = new ArrayList<>();
-        records1.add(new ConsumerRecord<>("1", 1, 0, "1",
-                "{\"topic\":\"1\",\"messageKey\":\"1\",\"message\":\"1\",\"triggerTime\":1}"));
-        Map<TopicPartition, List<ConsumerRecord<String, String>>> map = new HashMap<>();
+        List<ConsumerRecord<byte[], byte[]>> records1 = new ArrayList<>();
+        records1.add(new ConsumerRecord<>("1", 1, 0, null,
+                "{\"topic\":\"1\",\"messageKey\":\"1\",\"message\":\"1\",\"triggerTime\":1}".getBytes(StandardCharsets.UTF_8)));
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> map = new HashMap<>();
         map.put(new TopicPartition("1", 1), records1);
-        ConsumerRecords<String, String> records = new ConsumerRecords<>(map);
+        ConsumerRecords<byte[], byte[]> records = new ConsumerRecords<>(map);
+        when(nearTermWheel.offer(anyList())).thenReturn(1000L);
 
         msgStoreTask.storeMsg(records);
 
         verify(delayDao, times(1)).batchStore(any(), anyList());
+        verify(nearTermWheel, times(1)).offer(anyList());
+        verify(triggerSignal, times(1)).signal(1000L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void storeMsg_headers() {
+        // 两种协议可以发送到同一个 topic
+        List<ConsumerRecord<byte[], byte[]>> records1 = new ArrayList<>();
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(DelayMsgParser.TOPIC_HEADER, "1".getBytes(StandardCharsets.UTF_8));
+        headers.add(DelayMsgParser.TRIGGER_TIME_HEADER, "1".getBytes(StandardCharsets.UTF_8));
+        records1.add(new ConsumerRecord<>("1", 1, 0, 0L, TimestampType.CREATE_TIME, 0L, 0, 2, null, new byte[]{0, 1}, headers));
+        RecordHeaders badHeaders = new RecordHeaders();
+        badHeaders.add(DelayMsgParser.TOPIC_HEADER, "".getBytes(StandardCharsets.UTF_8));
+        badHeaders.add(DelayMsgParser.TRIGGER_TIME_HEADER, "1".getBytes(StandardCharsets.UTF_8));
+        records1.add(new ConsumerRecord<>("1", 1, 1, 0L, TimestampType.CREATE_TIME, 0L, 0, 2, null, new byte[]{0, 1}, badHeaders));
+        records1.add(new ConsumerRecord<>("1", 1, 2, null,
+                "{\"topic\":\"1\",\"messageKey\":\"1\",\"message\":\"1\",\"triggerTime\":1}".getBytes(StandardCharsets.UTF_8)));
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> map = new HashMap<>();
+        map.put(new TopicPartition("1", 1), records1);
+
+        msgStoreTask.storeMsg(new ConsumerRecords<>(map));
+
+        ArgumentCaptor<List<byte[]>> values = ArgumentCaptor.forClass(List.class);
+        verify(delayDao, times(1)).batchStore(any(), values.capture());
+        assertEquals(2, values.getValue().size());
+        DelayDto dto = DelayDtoCodec.read(values.getValue().get(0));
+        assertArrayEquals(new byte[]{0, 1}, dto.getPayload());
+        assertEquals(1000L, dto.getTriggerTime());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void storeMsg_partitionShards() {
+        // 每个分区的消息只写入该分区的分片
+        Map<Integer, DelayMsgDao> daos = new HashMap<>();
+        PartitionShards shards = new PartitionShards(partition -> {
+            DelayMsgDao dao = mock(DelayMsgDao.class);
+            daos.put(partition, dao);
+            return dao;
+        }, this::transfer);
+        Map<TopicPartition, List<ConsumerRecord<byte[], byte[]>>> map = new HashMap<>();
+        String msg = "{\"topic\":\"1\",\"messageKey\":\"1\",\"message\":\"1\",\"triggerTime\":1}";
+        for (int partition = 0; partition < 2; partition++) {
+            List<ConsumerRecord<byte[], byte[]>> records1 = new ArrayList<>();
+            for (int i = 0; i <= partition; i++) {
+                records1.add(new ConsumerRecord<>("1", partition, i, null, msg.getBytes(StandardCharsets.UTF_8)));
+            }
+            map.put(new TopicPartition("1", partition), records1);
+        }
+
+        new MsgStoreTask(shards, consumer, kafkaSender).storeMsg(new ConsumerRecords<>(map));
+
+        assertEquals(2, shards.size());
+        for (int partition = 0; partition < 2; partition++) {
+            ArgumentCaptor<List<byte[]>> values = ArgumentCaptor.forClass(List.class);
+            verify(daos.get(partition), times(1)).batchStore(any(), values.capture());
+            assertEquals(partition + 1, values.getValue().size());
+        }
+        // 同一个分区在进程内的消费线程之间迁移，仍使用同一个分片
+        shards.revoked(Collections.singleton(new TopicPartition("1", 1)));
+        shards.assigned(Collections.singleton(new TopicPartition("1", 1)));
+        assertEquals(2, shards.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void storeMsg_priorityLanes() {
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("critical", 4);
+        PriorityLanes lanes = new PriorityLanes(weights, Collections.singletonMap("payment_timeout", "critical"));
+        List<DelayMsgDao> daos = new ArrayList<>();
+        List<Integer> transferLanes = new ArrayList<>();
+        PartitionShards shards = new PartitionShards((partition, lane) -> {
+            DelayMsgDao dao = mock(DelayMsgDao.class);
+            daos.add(dao);
+            return dao;
+        }, (delayStore, lane) -> {
+            transferLanes.add(lane);
+            return transfer(delayStore);
+        }, null, lanes);
+        List<ConsumerRecord<byte[], byte[]>> records1 = new ArrayList<>();
+        String[] msgs = {"{\"topic\":\"payment_timeout\",\"message\":\"1\",\"triggerTime\":1}",
+                "{\"topic\":\"reminder\",\"message\":\"1\",\"triggerTime\":1}",
+                "{\"topic\":\"reminder\",\"message\":\"1\",\"triggerTime\":1,\"priority\":\"critical\"}",
+                "{\"topic\":\"payment_timeout\",\"message\":\"1\",\"triggerTime\":1,\"priority\":\"unknown\"}"};
+        for (int i = 0; i < msgs.length; i++) {
+            records1.add(new ConsumerRecord<>("1", 0, i, null, msgs[i].getBytes(StandardCharsets.UTF_8)));
+        }
+
+        new MsgStoreTask(shards, consumer, kafkaSender).storeMsg(
+                new ConsumerRecords<>(Collections.singletonMap(new TopicPartition("1", 0), records1)));
+
+        // 每个通道一个本地存储、一个转发线程；priority 优先，其次按 topic ，未知的通道名按 topic 处理
+        assertEquals(2, daos.size());
+        assertEquals(Arrays.asList(0, 1), transferLanes);
+        ArgumentCaptor<List<byte[]>> values = ArgumentCaptor.forClass(List.class);
+        verify(daos.get(0), times(1)).batchStore(any(), values.capture());
+        assertEquals(1, values.getValue().size());
+        verify(daos.get(1), times(1)).batchStore(any(), values.capture());
+        assertEquals(3, values.getValue().size());
+        assertEquals(4000, lanes.inFlight(1, 5000));
+        assertEquals(1000, lanes.inFlight(0, 5000));
+    }
+
+    @Test
+    void store_laneFailed() {
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("critical", 4);
+        PriorityLanes lanes = new PriorityLanes(weights, Collections.singletonMap("payment_timeout", "critical"));
+        List<DelayMsgDao> daos = new ArrayList<>();
+        PartitionShards shards = new PartitionShards((partition, lane) -> {
+            DelayMsgDao dao = mock(DelayMsgDao.class);
+            daos.add(dao);
+            return dao;
+        }, (delayStore, lane) -> transfer(delayStore), null, lanes);
+        PartitionShards.Shard shard = shards.shard(0);
+        doThrow(new IllegalStateException("disk full")).doNothing().when(daos.get(1)).batchStore(anyList(), anyList());
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        List<DelayDto> stored = new ArrayList<>();
+        for (String topic : new String[]{"reminder", "payment_timeout"}) {
+            DelayDto dto = new DelayDto();
+            dto.setTopic(topic);
+            dto.setKey(KeyUtils.buildTriggerKey(1L));
+            keys.add(dto.getKey());
+            values.add(DelayDtoCodec.write(dto));
+            stored.add(dto);
+        }
+
+        assertThrows(IllegalStateException.class, () -> shard.store(keys, values, stored));
+        shard.store(keys, values, stored);
+
+        // 重试只写入失败的通道，已写入的通道不重复写入、不重复交给时间轮
+        verify(daos.get(0), times(1)).batchStore(anyList(), anyList());
+        verify(daos.get(1), times(2)).batchStore(anyList(), anyList());
+        verify(nearTermWheel, times(2)).offer(anyList());
     }
 
     @Test
@@ -85,9 +253,14 @@ class MsgStoreTaskTest {
         msgStoreTask.run();
     }
 
+    private PartitionShards.Transfer transfer(DelayStore delayStore) {
+        return new PartitionShards.Transfer(triggerSignal, nearTermWheel, CompletableFuture.completedFuture(null));
+    }
+
     @BeforeEach
     private void setup() {
         MockitoAnnotations.openMocks(this);
+        msgStoreTask = new MsgStoreTask(new PartitionShards(partition -> delayDao, this::transfer), consumer, kafkaSender);
     }
 
 }
\ No newline at end of file
@@ -3,20 +3,24 @@ package com.github.delaymsg.task;
 import com.github.delaymsg.dao.DelayMsgDao;
 import com.github.delaymsg.dto.DelayDto;
 import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.KeyUtils;
 import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
-import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyList;
-import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.*;
 
 /**
@@ -30,47 +34,69 @@ class MsgTransferTaskTest {
     @Mock
     DelayMsgDao delayDao;
 
-    @InjectMocks
+    @Mock
+    TriggerSignal triggerSignal;
+
     MsgTransferTask msgTransferTask;
 
     @Test
     void transfer_empty_msg() {
-        Mockito.doReturn(new ArrayList<>())
-                .when(delayDao)
-                .scanTodoMsg();
+        when(delayDao.scanRange(any(), any(), anyInt())).thenReturn(new ArrayList<>());
+        when(delayDao.peekEarliestTriggerTime(any(byte[].class))).thenReturn(-1L);
 
-        msgTransferTask.scanAndTransfer();
+        msgTransferTask.transfer();
 
-        verify(kafkaSender, never()).send(anyString(), anyString(), anyString(), any());
+        verify(triggerSignal, times(1)).awaitUntil(anyLong());
+        verify(kafkaSender, never()).send(any(), any());
         verify(delayDao, never()).batchDelete(anyList());
     }
 
     @Test
     void transfer() {
         DelayDto message = new DelayDto();
-        message.setId("11");
+        message.setKey(KeyUtils.buildKey(2L, 11L));
         message.setTopic("11");
         message.setMessageKey("22");
-        message.setMessage("122");
+        message.setPayload("122".getBytes(StandardCharsets.UTF_8));
         message.setTriggerTime(2L);
         List<DelayDto> messages = new ArrayList<>();
         messages.add(message);
-        when(delayDao.scanTodoMsg()).thenReturn(messages);
+        when(delayDao.scanRange(any(), any(), anyInt())).thenReturn(messages).thenReturn(new ArrayList<>());
+        when(delayDao.peekEarliestTriggerTime(any(byte[].class))).thenReturn(-1L);
 
+        List<Callback> callbacks = new ArrayList<>();
         doAnswer(invocation -> {
-            Callback callback = invocation.getArgument(3);
-            callback.onCompletion(null, null);
+            ProducerRecord<String, byte[]> record = invocation.getArgument(0);
+            assertRecord(record);
+            callbacks.add(invocation.getArgument(1));
             return null;
-        }).when(kafkaSender).send(any(), any(), any(), any());
+        }).when(kafkaSender).send(any(), any());
 
-        msgTransferTask.scanAndTransfer();
+        // 发送后不等待发送结果
+        msgTransferTask.transfer();
+        verify(kafkaSender, times(1)).send(any(), any());
+        verify(delayDao, never()).batchDelete(anyList());
+
+        // 下一轮批量删除已发送成功的消息
+        callbacks.get(0).onCompletion(null, null);
+        msgTransferTask.transfer();
+        verify(delayDao, times(1)).batchDelete(Collections.singletonList(message.getKey()));
+        verify(kafkaSender, times(1)).send(any(), any());
+        verify(triggerSignal, times(2)).awaitUntil(anyLong());
+    }
 
-        verify(delayDao, times(1)).batchDelete(anyList());
+    private static void assertRecord(ProducerRecord<String, byte[]> record) {
+        if (!"11".equals(record.topic()) || !"22".equals(record.key()) || !"122".equals(new String(record.value(), StandardCharsets.UTF_8))) {
+            throw new AssertionError(record);
+        }
     }
 
     @BeforeEach
     private void setUp() {
         MockitoAnnotations.openMocks(this);
+        NearTermWheel nearTermWheel = new NearTermWheel(delayDao, 0L);
+        TransferPipeline pipeline = new TransferPipeline(delayDao, kafkaSender, triggerSignal, 100);
+        msgTransferTask = new MsgTransferTask(triggerSignal, nearTermWheel, pipeline);
     }
 
 }
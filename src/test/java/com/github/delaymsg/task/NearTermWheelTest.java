@@ -0,0 +1,184 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.DelayMsgDao;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author HuaHui Yu 2026-10-18 12:24:51
+ **/
+class NearTermWheelTest {
+
+    @TempDir
+    File tempDir;
+
+    Options options;
+
+    RocksDB rocksDB;
+
+    DelayMsgDao delayDao;
+
+    NearTermWheel nearTermWheel;
+
+    @Test
+    void poll_prefetch() {
+        long now = System.currentTimeMillis();
+        byte[] dueKey = store(now - 1);
+        byte[] soonKey = store(now + 2005);
+        store(now + 3600_000);
+
+        List<NearTermWheel.DueMsg> due = new ArrayList<>();
+        nearTermWheel.poll(now, due::add);
+
+        // 已到期的消息立即转发，预读时长内的消息放入时间轮，更远的不预读
+        assertEquals(1, due.size());
+        assertArrayEquals(dueKey, due.get(0).getKey());
+        assertEquals("topic", due.get(0).getRecord().topic());
+        assertEquals(2, nearTermWheel.size());
+
+        // 不会提前转发
+        nearTermWheel.poll(now + 2004, due::add);
+        assertEquals(1, due.size());
+        nearTermWheel.poll(now + 2015, due::add);
+        assertEquals(2, due.size());
+        assertArrayEquals(soonKey, due.get(1).getKey());
+    }
+
+    @Test
+    void offer_deduplicate() {
+        long now = System.currentTimeMillis();
+        List<NearTermWheel.DueMsg> due = new ArrayList<>();
+        nearTermWheel.poll(now, due::add);
+
+        // 预读之后写入的近期消息，通过 offer 交给时间轮
+        byte[] key = store(now + 1000);
+        DelayDto dto = dto(key);
+        nearTermWheel.offer(Collections.singletonList(dto));
+        nearTermWheel.offer(Collections.singletonList(dto));
+        nearTermWheel.poll(now + 1010, due::add);
+
+        assertEquals(1, due.size());
+        nearTermWheel.release(Collections.singletonList(key));
+        assertEquals(0, nearTermWheel.size());
+    }
+
+    @Test
+    void offer_beyondBound() {
+        long now = System.currentTimeMillis();
+        nearTermWheel.poll(System.currentTimeMillis(), msg -> {
+        });
+        // 预读上界之外的消息，由后续预读读取
+        nearTermWheel.offer(Collections.singletonList(dto(KeyUtils.buildTriggerKey(now + 3600_000))));
+        nearTermWheel.poll(System.currentTimeMillis(), msg -> {
+        });
+        assertEquals(0, nearTermWheel.size());
+    }
+
+    @Test
+    void nextWakeUp_noLookahead() {
+        nearTermWheel = new NearTermWheel(delayDao, 0L);
+        long now = System.currentTimeMillis();
+        store(now + 3600_000);
+        nearTermWheel.poll(now, msg -> {
+        });
+        assertEquals(0, nearTermWheel.size());
+
+        // 没有到期消息时，休眠到下一条消息的触发时间，期间写入更早的消息会提前唤醒
+        assertEquals(now + 60_000, nearTermWheel.nextWakeUp());
+        byte[] key = store(now + 30_000);
+        assertEquals(now + 30_000, nearTermWheel.offer(Collections.singletonList(dto(key))));
+        assertEquals(now + 30_000, nearTermWheel.nextWakeUp());
+
+        List<NearTermWheel.DueMsg> due = new ArrayList<>();
+        nearTermWheel.poll(now + 30_000, due::add);
+        assertEquals(1, due.size());
+        assertArrayEquals(key, due.get(0).getKey());
+    }
+
+    @Test
+    void offer_afterRelease() {
+        long now = System.currentTimeMillis();
+        byte[] key = store(now - 1);
+        List<NearTermWheel.DueMsg> due = new ArrayList<>();
+        // 预读先读到并转发，保存线程读到新的预读上界后才 offer
+        nearTermWheel.poll(now, due::add);
+        assertEquals(1, due.size());
+        nearTermWheel.offer(Collections.singletonList(dto(key)));
+        // 发送成功、删除、从时间轮移除后，转发线程才处理 offer 的消息
+        delayDao.batchDelete(Collections.singletonList(key));
+        nearTermWheel.release(Collections.singletonList(key));
+        nearTermWheel.poll(now + 10, due::add);
+
+        assertEquals(1, due.size());
+        assertEquals(0, nearTermWheel.size());
+    }
+
+    @Test
+    void offer_afterCatchUp() {
+        long now = System.currentTimeMillis();
+        nearTermWheel.poll(now, msg -> {
+        });
+        byte[] drainedKey = store(now + 1000);
+        byte[] keptKey = store(now + 1000);
+        // 追赶模式转发并删除了 drainedKey ，保存线程随后交给时间轮
+        nearTermWheel.drained(KeyUtils.lowerBound(now + 2000));
+        delayDao.batchDelete(Collections.singletonList(drainedKey));
+        List<DelayDto> offered = new ArrayList<>();
+        offered.add(dto(drainedKey));
+        offered.add(dto(keptKey));
+        nearTermWheel.offer(offered);
+
+        List<NearTermWheel.DueMsg> due = new ArrayList<>();
+        nearTermWheel.poll(now + 1010, due::add);
+        assertEquals(1, due.size());
+        assertArrayEquals(keptKey, due.get(0).getKey());
+    }
+
+    private byte[] store(long triggerTime) {
+        byte[] key = KeyUtils.buildTriggerKey(triggerTime);
+        delayDao.batchStore(Collections.singletonList(key), Collections.singletonList(DelayDtoCodec.write(dto(key))));
+        return key;
+    }
+
+    private static DelayDto dto(byte[] key) {
+        DelayDto dto = new DelayDto();
+        dto.setKey(key);
+        dto.setTopic("topic");
+        dto.setMessageKey("key");
+        dto.setPayload("msg".getBytes(StandardCharsets.UTF_8));
+        dto.setTriggerTime(KeyUtils.extractTriggerTime(key));
+        return dto;
+    }
+
+    @BeforeEach
+    void setUp() throws RocksDBException {
+        options = new Options().setCreateIfMissing(true);
+        rocksDB = RocksDB.open(options, tempDir.getAbsolutePath());
+        delayDao = new DelayMsgDao(rocksDB);
+        nearTermWheel = new NearTermWheel(delayDao, 10L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        rocksDB.close();
+        options.close();
+    }
+
+}
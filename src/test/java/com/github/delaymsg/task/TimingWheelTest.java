@@ -0,0 +1,68 @@
+package com.github.delaymsg.task;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HuaHui Yu 2026-10-18 12:10:05
+ **/
+class TimingWheelTest {
+
+    TimingWheel<String> wheel = new TimingWheel<>(10L, 10, 1000L);
+
+    @Test
+    void add_expired() {
+        assertFalse(wheel.add(1005L, "expired"));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void advanceClock() {
+        List<String> expired = new ArrayList<>();
+        assertTrue(wheel.add(1050L, "a"));
+        // 超出第一层时间范围，放入上层时间轮
+        assertTrue(wheel.add(1500L, "c"));
+        assertTrue(wheel.add(1200L, "b"));
+        assertEquals(3, wheel.size());
+        assertEquals(1050L, wheel.nextExpiration());
+
+        wheel.advanceClock(1049L, expired::add);
+        assertTrue(expired.isEmpty());
+
+        wheel.advanceClock(1050L, expired::add);
+        assertEquals(Arrays.asList("a"), expired);
+
+        wheel.advanceClock(1499L, expired::add);
+        assertEquals(Arrays.asList("a", "b"), expired);
+
+        wheel.advanceClock(10_000L, expired::add);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiration());
+    }
+
+    @Test
+    void advanceClock_order() {
+        // 同一个槽里的任务按 order 排序后处理，包括从上层时间轮降级的任务
+        wheel = new TimingWheel<>(10L, 10, 1000L, String::compareTo);
+        List<String> expired = new ArrayList<>();
+        wheel.add(1209L, "e");
+        wheel.add(1050L, "c");
+        wheel.add(1059L, "a");
+        wheel.add(1055L, "b");
+        wheel.add(1201L, "d");
+
+        wheel.advanceClock(1050L, expired::add);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+        wheel.advanceClock(1200L, expired::add);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), expired);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.github.delaymsg.task;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author HuaHui Yu 2026-10-18 23:12:46
+ **/
+class TopicRateLimiterTest {
+
+    static final long NOW = 1_000_000L;
+
+    TopicRateLimiter rateLimiter = TopicRateLimiter.of("bulk:2,slow:1", "*:60000,urgent:1000");
+
+    @Test
+    void acquire_refill() {
+        // 初始有 1 秒的令牌
+        assertEquals(0L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW));
+        assertEquals(0L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW));
+        // 令牌用完后，按补充速度计算下一次申请的时间点
+        assertEquals(NOW + 500L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW));
+        assertEquals(NOW + 500L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW + 250L));
+        assertEquals(0L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW + 500L));
+        // 空闲再久也只积累 1 秒的令牌
+        assertEquals(0L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW + 60_000L));
+        assertEquals(0L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW + 60_000L));
+        assertEquals(NOW + 60_500L, rateLimiter.acquire("bulk", Long.MAX_VALUE, NOW + 60_000L));
+    }
+
+    @Test
+    void acquire_overrun() {
+        assertEquals(0L, rateLimiter.acquire("slow", Long.MAX_VALUE, NOW));
+        // 到达截止时间的消息不等待令牌，透支最多 1 秒的令牌
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0L, rateLimiter.acquire("slow", NOW, NOW));
+        }
+        // 透支后，未到截止时间的消息推迟到令牌补回，但不晚于截止时间
+        assertEquals(NOW + 2000L, rateLimiter.acquire("slow", Long.MAX_VALUE, NOW));
+        assertEquals(NOW + 1500L, rateLimiter.acquire("slow", NOW + 1500L, NOW));
+        assertEquals(0L, rateLimiter.acquire("slow", Long.MAX_VALUE, NOW + 2000L));
+    }
+
+    @Test
+    void acquire_unlimited() {
+        // 没有配置的 topic 、也没有 * 时不限流
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0L, rateLimiter.acquire("other", Long.MAX_VALUE, NOW));
+        }
+    }
+
+    @Test
+    void deadline() {
+        assertEquals(NOW + 1000L, rateLimiter.deadline("urgent", NOW));
+        assertEquals(NOW + 60_000L, rateLimiter.deadline("bulk", NOW));
+        assertEquals(Long.MAX_VALUE, TopicRateLimiter.of("bulk:2", "").deadline("bulk", NOW));
+    }
+
+    @Test
+    void parse_malformed() {
+        // 缺少 : 、topic 为空的配置项忽略，topic 名可以包含 :
+        Map<String, String> config = TopicRateLimiter.parse("order_timeout:2000, *:10000,invalid,:5,,ns:topic:3");
+        assertEquals(3, config.size());
+        assertEquals("2000", config.get("order_timeout"));
+        assertEquals("10000", config.get("*"));
+        assertEquals("3", config.get("ns:topic"));
+        // 没有限流配置时不创建，数值格式错误时启动失败
+        assertNull(TopicRateLimiter.of("", "*:1000"));
+        assertThrows(NumberFormatException.class, () -> TopicRateLimiter.of("bulk:fast", ""));
+        assertThrows(NumberFormatException.class, () -> TopicRateLimiter.of("bulk:2", "bulk:1s"));
+    }
+
+}
@@ -0,0 +1,294 @@
+package com.github.delaymsg.task;
+
+import com.github.delaymsg.dao.DelayMsgDao;
+import com.github.delaymsg.dto.DelayDto;
+import com.github.delaymsg.kafka.KafkaSender;
+import com.github.delaymsg.utils.DelayDtoCodec;
+import com.github.delaymsg.utils.KeyUtils;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author HuaHui Yu 2026-10-18 14:38:02
+ **/
+class TransferPipelineTest {
+
+    @Mock
+    DelayMsgDao delayDao;
+
+    @Mock
+    KafkaSender kafkaSender;
+
+    @Mock
+    TriggerSignal triggerSignal;
+
+    TransferPipeline pipeline;
+
+    List<ProducerRecord<String, byte[]>> records = new ArrayList<>();
+
+    List<Callback> callbacks = new ArrayList<>();
+
+    @Test
+    void dispatch_inFlightBudget() {
+        NearTermWheel.DueMsg first = dueMsg(1L);
+        NearTermWheel.DueMsg second = dueMsg(2L);
+        NearTermWheel.DueMsg third = dueMsg(3L);
+        pipeline.submit(first);
+        pipeline.submit(second);
+        pipeline.submit(third);
+
+        // 在途额度为 2 ，第三条等待
+        pipeline.dispatch();
+        assertEquals(2, callbacks.size());
+        assertTrue(pipeline.isSaturated());
+
+        // 第二条先完成，释放额度
+        callbacks.get(1).onCompletion(null, null);
+        pipeline.dispatch();
+        assertEquals(3, callbacks.size());
+        assertEquals(2, pipeline.inFlight());
+        assertTrue(pipeline.isSaturated());
+
+        List<byte[]> deleted = pipeline.flush(msg -> {
+        });
+        assertEquals(1, deleted.size());
+        assertArrayEquals(second.getKey(), deleted.get(0));
+        verify(delayDao, times(1)).batchDelete(Collections.singletonList(second.getKey()));
+    }
+
+    @Test
+    void flush_rescheduleDeleteFailed() {
+        NearTermWheel.DueMsg msg = dueMsg(7L);
+        pipeline.submit(msg);
+        pipeline.dispatch();
+        callbacks.get(0).onCompletion(null, new IllegalStateException("timeout"));
+        doThrow(new IllegalStateException("io error")).doNothing().when(delayDao).batchDelete(anyList());
+
+        // 新 key 已写入，删除原 key 失败
+        List<DelayDto> rescheduled = new ArrayList<>();
+        assertTrue(pipeline.flush(rescheduled::addAll).isEmpty());
+        assertEquals(1, rescheduled.size());
+
+        // 只重试删除原 key ，不再以新的触发时间重新写入
+        List<byte[]> deleted = pipeline.flush(rescheduled::addAll);
+        assertEquals(1, rescheduled.size());
+        assertEquals(1, deleted.size());
+        assertArrayEquals(msg.getKey(), deleted.get(0));
+        verify(delayDao, times(1)).batchStore(anyList(), anyList());
+        verify(delayDao, times(2)).batchDelete(Collections.singletonList(msg.getKey()));
+    }
+
+    @Test
+    void flush_deleteFailed() {
+        NearTermWheel.DueMsg msg = dueMsg(1L);
+        pipeline.submit(msg);
+        pipeline.dispatch();
+        callbacks.get(0).onCompletion(null, null);
+        doThrow(new IllegalStateException("io error")).doNothing().when(delayDao).batchDelete(anyList());
+
+        // 删除失败时不丢失，下一轮重新删除
+        assertTrue(pipeline.flush(stored -> {
+        }).isEmpty());
+        List<byte[]> deleted = pipeline.flush(stored -> {
+        });
+        assertEquals(1, deleted.size());
+        assertArrayEquals(msg.getKey(), deleted.get(0));
+        verify(delayDao, times(2)).batchDelete(Collections.singletonList(msg.getKey()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void flush_rescheduleFailed() {
+        NearTermWheel.DueMsg msg = new NearTermWheel.DueMsg(KeyUtils.buildKey(1L, 7L),
+                new ProducerRecord<>("topic", "key", new byte[]{1}), 2);
+        pipeline.submit(msg);
+        pipeline.dispatch();
+        callbacks.get(0).onCompletion(null, new IllegalStateException("timeout"));
+
+        long before = System.currentTimeMillis();
+        List<DelayDto> rescheduled = new ArrayList<>();
+        List<byte[]> deleted = pipeline.flush(rescheduled::addAll);
+
+        // 第 3 次失败，退避 400ms 后以原序号换一个 key 重新写入，删除原 key
+        assertEquals(1, rescheduled.size());
+        DelayDto dto = rescheduled.get(0);
+        assertEquals(3, dto.getAttempts());
+        assertEquals(7L, KeyUtils.extractSequence(dto.getKey()));
+        long triggerTime = KeyUtils.extractTriggerTime(dto.getKey());
+        assertTrue(triggerTime >= before + 400L && triggerTime <= System.currentTimeMillis() + 400L);
+        assertEquals(1, deleted.size());
+        assertArrayEquals(msg.getKey(), deleted.get(0));
+        assertEquals(0, pipeline.inFlight());
+        ArgumentCaptor<List<byte[]>> values = ArgumentCaptor.forClass(List.class);
+        verify(delayDao, times(1)).batchStore(eq(Collections.singletonList(dto.getKey())), values.capture());
+        DelayDto stored = DelayDtoCodec.read(values.getValue().get(0));
+        assertEquals("topic", stored.getTopic());
+        assertEquals("key", stored.getMessageKey());
+        assertEquals(3, stored.getAttempts());
+        verify(delayDao, times(1)).batchDelete(Collections.singletonList(msg.getKey()));
+        verify(triggerSignal, times(1)).signal(anyLong());
+    }
+
+    @Test
+    void dispatch_deadLetter() {
+        NearTermWheel.DueMsg msg = new NearTermWheel.DueMsg(KeyUtils.buildKey(1L, 7L),
+                new ProducerRecord<>("topic", "key", new byte[]{1}), 3);
+        pipeline.submit(msg);
+        pipeline.dispatch();
+
+        // 连续失败达到上限，改为发送到死信 topic ，原 topic 写入 header
+        ProducerRecord<String, byte[]> record = records.get(0);
+        assertEquals("dead_letter", record.topic());
+        assertEquals("key", record.key());
+        assertArrayEquals(new byte[]{1}, record.value());
+        assertEquals("topic", new String(record.headers().lastHeader(TransferPipeline.HEADER_ORIGIN_TOPIC).value(),
+                StandardCharsets.UTF_8));
+
+        callbacks.get(0).onCompletion(null, null);
+        assertEquals(1, pipeline.flush(stored -> {
+        }).size());
+        verify(delayDao, never()).batchStore(anyList(), anyList());
+    }
+
+    @Test
+    void dispatch_rateLimited() {
+        Map<String, Double> rates = new HashMap<>();
+        rates.put("bulk", 1.0);
+        Map<String, Long> maxLateness = new HashMap<>();
+        maxLateness.put("*", 60_000L);
+        maxLateness.put("urgent", 1000L);
+        TransferPipeline limited = new TransferPipeline(delayDao, kafkaSender, triggerSignal, 100,
+                new RetryPolicy(100L, 60_000L, 3, ""), new TopicRateLimiter(rates, maxLateness));
+        long now = System.currentTimeMillis();
+        for (long seq = 1; seq <= 3; seq++) {
+            limited.submit(dueMsg("bulk", now, seq));
+        }
+        limited.submit(dueMsg("urgent", now, 4L));
+
+        // 截止时间早的 topic 先发送；bulk 每秒 1 条，其余的等待令牌，不计入在途额度
+        limited.dispatch();
+        assertEquals(2, records.size());
+        assertEquals("urgent", records.get(0).topic());
+        assertEquals("bulk", records.get(1).topic());
+        assertEquals(1L, KeyUtils.extractSequence(keyOf(records.get(1))));
+        assertTrue(limited.nextDispatchAt() > now && limited.nextDispatchAt() <= System.currentTimeMillis() + 1000L);
+        assertFalse(limited.isSaturated());
+
+        // 超过最大延迟的消息不再等待限流
+        limited.submit(dueMsg("bulk", now - 120_000L, 5L));
+        limited.dispatch();
+        assertEquals(3, records.size());
+        assertEquals(5L, KeyUtils.extractSequence(keyOf(records.get(2))));
+    }
+
+    @Test
+    void backoff() {
+        RetryPolicy retryPolicy = new RetryPolicy(1000L, 60_000L, 10, "");
+        assertEquals(1000L, retryPolicy.backoff(1));
+        assertEquals(8000L, retryPolicy.backoff(4));
+        assertEquals(60_000L, retryPolicy.backoff(7));
+        assertEquals(60_000L, retryPolicy.backoff(100));
+        // 没有配置死信 topic 时一直重试
+        assertFalse(retryPolicy.isDeadLetter(100));
+    }
+
+    @Test
+    void dispatch_syncSendFailure() {
+        doThrow(new IllegalStateException("buffer exhausted")).when(kafkaSender).send(any(), any());
+        pipeline.submit(dueMsg(1L));
+        pipeline.submit(dueMsg(2L));
+
+        // 同步抛出的异常不中断转发线程，释放在途额度后按发送失败退避重试
+        pipeline.dispatch();
+        assertEquals(0, pipeline.inFlight());
+        List<DelayDto> rescheduled = new ArrayList<>();
+        assertEquals(2, pipeline.flush(rescheduled::addAll).size());
+        assertEquals(2, rescheduled.size());
+        assertEquals(1, rescheduled.get(0).getAttempts());
+    }
+
+    @Test
+    void dispatch_keyOrdered() throws InterruptedException {
+        pipeline = new TransferPipeline(delayDao, kafkaSender, triggerSignal, 1000,
+                new RetryPolicy(100L, 60_000L, 3, ""), null, new KeyOrderedExecutor(4));
+        Map<String, List<Long>> sent = new HashMap<>();
+        CountDownLatch latch = new CountDownLatch(200);
+        doAnswer(invocation -> {
+            ProducerRecord<String, byte[]> record = invocation.getArgument(0);
+            synchronized (sent) {
+                sent.computeIfAbsent(record.key(), key -> new ArrayList<>()).add((long) record.value()[0]);
+            }
+            ((Callback) invocation.getArgument(1)).onCompletion(null, null);
+            latch.countDown();
+            return null;
+        }).when(kafkaSender).send(any(), any());
+        for (long seq = 0; seq < 200; seq++) {
+            pipeline.submit(new NearTermWheel.DueMsg(KeyUtils.buildKey(1L, seq),
+                    new ProducerRecord<>("topic", "key" + seq % 5, new byte[]{(byte) seq})));
+        }
+        pipeline.dispatch();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // 同一个 messageKey 按提交顺序发送
+        assertEquals(5, sent.size());
+        sent.forEach((key, values) -> {
+            assertEquals(40, values.size());
+            for (int i = 1; i < values.size(); i++) {
+                assertTrue((values.get(i - 1) & 0xff) < (values.get(i) & 0xff), key);
+            }
+        });
+        // 按分片批量删除
+        assertEquals(200, pipeline.flush(msg -> {
+        }).size());
+        verify(delayDao, times(1)).batchDelete(anyList());
+        assertEquals(0, pipeline.inFlight());
+    }
+
+    private static NearTermWheel.DueMsg dueMsg(long seq) {
+        return new NearTermWheel.DueMsg(KeyUtils.buildKey(1L, seq), new ProducerRecord<>("topic", "key", new byte[]{1}));
+    }
+
+    private static NearTermWheel.DueMsg dueMsg(String topic, long triggerTime, long seq) {
+        return new NearTermWheel.DueMsg(KeyUtils.buildKey(triggerTime, seq), new ProducerRecord<>(topic, String.valueOf(seq), new byte[]{1}));
+    }
+
+    private static byte[] keyOf(ProducerRecord<String, byte[]> record) {
+        return KeyUtils.buildKey(0L, Long.parseLong(record.key()));
+    }
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        pipeline = new TransferPipeline(delayDao, kafkaSender, triggerSignal, 2,
+                new RetryPolicy(100L, 60_000L, 3, "dead_letter"));
+        doAnswer(invocation -> {
+            records.add(invocation.getArgument(0));
+            callbacks.add(invocation.getArgument(1));
+            return null;
+        }).when(kafkaSender).send(any(), any());
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.github.delaymsg.task;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HuaHui Yu 2026-10-18 10:21:37
+ **/
+class TriggerSignalTest {
+
+    TriggerSignal triggerSignal = new TriggerSignal();
+
+    @Test
+    void awaitUntil_deadline() {
+        long begin = System.currentTimeMillis();
+        triggerSignal.awaitUntil(begin + 100L);
+        assertTrue(System.currentTimeMillis() - begin >= 100L);
+    }
+
+    @Test
+    void awaitUntil_signalBeforeAwait() {
+        // 休眠前收到的信号不能丢失
+        triggerSignal.signal(0L);
+        assertTimeoutPreemptively(Duration.ofSeconds(1),
+                () -> triggerSignal.awaitUntil(System.currentTimeMillis() + 60_000L));
+    }
+
+    @Test
+    void awaitUntil_wakeUpByEarlierMsg() {
+        CompletableFuture.runAsync(() -> {
+            sleepQuietly();
+            triggerSignal.signal(System.currentTimeMillis());
+        });
+        assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> triggerSignal.awaitUntil(System.currentTimeMillis() + 60_000L));
+    }
+
+    private static void sleepQuietly() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(100L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.github.delaymsg.utils;
+
+import com.github.delaymsg.dto.DelayDto;
+import org.junit.jupiter.api.Test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HuaHui Yu 2026-10-18 17:41:12
+ **/
+class DelayDtoCodecTest {
+
+    @Test
+    void writeAndRead() {
+        DelayDto dto = new DelayDto();
+        dto.setTopic("cancel_order");
+        dto.setMessageKey("123456");
+        dto.setPayload("{\"orderId\":1,\"user\":\"余\"}".getBytes(StandardCharsets.UTF_8));
+        dto.setTriggerTime(1641470704000L);
+
+        byte[] value = DelayDtoCodec.write(dto);
+        DelayDto result = DelayDtoCodec.read(value);
+
+        assertEquals("cancel_order", result.getTopic());
+        assertEquals("123456", result.getMessageKey());
+        assertEquals(1641470704000L, result.getTriggerTime());
+        assertArrayEquals(dto.getPayload(), result.getPayload());
+        assertEquals(0, result.getAttempts());
+        assertTrue(value.length < FstUtils.write(dto).length);
+    }
+
+    @Test
+    void read_nullFieldsAndAppendedFields() {
+        DelayDto dto = new DelayDto();
+        dto.setAttempts(3);
+        byte[] value = DelayDtoCodec.write(dto);
+        assertEquals(DelayDtoCodec.write(new DelayDto()).length + 1, value.length);
+        // 末尾追加的未知字段不影响旧代码读取
+        ByteBuffer buffer = ByteBuffer.allocate(value.length + 3);
+        buffer.put(value).put(new byte[]{4, 1, 2});
+        ((Buffer) buffer).flip();
+
+        DelayDto result = DelayDtoCodec.read(buffer);
+
+        assertNull(result.getTopic());
+        assertNull(result.getMessageKey());
+        assertNull(result.getTriggerTime());
+        assertNull(result.getPayload());
+        assertEquals(3, result.getAttempts());
+        assertEquals(value.length, buffer.position());
+    }
+
+    @Test
+    void read_legacyFst() {
+        DelayDto dto = new DelayDto();
+        dto.setTopic("cancel_order");
+        byte[] legacy = FstUtils.write(dto);
+
+        assertEquals("cancel_order", DelayDtoCodec.read(legacy).getTopic());
+    }
+
+    @Test
+    void read_unknownVersion() {
+        byte[] value = DelayDtoCodec.write(new DelayDto());
+        value[1] = 2;
+        assertThrows(IllegalArgumentException.class, () -> DelayDtoCodec.read(value));
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.github.delaymsg.utils;
+
+import com.github.delaymsg.dto.DelayDto;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author HuaHui Yu 2026-10-18 16:51:08
+ **/
+class DelayMsgParserTest {
+
+    @Test
+    void parse() {
+        String msg = "{\"id\":{\"a\":[1,2]},\"topic\":\"cancel_order\",\"messageKey\":\"123456\","
+                + "\"message\":\"订单 123 超时\",\"triggerTime\":1641470704,\"priority\":\"critical\",\"extra\":null}";
+
+        DelayDto dto = DelayMsgParser.parse(bytes(msg)).get();
+
+        assertEquals("cancel_order", dto.getTopic());
+        assertEquals("123456", dto.getMessageKey());
+        assertEquals(1641470704L, dto.getTriggerTime());
+        assertEquals("critical", dto.getPriority());
+        assertArrayEquals(bytes("订单 123 超时"), dto.getPayload());
+    }
+
+    @Test
+    void parse_escapedMessage() {
+        String msg = "{\"topic\":\"1\",\"message\":\"{\\\"orderId\\\":1,\\\"name\\\":\\\"\\u4f59\\\"}\",\"triggerTime\":\"1\"}";
+
+        DelayDto dto = DelayMsgParser.parse(bytes(msg)).get();
+
+        // 有转义字符时，转发的是转义还原后的内容
+        assertArrayEquals(bytes("{\"orderId\":1,\"name\":\"余\"}"), dto.getPayload());
+        assertEquals(1L, dto.getTriggerTime());
+        assertNull(dto.getMessageKey());
+    }
+
+    @Test
+    void parse_headers() {
+        RecordHeaders headers = new RecordHeaders();
+        headers.add(DelayMsgParser.TOPIC_HEADER, bytes("cancel_order"));
+        headers.add(DelayMsgParser.TRIGGER_TIME_HEADER, bytes("1641470704"));
+        byte[] value = {0, 1, '"', '\\', (byte) 0xff};
+
+        assertTrue(DelayMsgParser.isHeaderProtocol(headers));
+        DelayDto dto = DelayMsgParser.parse(headers, value).get();
+
+        // 消息体原样保存，不复制
+        assertSame(value, dto.getPayload());
+        assertEquals("cancel_order", dto.getTopic());
+        assertNull(dto.getMessageKey());
+        assertNull(dto.getPriority());
+        assertEquals(1641470704L, dto.getTriggerTime());
+        headers.add(DelayMsgParser.PRIORITY_HEADER, bytes("critical"));
+        assertEquals("critical", DelayMsgParser.parse(headers, value).get().getPriority());
+
+        headers.add(DelayMsgParser.TRIGGER_TIME_HEADER, bytes("1641470704s"));
+        assertFalse(DelayMsgParser.parse(headers, value).isPresent());
+        assertFalse(DelayMsgParser.isHeaderProtocol(new RecordHeaders()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"[]"
+            , "{\"topic\":\"1\",\"message\":\"1"
+            , "{\"topic\":{\"a\":1},\"message\":\"1\",\"triggerTime\":1}"
+            , "{\"topic\":\"1\",\"message\":\"1\",\"triggerTime\":\"abc\"}"
+            , "{\"topic\":\"1\",\"message\":\"1\",\"triggerTime\":[1]}"
+    })
+    void parse_badMsg(String msg) {
+        Optional<DelayDto> dto = DelayMsgParser.parse(bytes(msg));
+        assertFalse(dto.isPresent());
+    }
+
+    private static byte[] bytes(String msg) {
+        return msg.getBytes(StandardCharsets.UTF_8);
+    }
+
+}